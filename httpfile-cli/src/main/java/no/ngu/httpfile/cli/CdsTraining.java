@@ -0,0 +1,103 @@
+package no.ngu.httpfile.cli;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import no.ngu.httpfile.client.HttpFileClient;
+
+/**
+ * Training run for the AppCDS archive, built with the cds profile.
+ * It runs an .http file against a loopback server, so the archive covers the classes
+ * loaded by a typical run: the parser, the template resolver, the data traversers,
+ * Yasson and java.net.http.
+ */
+public class CdsTraining {
+
+  static final String TRAINING_HTTP = """
+      @host = http://localhost:{{port}}
+      @contentType = application/json
+
+      # @name login
+      POST {{host}}/login
+      Content-Type: {{contentType}}
+
+      {"user": "training", "id": "{{$guid}}", "at": "{{$datetime iso8601}}"}
+
+      ###
+      # @name items
+      GET {{host}}/items?token={{login.response.body.$.token}}
+      Accept: {{contentType}}
+      """;
+
+  /**
+   * Starts a loopback server that answers the training requests.
+   *
+   * @return the started server
+   * @throws IOException if the server cannot be started
+   */
+  static HttpServer startServer() throws IOException {
+    var server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/", exchange -> {
+      exchange.getRequestBody().readAllBytes();
+      var body = (exchange.getRequestURI().getPath().equals("/login")
+          ? "{\"token\": \"abc\"}" : "[{\"id\": 1}, {\"id\": 2}]")
+          .getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "application/json");
+      exchange.sendResponseHeaders(200, body.length);
+      try (var output = exchange.getResponseBody()) {
+        output.write(body);
+      }
+    });
+    server.start();
+    return server;
+  }
+
+  /**
+   * Writes the training .http file.
+   *
+   * @param dir the directory to write it in
+   * @return the written file
+   * @throws IOException if the file cannot be written
+   */
+  static Path writeHttpFile(Path dir) throws IOException {
+    return Files.writeString(dir.resolve("training.http"), TRAINING_HTTP);
+  }
+
+  /**
+   * Runs the training .http file a few times, so the classes of all paths are loaded.
+   *
+   * @param args not used
+   * @throws Exception if the run fails
+   */
+  public static void main(String[] args) throws Exception {
+    var dir = Files.createTempDirectory("httpfile-cds");
+    var server = startServer();
+    try (var client = new HttpFileClient();
+        var out = new PrintStream(OutputStream.nullOutputStream())) {
+      client.setPrintResults(false);
+      var file = writeHttpFile(dir);
+      var options = HttpFileCli.Options.parse("--var",
+          "port=" + server.getAddress().getPort(), file.toString());
+      for (int i = 0; i < 3; i++) {
+        if (HttpFileCli.run(options, client, out) != 0) {
+          throw new IllegalStateException("Training run failed");
+        }
+      }
+      HttpFileCli.readEnvironment(Files.writeString(dir.resolve("http-client.env.json"),
+          "{\"dev\": {\"port\": \"%d\"}}".formatted(server.getAddress().getPort())), "dev");
+    } finally {
+      server.stop(0);
+      for (var file : List.of("training.http", "http-client.env.json")) {
+        Files.deleteIfExists(dir.resolve(file));
+      }
+      Files.deleteIfExists(dir);
+    }
+  }
+}
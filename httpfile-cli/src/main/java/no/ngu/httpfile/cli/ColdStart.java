@@ -0,0 +1,83 @@
+package no.ngu.httpfile.cli;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures the cold start of the command-line runner, i.e. the wall-clock time of
+ * running the training .http file in a new JVM, with and without the AppCDS archive.
+ * The medians are printed and appended to a CSV file, so they can be tracked across builds,
+ * which is why the cds profile keeps it outside target/.
+ */
+public class ColdStart {
+
+  private static final int RUNS = 5;
+
+  // runs the CLI in new JVMs, and returns the median time in millis
+  private static long measure(List<String> command) throws IOException, InterruptedException {
+    long[] millis = new long[RUNS];
+    for (int i = 0; i < RUNS; i++) {
+      long start = System.nanoTime();
+      var process = new ProcessBuilder(command)
+          .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+          .redirectError(ProcessBuilder.Redirect.DISCARD)
+          .start();
+      if (process.waitFor() != 0) {
+        throw new IllegalStateException("Failed running " + command);
+      }
+      millis[i] = (System.nanoTime() - start) / 1_000_000;
+    }
+    Arrays.sort(millis);
+    return millis[RUNS / 2];
+  }
+
+  private static List<String> command(Path jar, String jvmOption, int port, Path file) {
+    List<String> command = new ArrayList<>();
+    command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+    if (jvmOption != null) {
+      command.add(jvmOption);
+    }
+    command.addAll(List.of("-jar", jar.toString(), "--var", "port=" + port, file.toString()));
+    return command;
+  }
+
+  /**
+   * Measures the cold start.
+   *
+   * @param args the CLI jar, the CDS archive and the CSV file to append to
+   * @throws Exception if a run fails
+   */
+  public static void main(String[] args) throws Exception {
+    var jar = Path.of(args[0]);
+    var archive = Path.of(args[1]);
+    var csv = Path.of(args[2]);
+    var dir = Files.createTempDirectory("httpfile-cold-start");
+    var server = CdsTraining.startServer();
+    try {
+      var file = CdsTraining.writeHttpFile(dir);
+      int port = server.getAddress().getPort();
+      long defaultMillis = measure(command(jar, null, port, file));
+      long archiveMillis = (Files.exists(archive)
+          ? measure(command(jar, "-XX:SharedArchiveFile=" + archive, port, file)) : -1);
+      System.out.println("Cold start, median of %d runs: %d ms, %d ms with AppCDS archive"
+          .formatted(RUNS, defaultMillis, archiveMillis));
+      if (!Files.exists(csv)) {
+        Files.createDirectories(csv.toAbsolutePath().getParent());
+        Files.writeString(csv, "time,java.version,runs,default.ms,appcds.ms\n");
+      }
+      Files.writeString(csv, "%s,%s,%d,%d,%d\n".formatted(Instant.now(),
+          System.getProperty("java.version"), RUNS, defaultMillis, archiveMillis),
+          StandardOpenOption.APPEND);
+    } finally {
+      server.stop(0);
+      Files.deleteIfExists(dir.resolve("training.http"));
+      Files.deleteIfExists(dir);
+    }
+  }
+}
@@ -0,0 +1,277 @@
+package no.ngu.httpfile.cli;
+
+import jakarta.json.Json;
+import jakarta.json.JsonObject;
+import jakarta.json.JsonString;
+import jakarta.json.JsonValue;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import no.ngu.httpfile.HttpFile;
+import no.ngu.httpfile.HttpFileParser;
+import no.ngu.httpfile.client.HttpFileClient;
+import no.ngu.httpfile.client.HttpFileWatcher;
+import no.ngu.httpfile.client.ResultSummary;
+import no.ngu.httpfile.daemon.HttpFileDaemonClient;
+
+/**
+ * Command-line runner for .http files.
+ * The requests are performed by a {@link HttpFileClient} in this process,
+ * or by a warm {@link no.ngu.httpfile.daemon.HttpFileDaemon} with --daemon,
+ * and each result is printed as the request name or method and URI, the status code,
+ * and the body.
+ */
+public class HttpFileCli {
+
+  static final String USAGE = """
+      Usage: httpfile [option]... file...
+        -e, --env-file <file>    environment file, JSON like http-client.env.json,
+                                 or name=value lines
+            --env <name>         environment to use, when the JSON has several
+        -v, --var <name=value>   variable override, applied after the environment
+        -r, --request <name>     name of request to perform, may be repeated, default is all
+        -w, --watch              perform the affected requests again when the file changes
+        -d, --daemon             perform the requests in the warm daemon, which is started
+                                 if it isn't running
+            --socket <path>      socket path of the daemon
+        -h, --help               print this help
+      """;
+
+  /**
+   * The parsed command-line options.
+   *
+   * @param files the .http files
+   * @param envFile the environment file, or null if none
+   * @param env the environment name, or null if none
+   * @param variables the variable overrides
+   * @param requestNames the names of the requests to perform, or empty to perform all
+   * @param watch whether to watch the file
+   * @param daemon whether to perform the requests in the daemon
+   * @param socketPath the socket path of the daemon
+   */
+  record Options(List<Path> files, Path envFile, String env, Map<String, String> variables,
+      List<String> requestNames, boolean watch, boolean daemon, Path socketPath) {
+
+    static Options parse(String... args) {
+      List<Path> files = new ArrayList<>();
+      Path envFile = null;
+      String env = null;
+      Map<String, String> variables = new LinkedHashMap<>();
+      List<String> requestNames = new ArrayList<>();
+      boolean watch = false;
+      boolean daemon = false;
+      Path socketPath = HttpFileDaemonClient.defaultSocketPath();
+      for (int i = 0; i < args.length; i++) {
+        var arg = args[i];
+        switch (arg) {
+          case "-e", "--env-file" -> envFile = Path.of(value(args, ++i, arg));
+          case "--env" -> env = value(args, ++i, arg);
+          case "-v", "--var" -> {
+            var variable = value(args, ++i, arg);
+            int pos = variable.indexOf('=');
+            if (pos <= 0) {
+              throw new IllegalArgumentException("Expected %s name=value, but was %s"
+                  .formatted(arg, variable));
+            }
+            variables.put(variable.substring(0, pos), variable.substring(pos + 1));
+          }
+          case "-r", "--request" -> requestNames.add(value(args, ++i, arg));
+          case "-w", "--watch" -> watch = true;
+          case "-d", "--daemon" -> daemon = true;
+          case "--socket" -> socketPath = Path.of(value(args, ++i, arg));
+          default -> {
+            if (arg.startsWith("-")) {
+              throw new IllegalArgumentException("Unknown option " + arg);
+            }
+            files.add(Path.of(arg));
+          }
+        }
+      }
+      if (files.isEmpty()) {
+        throw new IllegalArgumentException("No .http file");
+      }
+      if (watch && (files.size() > 1 || daemon || !requestNames.isEmpty())) {
+        throw new IllegalArgumentException(
+            "--watch performs all requests of a single file, without the daemon");
+      }
+      return new Options(files, envFile, env, variables, requestNames, watch, daemon,
+          socketPath);
+    }
+
+    private static String value(String[] args, int i, String option) {
+      if (i >= args.length) {
+        throw new IllegalArgumentException("Missing value of " + option);
+      }
+      return args[i];
+    }
+  }
+
+  /**
+   * Reads the variables of an environment file.
+   * A JSON file is either an object of variables, or an object of environments,
+   * like http-client.env.json, where a $shared environment applies to all of them.
+   * Other files have name=value lines, like .env and .properties files.
+   *
+   * @param envFile the environment file
+   * @param env the name of the environment, or null if the file has only one
+   * @return the variables
+   * @throws IOException if the file cannot be read
+   */
+  static Map<String, String> readEnvironment(Path envFile, String env) throws IOException {
+    Map<String, String> variables = new LinkedHashMap<>();
+    if (!envFile.getFileName().toString().endsWith(".json")) {
+      var properties = new Properties();
+      try (Reader reader = Files.newBufferedReader(envFile)) {
+        properties.load(reader);
+      }
+      properties.stringPropertyNames().forEach(name ->
+          variables.put(name, properties.getProperty(name)));
+      return variables;
+    }
+    JsonObject json;
+    try (var reader = Json.createReader(Files.newBufferedReader(envFile))) {
+      json = reader.readObject();
+    }
+    boolean environments = !json.isEmpty() && json.values().stream()
+        .allMatch(value -> value.getValueType() == JsonValue.ValueType.OBJECT);
+    if (!environments) {
+      putVariables(json, variables);
+      return variables;
+    }
+    List<String> names = json.keySet().stream().filter(name -> !"$shared".equals(name)).toList();
+    if (env == null && names.size() == 1) {
+      env = names.getFirst();
+    }
+    if (env == null || !json.containsKey(env)) {
+      throw new IllegalArgumentException("Expected --env with one of %s, but was %s"
+          .formatted(names, env));
+    }
+    if (json.containsKey("$shared")) {
+      putVariables(json.getJsonObject("$shared"), variables);
+    }
+    putVariables(json.getJsonObject(env), variables);
+    return variables;
+  }
+
+  private static void putVariables(JsonObject json, Map<String, String> variables) {
+    json.forEach((name, value) -> variables.put(name,
+        value instanceof JsonString s ? s.getString() : value.toString()));
+  }
+
+  // prints the result, as the label and status code, and the body or event data
+  static void printResult(HttpFile.Request request, Map<String, Object> result,
+      PrintStream out) {
+    var summary = ResultSummary.of(request, result);
+    out.println("%s %d".formatted(summary.label(), summary.statusCode()));
+    out.println(summary.body());
+    out.flush();
+  }
+
+  /**
+   * Performs the requests of the files with the client, and prints the results.
+   *
+   * @param options the options
+   * @param client the client
+   * @param out where to print the results
+   * @return the exit status, 0 if all the requests were performed, otherwise 1
+   * @throws Exception if a file cannot be read or watched
+   */
+  static int run(Options options, HttpFileClient client, PrintStream out) throws Exception {
+    var variables = variables(options);
+    if (options.watch()) {
+      var watcher = new HttpFileWatcher(client);
+      watcher.setVariableOverrides(variables);
+      watcher.setResultConsumer((request, result) -> printResult(request, result, out));
+      watcher.watch(options.files().getFirst());
+      return 0;
+    }
+    var parser = new HttpFileParser();
+    int status = 0;
+    for (var file : options.files()) {
+      var model = parser.parse(file);
+      var requests = model.requests().stream()
+          .filter(request -> options.requestNames().isEmpty() || request
+              .getRequestPropertyValue("name").filter(options.requestNames()::contains).isPresent())
+          .toList();
+      // pages and events are results of the same request
+      Set<HttpFile.Request> performed = Collections.newSetFromMap(new IdentityHashMap<>());
+      BiConsumer<HttpFile.Request, Map<String, Object>> resultConsumer = (request, result) -> {
+        performed.add(request);
+        printResult(request, result, out);
+      };
+      client.performRequests(model, variables, options.requestNames(), resultConsumer);
+      if (performed.size() < requests.size()) {
+        status = 1;
+      }
+    }
+    return status;
+  }
+
+  // the variables of the environment, with the overrides
+  private static Map<String, String> variables(Options options) throws IOException {
+    Map<String, String> variables = new LinkedHashMap<>();
+    if (options.envFile() != null) {
+      variables.putAll(readEnvironment(options.envFile(), options.env()));
+    }
+    variables.putAll(options.variables());
+    return variables;
+  }
+
+  // runs the files in the daemon
+  private static int runInDaemon(Options options, PrintStream out) throws IOException {
+    var variables = variables(options);
+    int status = 0;
+    for (var file : options.files()) {
+      var run = new HttpFileDaemonClient.Run(file.toAbsolutePath(), variables,
+          options.requestNames());
+      try (var channel = HttpFileDaemonClient.connect(options.socketPath(), true)) {
+        status = Math.max(status, HttpFileDaemonClient.run(channel, run, out));
+      }
+    }
+    return status;
+  }
+
+  /**
+   * Runs .http files, see {@link #USAGE}.
+   *
+   * @param args the command-line arguments
+   * @throws Exception if a file cannot be read
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length == 0 || List.of(args).contains("-h") || List.of(args).contains("--help")) {
+      System.out.print(USAGE);
+      return;
+    }
+    Options options;
+    try {
+      options = Options.parse(args);
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.err.print(USAGE);
+      System.exit(2);
+      return;
+    }
+    int status;
+    if (options.daemon()) {
+      status = runInDaemon(options, System.out);
+    } else {
+      try (var client = new HttpFileClient()) {
+        // the results are printed by run
+        client.setPrintResults(false);
+        status = run(options, client, System.out);
+      }
+    }
+    System.exit(status);
+  }
+}
@@ -0,0 +1,117 @@
+package no.ngu.httpfile.cli;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import no.ngu.httpfile.client.HttpFileClient;
+import no.ngu.httpfile.client.HttpTransport;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test for {@link HttpFileCli}.
+ */
+public class HttpFileCliTest {
+
+  @Test
+  public void testParseOptions() {
+    var options = HttpFileCli.Options.parse("-e", "env.json", "--env", "dev",
+        "-v", "a=1", "--var", "b=x=y", "-r", "first", "test.http", "--request", "second");
+    assertEquals(List.of(Path.of("test.http")), options.files());
+    assertEquals(Path.of("env.json"), options.envFile());
+    assertEquals("dev", options.env());
+    assertEquals(Map.of("a", "1", "b", "x=y"), options.variables());
+    assertEquals(List.of("first", "second"), options.requestNames());
+
+    assertThrows(IllegalArgumentException.class, () -> HttpFileCli.Options.parse("-v", "a"));
+    assertThrows(IllegalArgumentException.class, () -> HttpFileCli.Options.parse("-r"));
+    assertThrows(IllegalArgumentException.class, () -> HttpFileCli.Options.parse("--unknown"));
+    assertThrows(IllegalArgumentException.class, () -> HttpFileCli.Options.parse());
+    assertThrows(IllegalArgumentException.class,
+        () -> HttpFileCli.Options.parse("-w", "a.http", "b.http"));
+  }
+
+  @Test
+  public void testReadEnvironment(@TempDir Path dir) throws Exception {
+    var environments = Files.writeString(dir.resolve("http-client.env.json"), """
+        {
+          "$shared": {"host": "http://api.test", "port": 80},
+          "dev": {"user": "dev"},
+          "prod": {"user": "prod", "host": "https://api.test"}
+        }
+        """);
+    assertEquals(Map.of("host", "https://api.test", "port", "80", "user", "prod"),
+        HttpFileCli.readEnvironment(environments, "prod"));
+    assertThrows(IllegalArgumentException.class,
+        () -> HttpFileCli.readEnvironment(environments, null));
+
+    var variables = Files.writeString(dir.resolve("variables.json"), """
+        {"host": "http://api.test"}
+        """);
+    assertEquals(Map.of("host", "http://api.test"),
+        HttpFileCli.readEnvironment(variables, null));
+
+    var dotenv = Files.writeString(dir.resolve(".env"), """
+        # comment
+        host=http://api.test
+        user = test
+        """);
+    assertEquals(Map.of("host", "http://api.test", "user", "test"),
+        HttpFileCli.readEnvironment(dotenv, null));
+  }
+
+  @Test
+  public void testRun(@TempDir Path dir) throws Exception {
+    var file = Files.writeString(dir.resolve("test.http"), """
+        # @name first
+        GET {{host}}/first?user={{user}}
+
+        ###
+        # @name second
+        GET {{host}}/second
+        """);
+    var env = Files.writeString(dir.resolve(".env"), """
+        host=http://api.test
+        user=env
+        """);
+    var transport = new HttpTransport.InProcess()
+        .register("api.test", (request, body) -> new HttpTransport.Response(
+            request.uri().getPath().equals("/second") ? 404 : 200, "text/plain",
+            request.uri().toString()));
+    try (var client = new HttpFileClient()) {
+      client.setPrintResults(false);
+      client.setTransport(transport);
+      var output = new ByteArrayOutputStream();
+      var out = new PrintStream(output, true, StandardCharsets.UTF_8);
+      var options = HttpFileCli.Options.parse("-e", env.toString(), "-v", "user=override",
+          file.toString());
+      assertEquals(0, HttpFileCli.run(options, client, out));
+      assertEquals("""
+          first 200
+          http://api.test/first?user=override
+          second 404
+          http://api.test/second
+          """, output.toString(StandardCharsets.UTF_8));
+
+      output.reset();
+      options = HttpFileCli.Options.parse("-e", env.toString(), "-r", "first", file.toString());
+      assertEquals(0, HttpFileCli.run(options, client, out));
+      assertEquals("""
+          first 200
+          http://api.test/first?user=env
+          """, output.toString(StandardCharsets.UTF_8));
+
+      // the requests fail, since the host is missing
+      output.reset();
+      options = HttpFileCli.Options.parse(file.toString());
+      assertEquals(1, HttpFileCli.run(options, client, out));
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package no.ngu.httpfile;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark for {@link HttpFileParser}, run with -prof gc to see allocation per parse.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpFileParserBenchmark {
+
+  @Param({"100"})
+  private int requestCount;
+
+  private String content;
+
+  private HttpFileParser parser;
+
+  /**
+   * Generates http file content with properties, variables, headers and body for each request.
+   */
+  @Setup
+  public void setup() {
+    var builder = new StringBuilder();
+    for (int i = 0; i < requestCount; i++) {
+      builder.append("""
+          @host%1$d = https://example.com/api/%1$d
+          # @name request%1$d
+          POST {{host%1$d}}/items?q={{$guid}} HTTP/1.1
+          Accept: application/json
+          Content-Type: application/json
+          Authorization: Bearer {{token}}
+          X-Long-Header: first part,
+            second part
+          X-Request-Id: %1$d
+
+          { "id": %1$d, "name": "item %1$d", "tags": ["a", "b", "c"],
+            "description": "some longer content for the body of request %1$d" }
+
+          ###
+          """.formatted(i));
+    }
+    content = builder.toString();
+    parser = new HttpFileParser();
+  }
+
+  @Benchmark
+  public HttpFile.Model parse() {
+    return parser.parse(content);
+  }
+}
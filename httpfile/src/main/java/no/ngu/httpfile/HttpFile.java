@@ -68,15 +68,28 @@ public interface HttpFile {
       }
 
       /**
-       * A macro call part.
+       * A macro call part, with the arguments parsed when the template is parsed.
        */
-      public record MacroCall(Macro macro, List<String> args) implements Part {
+      public record MacroCall(Macro macro, List<String> args, Macro.Binding binding)
+          implements Part {
 
         /**
          * Initializes with the given macro and arguments.
          *
          * @param macro the macro
          * @param args the arguments
+         * @throws IllegalArgumentException if the arguments are not valid for the macro
+         */
+        public MacroCall(Macro macro, List<String> args) {
+          this(macro, args, macro.bind(args));
+        }
+
+        /**
+         * Initializes with the given macro and arguments.
+         *
+         * @param macro the macro
+         * @param args the arguments
+         * @throws IllegalArgumentException if the arguments are not valid for the macro
          */
         public MacroCall(Macro macro, String... args) {
           this(macro, List.of(args));
@@ -99,6 +112,35 @@ public interface HttpFile {
       }
     }
 
+    /**
+     * Creates a StringTemplate with a single constant part.
+     *
+     * @param value the constant value
+     * @return the resulting StringTemplate
+     */
+    public static StringTemplate constant(String value) {
+      return new StringTemplate(new Part.Constant(value));
+    }
+
+    /**
+     * Gets the value of a template with only constant parts.
+     *
+     * @return the value, or null if the template has dynamic parts
+     */
+    public String constantValue() {
+      if (parts.size() == 1 && parts.get(0) instanceof Part.Constant(var value)) {
+        return value;
+      }
+      var buffer = new StringBuilder();
+      for (var part : parts) {
+        if (!(part instanceof Part.Constant(var value))) {
+          return null;
+        }
+        buffer.append(value);
+      }
+      return buffer.toString();
+    }
+
     /**
      * Creates a StringTemplate from the given string.
      * Dynamic parts are enclosed in {{ and }}.
@@ -110,7 +152,8 @@ public interface HttpFile {
       if (s == null) {
         return null;
       }
-      List<Part> parts = new ArrayList<>();
+      // most templates have few parts
+      List<Part> parts = new ArrayList<>(4);
       int pos = 0;
       while (pos < s.length()) {
         // works even if varStart = -1
@@ -131,7 +174,8 @@ public interface HttpFile {
           // add function or variable part
           if (s.charAt(varStart + 2) == '$') {
             var nameEnd = s.indexOf(' ', varStart + 3);
-            if (nameEnd < 0) {
+            // the space may be after the macro call
+            if (nameEnd < 0 || nameEnd > varEnd) {
               nameEnd = varEnd;
             }
             String name = s.substring(varStart + 3, nameEnd);
@@ -222,11 +266,42 @@ public interface HttpFile {
      * @return true if the string is a valid HTTP method
      */
     public static boolean is(String s) {
-      try {
-        return HttpMethod.valueOf(s) != null;
-      } catch (IllegalArgumentException iae) {
-        return false;
+      return of(s, 0, s.length()) != null;
+    }
+
+    /**
+     * Looks up the HTTP method in the given range of chars, without creating a substring.
+     *
+     * @param s the chars
+     * @param start the start of the range
+     * @param end the end of the range
+     * @return the HTTP method, or null if the range is not a valid HTTP method
+     */
+    public static HttpMethod of(CharSequence s, int start, int end) {
+      HttpMethod candidate = switch (end - start) {
+        case 3 -> switch (s.charAt(start)) {
+          case 'G' -> GET;
+          case 'P' -> PUT;
+          default -> null;
+        };
+        case 4 -> switch (s.charAt(start)) {
+          case 'H' -> HEAD;
+          case 'P' -> POST;
+          default -> null;
+        };
+        case 5 -> PATCH;
+        case 6 -> DELETE;
+        default -> null;
+      };
+      if (candidate != null) {
+        var name = candidate.name();
+        for (int i = 0; i < name.length(); i++) {
+          if (s.charAt(start + i) != name.charAt(i)) {
+            return null;
+          }
+        }
       }
+      return candidate;
     }
   }
 
@@ -292,9 +367,38 @@ public interface HttpFile {
   }
 
   /**
-   * Body contents.
+   * Body contents, either a single content or the parts of a multipart body.
    */
-  public record Body(String contentType, StringTemplate content) {
+  public record Body(String contentType, StringTemplate content, List<Part> parts) {
+
+    /**
+     * A part of a multipart body, with its own headers.
+     * The content is either a template, or a single resource reference for file content,
+     * which is streamed when the request is sent.
+     */
+    public record Part(List<Header> headers, StringTemplate content) {
+
+      /**
+       * Gets the resource reference, if this is a file part.
+       *
+       * @return the resource reference, or null if the content is a template
+       */
+      public StringTemplate.Part.ResourceRef resourceRef() {
+        return (content.parts().size() == 1
+            && content.parts().getFirst() instanceof StringTemplate.Part.ResourceRef ref
+            ? ref : null);
+      }
+    }
+
+    /**
+     * Initializes with the given content type and content.
+     *
+     * @param contentType the content type
+     * @param content the content
+     */
+    public Body(String contentType, StringTemplate content) {
+      this(contentType, content, null);
+    }
 
     /**
      * Initializes with the given content type and content.
@@ -305,6 +409,48 @@ public interface HttpFile {
     public Body(String contentType, String value) {
       this(contentType, StringTemplate.of(value));
     }
+
+    /**
+     * Initializes a multipart body with the given content type and parts.
+     *
+     * @param contentType the content type
+     * @param parts the parts
+     */
+    public Body(String contentType, List<Part> parts) {
+      this(contentType, null, parts);
+    }
+
+    /**
+     * Gets the boundary of a multipart content type, e.g. multipart/form-data; boundary=xyz.
+     *
+     * @param contentType the content type
+     * @return the boundary, or null if it isn't a multipart content type with a boundary
+     */
+    public static String boundary(String contentType) {
+      if (contentType == null || !contentType.regionMatches(true, 0, "multipart/", 0, 10)) {
+        return null;
+      }
+      for (var parameter : contentType.split(";")) {
+        int pos = parameter.indexOf('=');
+        if (pos > 0 && parameter.substring(0, pos).trim().equalsIgnoreCase("boundary")) {
+          var boundary = parameter.substring(pos + 1).trim();
+          if (boundary.length() >= 2 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+            boundary = boundary.substring(1, boundary.length() - 1);
+          }
+          return (boundary.isEmpty() ? null : boundary);
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Tells whether this is a multipart body.
+     *
+     * @return true if the body has parts
+     */
+    public boolean isMultipart() {
+      return parts != null;
+    }
   }
 
   //
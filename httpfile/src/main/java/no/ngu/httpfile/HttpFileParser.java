@@ -2,9 +2,20 @@ package no.ngu.httpfile;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Predicate;
 import no.ngu.httpfile.HttpFile.Body;
 import no.ngu.httpfile.HttpFile.Header;
 import no.ngu.httpfile.HttpFile.HttpMethod;
@@ -13,8 +24,6 @@ import no.ngu.httpfile.HttpFile.Property;
 import no.ngu.httpfile.HttpFile.Request;
 import no.ngu.httpfile.HttpFile.StringTemplate.Part;
 import no.ngu.httpfile.HttpFile.Variable;
-import no.ngu.httpfile.HttpFileParser.Token.HeaderLine;
-import no.ngu.httpfile.HttpFileParser.Token.PropertyLine;
 import no.ngu.httpfile.HttpFileParser.Token.RequestLine;
 
 /**
@@ -22,133 +31,355 @@ import no.ngu.httpfile.HttpFileParser.Token.RequestLine;
  */
 public class HttpFileParser {
 
+  /**
+   * A mutable view of the current line, reused for all lines,
+   * so parsing allocates only the substrings that end up in the model.
+   * Positions are relative to the start of the line.
+   */
+  static final class Line implements CharSequence {
+    private String text;
+    private int start;
+    private int end;
+    private int next;
+
+    /**
+     * Sets this view to the whole string.
+     */
+    void set(String s) {
+      text = s;
+      start = 0;
+      end = s.length();
+      next = end;
+    }
+
+    /**
+     * Prepares for iterating over the lines of the given text, using {@link #advance()}.
+     */
+    void reset(String s) {
+      text = s;
+      start = 0;
+      end = 0;
+      next = 0;
+    }
+
+    /**
+     * Moves to the next line of the text given to {@link #reset(String)}.
+     * Lines are terminated by \n or \r\n, like {@link String#lines()}.
+     *
+     * @return true if there was a next line, false at the end of the text
+     */
+    boolean advance() {
+      if (next >= text.length()) {
+        return false;
+      }
+      int nl = text.indexOf('\n', next);
+      if (nl < 0) {
+        nl = text.length();
+      }
+      start = next;
+      end = (nl > start && text.charAt(nl - 1) == '\r' ? nl - 1 : nl);
+      next = nl + 1;
+      return true;
+    }
+
+    @Override
+    public int length() {
+      return end - start;
+    }
+
+    @Override
+    public char charAt(int index) {
+      return text.charAt(start + index);
+    }
+
+    @Override
+    public CharSequence subSequence(int from, int to) {
+      return substring(from, to);
+    }
+
+    @Override
+    public String toString() {
+      return text.substring(start, end);
+    }
+
+    String substring(int from, int to) {
+      return text.substring(start + from, start + to);
+    }
+
+    boolean startsWith(String prefix) {
+      return text.startsWith(prefix, start) && prefix.length() <= end - start;
+    }
+
+    int indexOf(char c, int from) {
+      for (int pos = start + from; pos < end; pos++) {
+        if (text.charAt(pos) == c) {
+          return pos - start;
+        }
+      }
+      return -1;
+    }
+
+    int indexOf(char c) {
+      return indexOf(c, 0);
+    }
+
+    boolean isBlank() {
+      return skipWhitespace(0, length()) == length();
+    }
+
+    /**
+     * Returns whether the trimmed line equals s, without creating a substring.
+     */
+    boolean trimmedEquals(String s) {
+      int from = skipWhitespace(0, length());
+      int to = trimEnd(from, length());
+      return to - from == s.length() && text.startsWith(s, start + from);
+    }
+
+    /**
+     * Returns the position of the first non-whitespace char in [from, to), or to if none.
+     */
+    int skipWhitespace(int from, int to) {
+      while (from < to && Character.isWhitespace(charAt(from))) {
+        from++;
+      }
+      return from;
+    }
+
+    /**
+     * Returns the position after the last non-whitespace char in [from, to), or from if none.
+     */
+    int trimEnd(int from, int to) {
+      while (to > from && Character.isWhitespace(charAt(to - 1))) {
+        to--;
+      }
+      return to;
+    }
+
+    /**
+     * Returns the trimmed substring of [from, to), without intermediate substrings.
+     */
+    String trimmed(int from, int to) {
+      from = skipWhitespace(from, to);
+      return substring(from, trimEnd(from, to));
+    }
+
+    /**
+     * Appends the trimmed chars of [from, to) to the buffer.
+     */
+    void appendTrimmed(int from, int to, StringBuilder buffer) {
+      from = skipWhitespace(from, to);
+      buffer.append(text, start + from, start + trimEnd(from, to));
+    }
+
+    void appendTo(StringBuilder buffer) {
+      buffer.append(text, start, end);
+    }
+  }
+
   sealed interface Token {
 
-    static boolean matchesEnd(String line) {
+    static boolean matchesEnd(Line line) {
       return line == null;
     }
 
-    static boolean matchesBlank(String line) {
+    static boolean matchesBlank(Line line) {
       return line.isBlank();
     }
 
-    static boolean matchesRequestSeparator(String line) {
+    static boolean matchesRequestSeparator(Line line) {
       return line.startsWith("###");
     }
 
-    static boolean matchesComment(String line) {
+    static boolean matchesComment(Line line) {
       return line.startsWith("#") || line.startsWith("//");
     }
 
-    record VariableLine(String name, String value) implements Token {
-      static boolean matches(String line) {
-        return line.startsWith("@");
-      }
+    static boolean matchesVariable(Line line) {
+      return line.startsWith("@");
+    }
 
-      static VariableLine of(String line) {
-        int pos = line.indexOf("=");
-        return new VariableLine(line.substring(1, pos).trim(), line.substring(pos + 1).trim());
+    static boolean matchesProperty(Line line) {
+      if (!line.startsWith("#")) {
+        return false;
       }
+      int pos = line.skipWhitespace(1, line.length());
+      return pos < line.length() && line.charAt(pos) == '@';
     }
 
-    record PropertyLine(String name, String value) implements Token {
-      static boolean matches(String line) {
-        if (!line.startsWith("#")) {
-          return false;
-        }
-        line = line.substring(1).trim();
-        return line.startsWith("@");
+    static boolean matchesContinuation(Line line) {
+      return line.startsWith(" ") || line.startsWith("\t");
+    }
+
+    static boolean matchesHeader(Line line) {
+      int pos = line.indexOf(':');
+      return pos > 0 && line.indexOf(':', pos + 1) < 0;
+    }
+
+    static boolean matchesResourceRef(Line line) {
+      return line.startsWith("< ");
+    }
+
+    static Variable variable(Line line) {
+      int pos = line.indexOf('=');
+      return new Variable(line.trimmed(1, pos),
+          HttpFile.StringTemplate.of(line.trimmed(pos + 1, line.length())));
+    }
+
+    static Property property(Line line) {
+      int end = line.length();
+      // skip the # and whitespace up to and including the @
+      int start = line.skipWhitespace(1, end) + 1;
+      int pos = line.indexOf(' ', start);
+      if (pos < 0) {
+        pos = line.indexOf('=', start);
+      }
+      if (pos < 0) {
+        return new Property(line.trimmed(start, end), "");
       }
+      return new Property(line.trimmed(start, pos), line.trimmed(pos + 1, end));
+    }
 
-      static PropertyLine of(String line) {
-        line = line.substring(1).trim();
-        int pos = line.indexOf(" ");
-        if (pos < 0) {
-          pos = line.indexOf("=");
+    /**
+     * Gets the boundary of a constant multipart Content-Type header, or null if there is none.
+     */
+    static String multipartBoundary(List<Header> headers) {
+      for (var header : headers) {
+        var name = header.name().constantValue();
+        if (name != null && name.equalsIgnoreCase("Content-Type")) {
+          return Body.boundary(header.value().constantValue());
         }
-        return new PropertyLine(line.substring(1, pos).trim(), line.substring(pos + 1).trim());
       }
+      return null;
     }
 
-    record ContinuationLine(String line) implements Token {
-      static boolean matches(String line) {
-        return line.startsWith(" ") || line.startsWith("\t");
-      }
+    static String resourceRef(Line line) {
+      int pos = line.indexOf(' ');
+      return line.trimmed(pos + 1, line.length());
     }
 
     record RequestLine(HttpMethod verb, String target, String version) implements Token {
 
-      static boolean matches(String line) {
-        int pos1 = line.indexOf(" ");
-        if (pos1 > 0) {
-          String first = line.substring(0, pos1);
-          if (HttpMethod.is(first)) {
-            return true;
-          }
+      static boolean matches(Line line) {
+        int pos1 = line.indexOf(' ');
+        if (pos1 > 0 && HttpMethod.of(line, 0, pos1) != null) {
+          return true;
         }
         // URI must start with scheme or /
-        return line.startsWith("/") || line.indexOf(":") >= 3;
+        return line.startsWith("/") || line.indexOf(':') >= 3;
       }
 
-      static RequestLine of(String line) {
-        int pos1 = line.indexOf(" ");
-        HttpMethod verb = HttpMethod.GET;
-        String rest = line;
-        String version = null;
-        if (pos1 < 0) {
-          pos1 = rest.length();
+      static RequestLine of(Line line) {
+        int end = line.trimEnd(0, line.length());
+        int pos1 = line.indexOf(' ');
+        HttpMethod verb = (pos1 > 0 ? HttpMethod.of(line, 0, pos1) : null);
+        int targetStart = 0;
+        if (verb != null) {
+          targetStart = line.skipWhitespace(pos1 + 1, end);
+          pos1 = line.indexOf(' ', targetStart);
         } else {
-          String first = line.substring(0, pos1);
-          rest = line.substring(pos1 + 1).trim();
-          if (HttpMethod.is(first)) {
-            verb = HttpMethod.valueOf(first);
-            pos1 = rest.indexOf(" ");
-          } else {
-            rest = line;
-          }
-          if (pos1 > 0) {
-            version = rest.substring(pos1 + 1).trim();
-          } else {
-            pos1 = rest.length();
-          }
+          verb = HttpMethod.GET;
+        }
+        if (pos1 > targetStart && pos1 < end) {
+          return new RequestLine(verb, line.substring(targetStart, pos1),
+              line.trimmed(pos1 + 1, end));
         }
-        return new RequestLine(verb, rest.substring(0, pos1), version);
+        return new RequestLine(verb, line.substring(targetStart, end), null);
       }
     }
+  }
 
-    record HeaderLine(String name, String value) implements Token {
+  class Builder {
+    List<Variable> fileVariables = new ArrayList<>();
+    List<Request> requests = new ArrayList<>();
+    List<Property> properties;
+    RequestLine requestLine;
+    List<Header> headers;
+    Body body;
 
-      static boolean matches(String line) {
-        int pos = line.indexOf(":");
-        return pos > 0 && line.indexOf(":", pos + 1) < 0;
-      }
+    // mutable state reused across requests
+
+    /**
+     * Whether the current line should be passed on to the next state.
+     */
+    boolean retainLine = false;
+    final List<Property> propertyLines = new ArrayList<>();
+    final List<Header> headerLines = new ArrayList<>();
+    String headerName = null;
+    String headerValue = null;
+    final StringBuilder headerContinuation = new StringBuilder();
+    final List<Part> bodyParts = new ArrayList<>();
+    final StringBuilder bodyLines = new StringBuilder();
+    String boundary = null;
+    String partDelimiter = null;
+    String closeDelimiter = null;
+    boolean inPart = false;
+    boolean inPartHeaders = false;
+    boolean partContentStarted = false;
+    final List<Header> partHeaderLines = new ArrayList<>();
+    final List<Body.Part> multipartParts = new ArrayList<>();
+
+    void acceptProperties() {
+      properties = List.copyOf(propertyLines);
+      propertyLines.clear();
+    }
 
-      static HeaderLine of(String line) {
-        int pos = line.indexOf(":");
-        return new HeaderLine(line.substring(0, pos).trim(), line.substring(pos + 1).trim());
+    void acceptHeader() {
+      if (headerName != null) {
+        if (!headerContinuation.isEmpty()) {
+          headerValue = headerValue + headerContinuation;
+          headerContinuation.setLength(0);
+        }
+        headerLines.add(new Header(HttpFile.StringTemplate.of(headerName),
+            HttpFile.StringTemplate.of(headerValue)));
+        headerName = null;
+        headerValue = null;
       }
     }
 
-    record ResourceRefLine(String path) implements Token {
+    void acceptHeaders() {
+      acceptHeader();
+      headers = List.copyOf(headerLines);
+      headerLines.clear();
+    }
 
-      static boolean matches(String line) {
-        return line.startsWith("< ");
+    void acceptBodyLines() {
+      if (!bodyLines.isEmpty()) {
+        bodyParts.addAll(HttpFile.StringTemplate.of(bodyLines.toString()).parts());
+        bodyLines.setLength(0);
       }
+    }
 
-      static ResourceRefLine of(String line) {
-        int pos = line.indexOf(" ");
-        return new ResourceRefLine(line.substring(pos + 1).trim());
+    void acceptBody() {
+      acceptBodyLines();
+      if (!bodyParts.isEmpty()) {
+        body = new Body(null, new HttpFile.StringTemplate(new ArrayList<>(bodyParts)));
+        bodyParts.clear();
       }
     }
-  }
 
-  class Builder {
-    List<Variable> fileVariables = new ArrayList<>();
-    List<Request> requests = new ArrayList<>();
-    List<Property> properties;
-    RequestLine requestLine;
-    List<Header> headers;
-    Body body;
+    void acceptPart() {
+      if (inPart) {
+        acceptBodyLines();
+        multipartParts.add(new Body.Part(List.copyOf(partHeaderLines),
+            new HttpFile.StringTemplate(List.copyOf(bodyParts))));
+        partHeaderLines.clear();
+        bodyParts.clear();
+        inPart = false;
+        partContentStarted = false;
+      }
+    }
+
+    void acceptMultipartBody() {
+      acceptPart();
+      if (!multipartParts.isEmpty()) {
+        body = new Body(null, List.copyOf(multipartParts));
+        multipartParts.clear();
+      }
+      boundary = null;
+      partDelimiter = null;
+      closeDelimiter = null;
+    }
 
     public void acceptRequest() {
       Request request = new Request(
@@ -165,148 +396,226 @@ public class HttpFileParser {
       headers = null;
       body = null;
     }
-  }
 
-  record Next(String line, State state) {
+    /**
+     * Moves to the given state, passing the current line on to it.
+     */
+    State retain(State state) {
+      retainLine = true;
+      return state;
+    }
   }
 
-  sealed interface State {
-    Next next(String line, Builder builder);
+  /**
+   * The states of the parser. The states are stateless,
+   * all data is accumulated in the {@link Builder}.
+   */
+  enum State {
 
-    record RequestSeparator(boolean expectSeparator) implements State {
+    REQUEST_OR_SEPARATOR {
       @Override
-      public Next next(String line, Builder builder) {
+      State next(Line line, Builder builder) {
         if (Token.matchesEnd(line)) {
           return null;
         } else if (Token.matchesBlank(line)) {
-          return new Next(null, this);
+          return this;
         } else if (Token.matchesRequestSeparator(line)) {
-          return new Next(null, new RequestSeparator(false));
-        }
-        if (expectSeparator) {
-          throw new IllegalStateException("Expected RequestSeparator, was '" + line + "'");
-        } else {
-          return new Next(line, new RequestFeature());
+          return REQUEST_FEATURE;
         }
+        return builder.retain(REQUEST_FEATURE);
       }
-    }
+    },
 
-    record RequestOrSeparator() implements State {
+    REQUEST_SEPARATOR {
       @Override
-      public Next next(String line, Builder builder) {
-        if (Token.matchesBlank(line)) {
-          return new Next(null, this);
+      State next(Line line, Builder builder) {
+        if (Token.matchesEnd(line)) {
+          return null;
+        } else if (Token.matchesBlank(line)) {
+          return this;
         } else if (Token.matchesRequestSeparator(line)) {
-          return new Next(null, new RequestFeature());
+          return this;
         }
-        return new Next(line, new RequestFeature());
+        return builder.retain(REQUEST_FEATURE);
       }
-    }
+    },
 
-    record RequestFeature(List<PropertyLine> properties) implements State {
-      public RequestFeature() {
-        this(new ArrayList<>());
+    EXPECT_REQUEST_SEPARATOR {
+      @Override
+      State next(Line line, Builder builder) {
+        if (Token.matchesEnd(line)) {
+          return null;
+        } else if (Token.matchesBlank(line)) {
+          return this;
+        } else if (Token.matchesRequestSeparator(line)) {
+          return REQUEST_SEPARATOR;
+        }
+        throw new IllegalStateException("Expected RequestSeparator, was '" + line + "'");
       }
+    },
 
+    REQUEST_FEATURE {
       @Override
-      public Next next(String line, Builder builder) {
-        if (Token.matchesBlank(line)) {
-          return new Next(null, this);
-        } else if (Token.PropertyLine.matches(line)) {
-          properties.add(Token.PropertyLine.of(line));
-          return new Next(null, this);
-        } else if (Token.VariableLine.matches(line)) {
-          var variableLine = Token.VariableLine.of(line);
-          builder.fileVariables.add(
-              new Variable(variableLine.name(), HttpFile.StringTemplate.of(variableLine.value())));
-          return new Next(null, this);
+      State next(Line line, Builder builder) {
+        if (Token.matchesEnd(line)) {
+          return null;
+        } else if (Token.matchesBlank(line)) {
+          return this;
+        } else if (Token.matchesProperty(line)) {
+          builder.propertyLines.add(Token.property(line));
+          return this;
+        } else if (Token.matchesVariable(line)) {
+          builder.fileVariables.add(Token.variable(line));
+          return this;
         } else if (Token.matchesComment(line)) {
-          return new Next(null, this);
+          return this;
         }
-        builder.properties = properties.stream()
-            .map(propLine -> new HttpFile.Property(propLine.name(), propLine.value())).toList();
-        return new Next(line, new RequestLine());
+        builder.acceptProperties();
+        return builder.retain(REQUEST_LINE);
       }
-    }
+    },
 
-    record RequestLine() implements State {
+    REQUEST_LINE {
       @Override
-      public Next next(String line, Builder builder) {
+      State next(Line line, Builder builder) {
         if (Token.RequestLine.matches(line)) {
           builder.requestLine = Token.RequestLine.of(line);
-          return new Next(null, new HeaderLines());
+          return HEADER_LINES;
         }
         throw new IllegalStateException("Expected RequestLine, was '" + line + "'");
       }
-    }
-
-    record HeaderLines(List<HeaderLine> headers, HeaderLine current) implements State {
-      public HeaderLines() {
-        this(new ArrayList<>(), null);
-      }
+    },
 
+    HEADER_LINES {
       @Override
-      public Next next(String line, Builder builder) {
+      State next(Line line, Builder builder) {
         if (Token.matchesEnd(line) || Token.matchesBlank(line)) {
           // fall through
-        } else if (Token.ContinuationLine.matches(line)) {
-          if (current == null) {
+        } else if (Token.matchesContinuation(line)) {
+          if (builder.headerName == null) {
             throw new IllegalStateException("No current HeaderLine for ContinuationLine");
           }
-          return new Next(null, new HeaderLines(headers,
-              new HeaderLine(current.name(), current.value() + line.trim())));
-        } else if (Token.HeaderLine.matches(line)) {
-          if (current != null) {
-            headers.add(current);
-          }
-          return new Next(null, new HeaderLines(headers, Token.HeaderLine.of(line)));
-        }
-        if (current != null) {
-          headers.add(current);
+          line.appendTrimmed(0, line.length(), builder.headerContinuation);
+          return this;
+        } else if (Token.matchesHeader(line)) {
+          builder.acceptHeader();
+          int pos = line.indexOf(':');
+          builder.headerName = line.trimmed(0, pos);
+          builder.headerValue = line.trimmed(pos + 1, line.length());
+          return this;
         }
-        builder.headers = headers.stream().map(headerLine -> new Header(
-            HttpFile.StringTemplate.of(headerLine.name()),
-            HttpFile.StringTemplate.of(headerLine.value()
-          ))).toList();
-        return new Next(null, new BodyLines(new ArrayList<>(), new StringBuilder()));
-      }
-    }
-
-    record BodyLines(List<Part> allParts, StringBuilder bodyLines) implements State {
-      private void consumeBodyLines() {
-        if (bodyLines != null && !bodyLines.isEmpty()) {
-          allParts.addAll(HttpFile.StringTemplate.of(bodyLines.toString()).parts());
-          bodyLines.setLength(0);
+        builder.acceptHeaders();
+        builder.boundary = Token.multipartBoundary(builder.headers);
+        if (builder.boundary == null) {
+          return BODY_LINES;
         }
+        builder.partDelimiter = "--" + builder.boundary;
+        builder.closeDelimiter = builder.partDelimiter + "--";
+        return MULTIPART_LINES;
       }
+    },
 
+    BODY_LINES {
       @Override
-      public Next next(String line, Builder builder) {
+      State next(Line line, Builder builder) {
         if (Token.matchesEnd(line) || Token.matchesBlank(line)) {
-          consumeBodyLines();
-          if (!allParts.isEmpty()) {
-            builder.body = new Body(null, new HttpFile.StringTemplate(allParts));
-          }
+          builder.acceptBody();
           builder.acceptRequest();
-          return new Next(null, new RequestSeparator(true));
-        } else if (Token.matchesRequestSeparator(line) && allParts.isEmpty()
-            && bodyLines.isEmpty()) {
+          return EXPECT_REQUEST_SEPARATOR;
+        } else if (Token.matchesRequestSeparator(line) && builder.bodyParts.isEmpty()
+            && builder.bodyLines.isEmpty()) {
           builder.acceptRequest();
-          return new Next(line, new RequestSeparator(true));
-        } else if (Token.ResourceRefLine.matches(line)) {
-          consumeBodyLines();
-          var resource = HttpFile.StringTemplate.of(Token.ResourceRefLine.of(line).path());
-          allParts.add(new Part.ResourceRef(resource));
-          return new Next(null, this);
+          return builder.retain(EXPECT_REQUEST_SEPARATOR);
+        } else if (Token.matchesResourceRef(line)) {
+          builder.acceptBodyLines();
+          var resource = HttpFile.StringTemplate.of(Token.resourceRef(line));
+          builder.bodyParts.add(new Part.ResourceRef(resource));
+          return this;
         } else {
-          if (bodyLines.length() > 0) {
-            bodyLines.append("\n");
+          if (!builder.bodyLines.isEmpty()) {
+            builder.bodyLines.append('\n');
           }
-          bodyLines.append(line);
-          return new Next(null, this);
+          line.appendTo(builder.bodyLines);
+          return this;
         }
       }
+    },
+
+    /**
+     * The parts of a multipart body, delimited by --boundary lines and ended by --boundary--.
+     * Each part has headers, a blank line and content, which may include blank lines.
+     */
+    MULTIPART_LINES {
+      @Override
+      State next(Line line, Builder builder) {
+        if (Token.matchesEnd(line) || line.trimmedEquals(builder.closeDelimiter)) {
+          builder.acceptMultipartBody();
+          builder.acceptRequest();
+          return EXPECT_REQUEST_SEPARATOR;
+        } else if (line.trimmedEquals(builder.partDelimiter)) {
+          builder.acceptPart();
+          builder.inPart = true;
+          builder.inPartHeaders = true;
+          return this;
+        } else if (!builder.inPart) {
+          // no parts
+          if (Token.matchesBlank(line) || Token.matchesRequestSeparator(line)) {
+            builder.acceptMultipartBody();
+            builder.acceptRequest();
+            return builder.retain(EXPECT_REQUEST_SEPARATOR);
+          }
+          throw new IllegalStateException(
+              "Expected " + builder.partDelimiter + ", was '" + line + "'");
+        } else if (builder.inPartHeaders) {
+          if (Token.matchesBlank(line)) {
+            builder.inPartHeaders = false;
+          } else if (Token.matchesHeader(line)) {
+            int pos = line.indexOf(':');
+            builder.partHeaderLines.add(new Header(line.trimmed(0, pos),
+                line.trimmed(pos + 1, line.length())));
+          } else {
+            throw new IllegalStateException("Expected part header, was '" + line + "'");
+          }
+          return this;
+        } else if (Token.matchesResourceRef(line)) {
+          builder.acceptBodyLines();
+          var resource = HttpFile.StringTemplate.of(Token.resourceRef(line));
+          builder.bodyParts.add(new Part.ResourceRef(resource));
+          builder.partContentStarted = false;
+          return this;
+        }
+        if (builder.partContentStarted) {
+          builder.bodyLines.append('\n');
+        }
+        line.appendTo(builder.bodyLines);
+        builder.partContentStarted = true;
+        return this;
+      }
+    };
+
+    /**
+     * Processes the line and returns the next state, or null if the end is reached.
+     * Calls {@link Builder#retain(State)} to pass the line on to the next state.
+     */
+    abstract State next(Line line, Builder builder);
+  }
+
+  /**
+   * Runs the state machine, using nextLine to move the line view to the next line.
+   */
+  private Model parse(Line line, Predicate<Line> nextLine) {
+    Builder builder = new Builder();
+    State state = State.REQUEST_OR_SEPARATOR;
+    Line current = null;
+    while (state != null) {
+      if (builder.retainLine) {
+        builder.retainLine = false;
+      } else {
+        current = (nextLine.test(line) ? line : null);
+      }
+      state = state.next(current, builder);
     }
+    return new Model(builder.fileVariables, builder.requests);
   }
 
   /**
@@ -316,20 +625,13 @@ public class HttpFileParser {
    * @return the resulting model
    */
   public Model parse(Iterator<String> lines) {
-    Builder builder = new Builder();
-    Next next = new Next(null, new State.RequestOrSeparator());
-    while (true) {
-      String line = next.line();
-      if (line == null && lines.hasNext()) {
-        line = lines.next();
-      }
-      // System.out.println(next + ": " + line);
-      next = next.state().next(line, builder);
-      if (next == null) {
-        break;
+    return parse(new Line(), line -> {
+      if (!lines.hasNext()) {
+        return false;
       }
-    }
-    return new Model(builder.fileVariables, builder.requests);
+      line.set(lines.next());
+      return true;
+    });
   }
 
   /**
@@ -339,7 +641,9 @@ public class HttpFileParser {
    * @return the resulting model
    */
   public Model parse(String input) {
-    return parse(List.of(input.split("\n")).iterator());
+    var line = new Line();
+    line.reset(input);
+    return parse(line, Line::advance);
   }
 
   /**
@@ -352,6 +656,225 @@ public class HttpFileParser {
     return parse(new String(input.readAllBytes()));
   }
 
+  /**
+   * Parses the given file into a {@link Model}, parsing request blocks in parallel.
+   *
+   * @param file the file to parse
+   * @return the resulting model
+   * @throws IOException if the file cannot be read
+   */
+  public Model parse(Path file) throws IOException {
+    return parse(file, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Parses the given file into a {@link Model}, parsing request blocks in parallel.
+   * The file is memory-mapped and split on ### lines that start a new request block,
+   * i.e. that are first in the file or follow a blank line, outside multipart bodies.
+   * Chunks of blocks are parsed on the given pool and merged in file order,
+   * so the file variables keep their order.
+   *
+   * @param file the file to parse
+   * @param pool the pool to parse on
+   * @return the resulting model
+   * @throws IOException if the file cannot be read
+   */
+  public Model parse(Path file, ForkJoinPool pool) throws IOException {
+    try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("File is too large to parse: " + file);
+      }
+      var content = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      var separators = findRequestSeparators(content);
+      return pool.invoke(new ParseTask(content, separators, 0, separators.length - 1));
+    }
+  }
+
+  /**
+   * Parses the given input into a {@link Model}, reusing the models of unchanged request blocks,
+   * e.g. when re-parsing a file after an edit.
+   * The input is split on ### lines like when parsing a file in parallel,
+   * and only the blocks that aren't keys in the cache are parsed.
+   * Afterwards, the cache holds the models of the blocks of this input.
+   *
+   * @param input the input to parse
+   * @param blockCache the models of previously parsed blocks, with the block text as key
+   * @return the resulting model
+   */
+  public Model parse(String input, Map<String, Model> blockCache) {
+    var content = ByteBuffer.wrap(input.getBytes(StandardCharsets.UTF_8));
+    var separators = findRequestSeparators(content);
+    Map<String, Model> blockModels = new HashMap<>();
+    List<Variable> fileVariables = new ArrayList<>();
+    List<Request> requests = new ArrayList<>();
+    for (int i = 0; i < separators.length - 1; i++) {
+      var block = StandardCharsets.UTF_8.decode(
+          content.slice(separators[i], separators[i + 1] - separators[i])).toString();
+      // a repeated block is parsed again, so each request is a distinct instance
+      var model = (blockModels.containsKey(block) ? null : blockCache.get(block));
+      if (model == null) {
+        model = parse(block);
+      }
+      blockModels.putIfAbsent(block, model);
+      fileVariables.addAll(model.fileVariables());
+      requests.addAll(model.requests());
+    }
+    blockCache.clear();
+    blockCache.putAll(blockModels);
+    return new Model(fileVariables, requests);
+  }
+
+  // parallel parsing
+
+  /**
+   * Minimum number of bytes parsed as one task, when parsing in parallel.
+   */
+  private static final int PARALLEL_CHUNK_SIZE = 256 * 1024;
+
+  private static final byte[] BOUNDARY_PARAMETER = "boundary=".getBytes(StandardCharsets.US_ASCII);
+
+  private static boolean isBlank(ByteBuffer content, int start, int end) {
+    for (int pos = start; pos < end; pos++) {
+      if (!isWhitespace(content.get(pos))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\t' || b == '\r';
+  }
+
+  // the close delimiter of the boundary=... parameter in the line, or null if there is none
+  private static byte[] findCloseDelimiter(ByteBuffer content, int start, int end) {
+    for (int pos = start; pos <= end - BOUNDARY_PARAMETER.length; pos++) {
+      int length = 0;
+      while (length < BOUNDARY_PARAMETER.length
+          && Character.toLowerCase(content.get(pos + length)) == BOUNDARY_PARAMETER[length]) {
+        length++;
+      }
+      if (length == BOUNDARY_PARAMETER.length) {
+        int valueStart = pos + length;
+        int valueEnd = valueStart;
+        while (valueEnd < end && content.get(valueEnd) != ';') {
+          valueEnd++;
+        }
+        while (valueStart < valueEnd && isWhitespace(content.get(valueStart))) {
+          valueStart++;
+        }
+        while (valueEnd > valueStart && isWhitespace(content.get(valueEnd - 1))) {
+          valueEnd--;
+        }
+        if (valueEnd - valueStart >= 2 && content.get(valueStart) == '"'
+            && content.get(valueEnd - 1) == '"') {
+          valueStart++;
+          valueEnd--;
+        }
+        var boundary = StandardCharsets.UTF_8.decode(
+            content.slice(valueStart, valueEnd - valueStart));
+        return ("--" + boundary + "--").getBytes(StandardCharsets.UTF_8);
+      }
+    }
+    return null;
+  }
+
+  private static boolean trimmedEquals(ByteBuffer content, int start, int end, byte[] bytes) {
+    while (start < end && isWhitespace(content.get(start))) {
+      start++;
+    }
+    while (end > start && isWhitespace(content.get(end - 1))) {
+      end--;
+    }
+    return end - start == bytes.length
+        && content.slice(start, end - start).equals(ByteBuffer.wrap(bytes));
+  }
+
+  /**
+   * Finds the offsets of the lines starting request blocks.
+   * The first element is always 0, and the last one is the size of the content.
+   * Multipart bodies may contain blank lines followed by ###, so after a line with a
+   * boundary parameter, no blocks start until the line with its close delimiter.
+   * This may split less than the state machine would, but never splits a request.
+   */
+  static int[] findRequestSeparators(ByteBuffer content) {
+    int size = content.limit();
+    int[] separators = new int[16];
+    int count = 0;
+    separators[count++] = 0;
+    boolean afterBlank = true;
+    byte[] closeDelimiter = null;
+    int lineStart = 0;
+    while (lineStart < size) {
+      int lineEnd = lineStart;
+      while (lineEnd < size && content.get(lineEnd) != '\n') {
+        lineEnd++;
+      }
+      if (closeDelimiter != null) {
+        if (trimmedEquals(content, lineStart, lineEnd, closeDelimiter)) {
+          closeDelimiter = null;
+        }
+      } else if (afterBlank && lineStart > 0 && lineEnd - lineStart >= 3
+          && content.get(lineStart) == '#' && content.get(lineStart + 1) == '#'
+          && content.get(lineStart + 2) == '#') {
+        if (count == separators.length) {
+          separators = Arrays.copyOf(separators, count * 2);
+        }
+        separators[count++] = lineStart;
+      } else {
+        closeDelimiter = findCloseDelimiter(content, lineStart, lineEnd);
+      }
+      afterBlank = isBlank(content, lineStart, lineEnd);
+      lineStart = lineEnd + 1;
+    }
+    if (count == separators.length) {
+      separators = Arrays.copyOf(separators, count + 1);
+    }
+    separators[count++] = size;
+    return Arrays.copyOf(separators, count);
+  }
+
+  /**
+   * Parses the blocks between separators[from] and separators[to],
+   * splitting into subtasks until the chunk is small enough.
+   */
+  private class ParseTask extends RecursiveTask<Model> {
+
+    private final ByteBuffer content;
+    private final int[] separators;
+    private final int from;
+    private final int to;
+
+    ParseTask(ByteBuffer content, int[] separators, int from, int to) {
+      this.content = content;
+      this.separators = separators;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected Model compute() {
+      int start = separators[from];
+      int end = separators[to];
+      if (to - from <= 1 || end - start <= PARALLEL_CHUNK_SIZE) {
+        var chunk = StandardCharsets.UTF_8.decode(content.slice(start, end - start));
+        return parse(chunk.toString());
+      }
+      int mid = (from + to) >>> 1;
+      var first = new ParseTask(content, separators, from, mid);
+      var second = new ParseTask(content, separators, mid, to);
+      first.fork();
+      var secondModel = second.compute();
+      var firstModel = first.join();
+      List<Variable> fileVariables = new ArrayList<>(firstModel.fileVariables());
+      fileVariables.addAll(secondModel.fileVariables());
+      List<Request> requests = new ArrayList<>(firstModel.requests());
+      requests.addAll(secondModel.requests());
+      return new Model(fileVariables, requests);
+    }
+  }
+
   private static String sample = """
       @baseUrl = https://httpbin.org/post
 
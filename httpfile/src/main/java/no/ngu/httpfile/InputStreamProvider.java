@@ -1,11 +1,24 @@
 package no.ngu.httpfile;
 
+import java.io.ByteArrayInputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Provides input streams for resources.
@@ -20,6 +33,57 @@ public interface InputStreamProvider {
    */
   public InputStream getInputStream(String resource);
 
+  /**
+   * Gets the full content of the given resource.
+   *
+   * @param resource the resource
+   * @return the content, or null if not found
+   * @throws IOException if the resource cannot be read
+   */
+  public default ByteBuffer getContent(String resource) throws IOException {
+    try (var inputStream = getInputStream(resource)) {
+      return (inputStream != null ? ByteBuffer.wrap(inputStream.readAllBytes()) : null);
+    }
+  }
+
+  /**
+   * Gets the full content of the given resource asynchronously.
+   * The default is to read the content synchronously with {@link #getContent(String)}.
+   *
+   * @param resource the resource
+   * @return the future content, completing with null if not found
+   */
+  public default CompletableFuture<ByteBuffer> getContentAsync(String resource) {
+    try {
+      return CompletableFuture.completedFuture(getContent(resource));
+    } catch (IOException ex) {
+      return CompletableFuture.failedFuture(ex);
+    }
+  }
+
+  /**
+   * Gets the path of the given resource, if it is a file,
+   * so its content can be streamed from the file instead of being read into memory.
+   *
+   * @param resource the resource
+   * @return the path of an existing file, or null if the resource isn't a file
+   */
+  public default Path getPath(String resource) {
+    return null;
+  }
+
+  /**
+   * Gets a value identifying the current version of the given resource,
+   * so a cache can tell if previously read content is still valid.
+   * Equal values mean the content has not changed.
+   *
+   * @param resource the resource
+   * @return the version, or null if unknown
+   */
+  public default Object getVersion(String resource) {
+    return null;
+  }
+
   /**
    * Provides input streams for URIs.
    */
@@ -45,6 +109,98 @@ public interface InputStreamProvider {
     public InputStream getInputStream(String resource) {
       return getInputStream(baseUri, resource);
     }
+
+    @Override
+    public Path getPath(String resource) {
+      try {
+        var uri = (baseUri != null ? baseUri.resolve(resource) : URI.create(resource));
+        return ("file".equals(uri.getScheme()) ? File.getPath(Path.of(uri), "") : null);
+      } catch (IllegalArgumentException ex) {
+        return null;
+      }
+    }
+
+    @Override
+    public ByteBuffer getContent(String resource) throws IOException {
+      var uri = (baseUri != null ? baseUri.resolve(resource) : URI.create(resource));
+      try (var inputStream = uri.toURL().openStream()) {
+        return ByteBuffer.wrap(inputStream.readAllBytes());
+      } catch (FileNotFoundException ex) {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Provides content for http: and https: resources asynchronously using an {@link HttpClient},
+   * and delegates all other resources to another provider.
+   */
+  public record Http(HttpClient httpClient, InputStreamProvider provider)
+      implements InputStreamProvider {
+
+    /**
+     * Tells whether the resource is fetched with http.
+     *
+     * @param resource the resource
+     * @return true if the resource is an http: or https: URI
+     */
+    public static boolean isHttp(String resource) {
+      return resource.regionMatches(true, 0, "http:", 0, 5)
+          || resource.regionMatches(true, 0, "https:", 0, 6);
+    }
+
+    @Override
+    public CompletableFuture<ByteBuffer> getContentAsync(String resource) {
+      if (!isHttp(resource)) {
+        return provider.getContentAsync(resource);
+      }
+      var request = HttpRequest.newBuilder(URI.create(resource)).GET().build();
+      return httpClient.sendAsync(request, BodyHandlers.ofByteArray()).thenCompose(response -> {
+        int status = response.statusCode();
+        if (status == 404 || status == 410) {
+          return CompletableFuture.completedFuture(null);
+        } else if (status / 100 != 2) {
+          return CompletableFuture.failedFuture(
+              new IOException("Status " + status + " when fetching " + resource));
+        }
+        return CompletableFuture.completedFuture(ByteBuffer.wrap(response.body()));
+      });
+    }
+
+    @Override
+    public ByteBuffer getContent(String resource) throws IOException {
+      if (!isHttp(resource)) {
+        return provider.getContent(resource);
+      }
+      try {
+        return getContentAsync(resource).join();
+      } catch (CompletionException ex) {
+        throw (ex.getCause() instanceof IOException ioe ? ioe : new IOException(ex.getCause()));
+      }
+    }
+
+    @Override
+    public InputStream getInputStream(String resource) {
+      if (!isHttp(resource)) {
+        return provider.getInputStream(resource);
+      }
+      try {
+        var content = getContent(resource);
+        return (content != null ? new ByteArrayInputStream(content.array()) : null);
+      } catch (IOException ex) {
+        return null;
+      }
+    }
+
+    @Override
+    public Path getPath(String resource) {
+      return (isHttp(resource) ? null : provider.getPath(resource));
+    }
+
+    @Override
+    public Object getVersion(String resource) {
+      return (isHttp(resource) ? null : provider.getVersion(resource));
+    }
   }
 
   /**
@@ -79,6 +235,23 @@ public interface InputStreamProvider {
     public InputStream getInputStream(String resource) {
       return getInputStream(context, basePath, resource);
     }
+
+    /**
+     * Gets the version of the given resource.
+     * Classpath resources never change, so the resource path itself is used.
+     *
+     * @param basePath the base path
+     * @param resource the resource
+     * @return the version
+     */
+    public static Object getVersion(String basePath, String resource) {
+      return (basePath != null ? Path.of(basePath).resolve(resource).toString() : resource);
+    }
+
+    @Override
+    public Object getVersion(String resource) {
+      return getVersion(basePath, resource);
+    }
   }
 
   /**
@@ -109,6 +282,53 @@ public interface InputStreamProvider {
         return null;
       }
     }
+
+    /**
+     * Gets the path of the given file.
+     *
+     * @param basePath the base path
+     * @param file the file
+     * @return the path, or null if it isn't a regular file
+     */
+    public static Path getPath(Path basePath, String file) {
+      var path = basePath.resolve(file);
+      return (Files.isRegularFile(path) ? path : null);
+    }
+
+    @Override
+    public Path getPath(String resource) {
+      return getPath(basePath, resource);
+    }
+
+    /**
+     * The version of a file, i.e. its last modified time and size.
+     *
+     * @param lastModified the last modified time
+     * @param size the size
+     */
+    public record Version(FileTime lastModified, long size) {
+    }
+
+    /**
+     * Gets the version of the given file.
+     *
+     * @param basePath the base path
+     * @param file the file
+     * @return the version, or null if the file cannot be accessed
+     */
+    public static Version getVersion(Path basePath, String file) {
+      try {
+        var attributes = Files.readAttributes(basePath.resolve(file), BasicFileAttributes.class);
+        return new Version(attributes.lastModifiedTime(), attributes.size());
+      } catch (IOException ex) {
+        return null;
+      }
+    }
+
+    @Override
+    public Object getVersion(String resource) {
+      return getVersion(basePath, resource);
+    }
   }
 
   /**
@@ -127,5 +347,137 @@ public interface InputStreamProvider {
         return File.getInputStream(Path.of("./"), resource);
       }
     }
+
+    @Override
+    public Path getPath(String resource) {
+      if (resource.indexOf(':') >= 4) {
+        return new Uri(null).getPath(resource);
+      } else if (resource.startsWith("/")) {
+        return null;
+      } else {
+        return File.getPath(Path.of("./"), resource);
+      }
+    }
+
+    @Override
+    public Object getVersion(String resource) {
+      if (resource.indexOf(':') >= 4) {
+        return null;
+      } else if (resource.startsWith("/")) {
+        return Resource.getVersion(null, resource);
+      } else {
+        return File.getVersion(Path.of("./"), resource);
+      }
+    }
+  }
+
+  /**
+   * Caches the content of the resources provided by another provider,
+   * as shared read-only content.
+   * The cache is bounded by the total size of the content,
+   * and the least recently used content is evicted first.
+   * Content is only cached when the provider can tell its version,
+   * and is reread when the version changes.
+   */
+  public class Cached implements InputStreamProvider {
+
+    private record Entry(Object version, byte[] content) {
+    }
+
+    private final InputStreamProvider provider;
+    private final long maxSize;
+    private long size = 0;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Guards the entries and their size.
+     */
+    private final Lock lock = new ReentrantLock();
+
+    /**
+     * Initializes with the given provider and maximum total size of cached content.
+     *
+     * @param provider the provider of the content
+     * @param maxSize the maximum total size of cached content
+     */
+    public Cached(InputStreamProvider provider, long maxSize) {
+      this.provider = provider;
+      this.maxSize = maxSize;
+    }
+
+    private byte[] getCachedContent(String resource, Object version) {
+      lock.lock();
+      try {
+        var entry = entries.get(resource);
+        return (entry != null && version.equals(entry.version()) ? entry.content() : null);
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    private void putCachedContent(String resource, Object version, byte[] content) {
+      lock.lock();
+      try {
+        var old = entries.put(resource, new Entry(version, content));
+        if (old != null) {
+          size -= old.content().length;
+        }
+        size += content.length;
+        var it = entries.values().iterator();
+        while (size > maxSize && it.hasNext()) {
+          size -= it.next().content().length;
+          it.remove();
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    private byte[] getContentBytes(String resource) throws IOException {
+      var version = provider.getVersion(resource);
+      if (version != null) {
+        var content = getCachedContent(resource, version);
+        if (content != null) {
+          return content;
+        }
+      }
+      byte[] content;
+      try (var inputStream = provider.getInputStream(resource)) {
+        if (inputStream == null) {
+          return null;
+        }
+        content = inputStream.readAllBytes();
+      }
+      if (version != null && content.length <= maxSize) {
+        putCachedContent(resource, version, content);
+      }
+      return content;
+    }
+
+    @Override
+    public InputStream getInputStream(String resource) {
+      try {
+        var content = getContentBytes(resource);
+        return (content != null ? new ByteArrayInputStream(content) : null);
+      } catch (IOException ex) {
+        return null;
+      }
+    }
+
+    @Override
+    public ByteBuffer getContent(String resource) throws IOException {
+      var content = getContentBytes(resource);
+      return (content != null ? ByteBuffer.wrap(content).asReadOnlyBuffer() : null);
+    }
+
+    @Override
+    public Path getPath(String resource) {
+      return provider.getPath(resource);
+    }
+
+    @Override
+    public Object getVersion(String resource) {
+      return provider.getVersion(resource);
+    }
   }
 }
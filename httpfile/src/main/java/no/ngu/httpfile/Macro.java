@@ -1,5 +1,9 @@
 package no.ngu.httpfile;
 
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalUnit;
+import java.util.List;
+
 /**
  * The supported macros in the form of {{$macroName [arg1 arg2 ...]}}.
  */
@@ -17,7 +21,9 @@ public enum Macro {
   // {{$processEnv [%]envVarName}}
   processEnv(1),
   // {{$dotenv [%]variableName}}
-  dotenv(1)
+  dotenv(1),
+  // {{$oauth2Token [new] [prefix]}}, configured by variables prefix.tokenEndpoint etc.
+  oauth2Token(0, 2)
   // {{$aadToken [new] [public|cn|de|us|ppe] [<domain|tenantId>] [aud:<domain|tenantId>]}}
   // NYI
   ;
@@ -40,4 +46,102 @@ public enum Macro {
   private Macro(int numArgs) {
     this(numArgs, numArgs);
   }
-}
\ No newline at end of file
+
+  /**
+   * The arguments of a macro call, parsed once when the template is parsed.
+   */
+  public sealed interface Binding {
+
+    /**
+     * No arguments.
+     */
+    public record None() implements Binding {
+    }
+
+    /**
+     * A range of integers, with exclusive max.
+     */
+    public record Range(int min, int max) implements Binding {
+    }
+
+    /**
+     * An offset from now.
+     */
+    public record Offset(int offset, TemporalUnit unit) implements Binding {
+    }
+
+    /**
+     * A date time format and an offset from now.
+     */
+    public record Format(String format, int offset, TemporalUnit unit) implements Binding {
+    }
+
+    /**
+     * A variable name.
+     */
+    public record Name(String name) implements Binding {
+    }
+
+    /**
+     * Whether to force a new token, and the prefix of the variables configuring it.
+     */
+    public record Auth(boolean forceNew, String prefix) implements Binding {
+    }
+  }
+
+  /**
+   * Parses and validates the arguments for this macro.
+   *
+   * @param args the arguments
+   * @return the parsed arguments
+   * @throws IllegalArgumentException if the arguments are not valid for this macro
+   */
+  public Binding bind(List<String> args) throws IllegalArgumentException {
+    if (args.size() < minArgs || args.size() > maxArgs) {
+      throw new IllegalArgumentException("$" + name() + " expects " + minArgs
+          + (maxArgs > minArgs ? " to " + maxArgs : "") + " arguments, but got " + args);
+    }
+    return switch (this) {
+      case guid -> new Binding.None();
+      case randomInt -> new Binding.Range(intArg(0, args, 0), intArg(1, args, 0));
+      case timestamp -> new Binding.Offset(intArg(0, args, 0), getTemporalUnit(arg(1, args)));
+      case datetime, localDatetime -> new Binding.Format(arg(0, args),
+          intArg(1, args, 0), getTemporalUnit(arg(2, args)));
+      case processEnv, dotenv -> {
+        var name = args.get(0);
+        yield new Binding.Name(name.startsWith("%") ? name.substring(1) : name);
+      }
+      case oauth2Token -> {
+        boolean forceNew = "new".equals(arg(0, args));
+        var prefix = arg(forceNew ? 1 : 0, args);
+        if (!forceNew && args.size() > 1) {
+          throw new IllegalArgumentException("$" + name() + " expects [new] [prefix], but got "
+              + args);
+        }
+        yield new Binding.Auth(forceNew, prefix != null ? prefix : "oauth2");
+      }
+    };
+  }
+
+  private static String arg(int n, List<String> args) {
+    return args.size() > n ? args.get(n) : null;
+  }
+
+  private static int intArg(int n, List<String> args, int def) {
+    return args.size() > n ? Integer.parseInt(args.get(n)) : def;
+  }
+
+  private static TemporalUnit getTemporalUnit(String unit) {
+    return switch (unit) {
+      case null -> ChronoUnit.SECONDS;
+      case "s" -> ChronoUnit.SECONDS;
+      case "m" -> ChronoUnit.MINUTES;
+      case "h" -> ChronoUnit.HOURS;
+      case "d" -> ChronoUnit.DAYS;
+      case "w" -> ChronoUnit.WEEKS;
+      case "M" -> ChronoUnit.MONTHS;
+      case "ms" -> ChronoUnit.MILLIS;
+      default -> throw new IllegalArgumentException("Unknown temporal unit: " + unit);
+    };
+  }
+}
@@ -5,21 +5,57 @@ import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
-import java.time.temporal.ChronoUnit;
-import java.time.temporal.TemporalUnit;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.SplittableRandom;
 import java.util.UUID;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Function;
+import java.util.random.RandomGenerator;
+import no.ngu.httpfile.Macro.Binding;
+import no.ngu.httpfile.auth.Oauth2Config;
+import no.ngu.httpfile.auth.TokenStore;
 
 /**
  * Provides values for macros in the form of {{$macroName [arg1 arg2 ...]}}.
+ * Safe for concurrent use, e.g. from many virtual threads.
  */
 public class MacroValueProvider {
 
   private InputStreamProvider inputStreamProvider;
 
-  private Properties envProps = null;
+  private StringValueProvider stringValueProvider = null;
+
+  private TokenStore tokenStore = TokenStore.getDefault();
+
+  private volatile Properties envProps = null;
+
+  /**
+   * Root random generator for reproducible runs, or null to use {@link ThreadLocalRandom}.
+   * Each thread gets its own generator split from the root, in the order they first need one,
+   * so threads don't contend for a shared generator.
+   */
+  private final SplittableRandom seededRandom;
+
+  private final ThreadLocal<SplittableRandom> threadRandom =
+      ThreadLocal.withInitial(this::splitSeededRandom);
+
+  /**
+   * Guards splitting the (non thread-safe) seeded random generator,
+   * and the lazy loading of the env properties.
+   */
+  private final Lock lock = new ReentrantLock();
+
+  /**
+   * Formatters for the patterns used in datetime macros, shared by all providers.
+   */
+  private static final Map<String, DateTimeFormatter> dateTimeFormatters =
+      new ConcurrentHashMap<>();
 
   /**
    * Initializes with the given InputStreamProvider.
@@ -28,18 +64,94 @@ public class MacroValueProvider {
    */
   public MacroValueProvider(InputStreamProvider inputStreamProvider) {
     this.inputStreamProvider = inputStreamProvider;
+    this.seededRandom = null;
+  }
+
+  /**
+   * Initializes with the given InputStreamProvider and seed for random values,
+   * so runs can be reproduced.
+   *
+   * @param inputStreamProvider the InputStreamProvider
+   * @param seed the seed for random values
+   */
+  public MacroValueProvider(InputStreamProvider inputStreamProvider, long seed) {
+    this.inputStreamProvider = inputStreamProvider;
+    this.seededRandom = new SplittableRandom(seed);
+  }
+
+  /**
+   * Sets the StringValueProvider used for looking up configuration, e.g. for tokens.
+   *
+   * @param stringValueProvider the StringValueProvider
+   */
+  public void setStringValueProvider(StringValueProvider stringValueProvider) {
+    this.stringValueProvider = stringValueProvider;
+  }
+
+  /**
+   * Sets the store for the tokens provided by {{$oauth2Token}},
+   * by default the store shared by the JVM.
+   *
+   * @param tokenStore the TokenStore
+   */
+  public void setTokenStore(TokenStore tokenStore) {
+    this.tokenStore = tokenStore;
+  }
+
+  private String getConfigValue(String name) {
+    if (stringValueProvider == null) {
+      return null;
+    }
+    try {
+      return stringValueProvider.getStringValue(name);
+    } catch (RuntimeException ex) {
+      // traversal of missing results
+      return null;
+    }
   }
 
   private Properties getEnvProps() {
-    if (envProps == null) {
-      envProps = new Properties();
-      try (var inputStream = inputStreamProvider.getInputStream(".env")) {
-        envProps.load(inputStream);
-      } catch (IOException e) {
-        // ignore
+    var props = envProps;
+    if (props == null) {
+      lock.lock();
+      try {
+        if (envProps == null) {
+          props = new Properties();
+          try (var inputStream = inputStreamProvider.getInputStream(".env")) {
+            if (inputStream != null) {
+              props.load(inputStream);
+            }
+          } catch (IOException e) {
+            // ignore
+          }
+          envProps = props;
+        }
+        props = envProps;
+      } finally {
+        lock.unlock();
       }
     }
-    return envProps;
+    return props;
+  }
+
+  private SplittableRandom splitSeededRandom() {
+    lock.lock();
+    try {
+      return seededRandom.split();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private <T> T withRandom(Function<RandomGenerator, T> fun) {
+    return fun.apply(seededRandom != null ? threadRandom.get() : ThreadLocalRandom.current());
+  }
+
+  private static UUID randomUuid(RandomGenerator random) {
+    // set the version (4) and variant (IETF) bits, like UUID.randomUUID
+    long msb = (random.nextLong() & ~0xf000L) | 0x4000L;
+    long lsb = (random.nextLong() & 0x3fffffffffffffffL) | 0x8000000000000000L;
+    return new UUID(msb, lsb);
   }
 
   /**
@@ -61,94 +173,83 @@ public class MacroValueProvider {
    * @return the value of the macro application
    */
   public String applyMacro(Macro macro, List<String> args) {
+    return applyMacro(macro, macro.bind(args));
+  }
+
+  /**
+   * Applies the given macro with the given pre-parsed arguments.
+   *
+   * @param macro the macro
+   * @param binding the arguments, as returned by {@link Macro#bind(List)}
+   * @return the value of the macro application
+   */
+  public String applyMacro(Macro macro, Binding binding) {
     return switch (macro) {
       // {{$guid}}
-      case guid -> UUID.randomUUID().toString();
+      case guid -> withRandom(MacroValueProvider::randomUuid).toString();
       // {{$randomInt min max}}
       case randomInt -> {
-        int min = Integer.parseInt(args.get(0));
-        int max = Integer.parseInt(args.get(1));
-        yield Integer.toString(min + (int) (Math.random() * (max - min)));
+        var range = (Binding.Range) binding;
+        int value = (range.max() > range.min()
+            ? withRandom(random -> random.nextInt(range.min(), range.max()))
+            : range.min());
+        yield Integer.toString(value);
       }
       // {{$timestamp [offset option]}}
       case timestamp -> {
-        int offset = arg(0, args, Integer::parseInt, 0);
-        TemporalUnit unit = getTemporalUnit(arg(1, args, "s"));
-        var datetime = LocalDateTime.now().plus(offset, unit);
+        var offset = (Binding.Offset) binding;
+        var datetime = LocalDateTime.now().plus(offset.offset(), offset.unit());
         var timestamp = datetime.toEpochSecond(ZoneOffset.ofTotalSeconds(0));
         yield String.valueOf(timestamp);
       }
       // {{$datetime rfc1123|iso8601 [offset option]}}
       case datetime -> {
-        DateTimeFormatter formatter = getDateTimeFormatter(arg(0, args),
+        var format = (Binding.Format) binding;
+        DateTimeFormatter formatter = getDateTimeFormatter(format.format(),
             DateTimeFormatter.ISO_DATE_TIME);
-        int offset = arg(1, args, Integer::parseInt, 0);
-        TemporalUnit unit = getTemporalUnit(arg(2, args, "s"));
-        var datetime = ZonedDateTime.now().plus(offset, unit);
+        var datetime = ZonedDateTime.now().plus(format.offset(), format.unit());
         yield formatter.format(datetime.withNano(0));
       }
       // {{$localDatetime rfc1123|iso8601 [offset option]}}
       case localDatetime -> {
-        DateTimeFormatter formatter = getDateTimeFormatter(arg(0, args),
+        var format = (Binding.Format) binding;
+        DateTimeFormatter formatter = getDateTimeFormatter(format.format(),
             DateTimeFormatter.ISO_LOCAL_DATE_TIME);
-        int offset = arg(1, args, Integer::parseInt, 0);
-        TemporalUnit unit = getTemporalUnit(arg(2, args, "s"));
-        var datetime = LocalDateTime.now().plus(offset, unit);
+        var datetime = LocalDateTime.now().plus(format.offset(), format.unit());
         yield formatter.format(datetime.withNano(0));
       }
       // {{$processEnv [%]envVarName}}
       case processEnv -> {
-        var envVarName = args.get(0);
-        if (envVarName.startsWith("%")) {
-          envVarName = envVarName.substring(1);
-        }
+        var envVarName = ((Binding.Name) binding).name();
         var envVarValue = System.getenv(envVarName);
         yield envVarValue != null ? envVarValue : envVarName;
       }
       // {{$dotenv [%]variableName}}
       case dotenv -> {
-        var envVarName = args.get(0);
-        if (envVarName.startsWith("%")) {
-          envVarName = envVarName.substring(1);
-        }
+        var envVarName = ((Binding.Name) binding).name();
         yield getEnvProps().getProperty(envVarName, envVarName);
       }
+      // {{$oauth2Token [new] [prefix]}}
+      case oauth2Token -> {
+        var auth = (Binding.Auth) binding;
+        var config = Oauth2Config.of(auth.prefix(), this::getConfigValue);
+        try {
+          yield tokenStore.getAccessToken(config, auth.forceNew());
+        } catch (CompletionException ex) {
+          throw new IllegalStateException("Couldn't get token from " + config.tokenEndpoint()
+              + ": " + ex.getCause().getMessage(), ex.getCause());
+        }
+      }
     };
   }
 
-  private static String arg(int n, List<String> args, String def) {
-    return args.size() > n ? args.get(n) : def;
-  }
-
-  private static String arg(int n, List<String> args) {
-    return arg(n, args, null);
-  }
-
-  private static <T> T arg(int n, List<String> args, Function<String, T> mapper, T def) {
-    return args.size() > n ? mapper.apply(args.get(n)) : def;
-  }
-
   private static DateTimeFormatter getDateTimeFormatter(String format,
       DateTimeFormatter isoFormatter) {
     return switch (format) {
       case null -> isoFormatter;
       case "rfc1123" -> DateTimeFormatter.RFC_1123_DATE_TIME;
       case "iso8601" -> isoFormatter;
-      default -> DateTimeFormatter.ofPattern(format);
-    };
-  }
-
-  private static TemporalUnit getTemporalUnit(String unit) {
-    return switch (unit) {
-      case null -> ChronoUnit.SECONDS;
-      case "s" -> ChronoUnit.SECONDS;
-      case "m" -> ChronoUnit.MINUTES;
-      case "h" -> ChronoUnit.HOURS;
-      case "d" -> ChronoUnit.DAYS;
-      case "w" -> ChronoUnit.WEEKS;
-      case "M" -> ChronoUnit.MONTHS;
-      case "ms" -> ChronoUnit.MILLIS;
-      default -> throw new IllegalArgumentException("Unknown temporal unit: " + unit);
+      default -> dateTimeFormatters.computeIfAbsent(format, DateTimeFormatter::ofPattern);
     };
   }
 }
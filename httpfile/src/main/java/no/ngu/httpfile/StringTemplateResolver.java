@@ -1,6 +1,12 @@
 package no.ngu.httpfile;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.function.BiConsumer;
 import no.ngu.httpfile.HttpFile.Model;
 import no.ngu.httpfile.HttpFile.StringTemplate.Part;
@@ -31,10 +37,35 @@ public class StringTemplateResolver {
     this.stringValueProvider = stringValueProvider;
     this.inputStreamProvider = inputStreamProvider;
     this.macroValueProvider = new MacroValueProvider(inputStreamProvider);
+    this.macroValueProvider.setStringValueProvider(stringValueProvider);
   }
 
+  /**
+   * Sets the StringValueProvider, also used by the MacroValueProvider.
+   *
+   * @param stringValueProvider the StringValueProvider
+   */
   public void setStringValueProvider(StringValueProvider stringValueProvider) {
     this.stringValueProvider = stringValueProvider;
+    if (macroValueProvider != null) {
+      macroValueProvider.setStringValueProvider(stringValueProvider);
+    }
+  }
+
+  /**
+   * Creates a resolver with another StringValueProvider, e.g. for use on another thread.
+   * The InputStreamProvider and MacroValueProvider are shared,
+   * and the MacroValueProvider keeps its StringValueProvider.
+   *
+   * @param stringValueProvider the StringValueProvider of the new resolver
+   * @return the new resolver
+   */
+  public StringTemplateResolver withStringValueProvider(StringValueProvider stringValueProvider) {
+    var resolver = new StringTemplateResolver();
+    resolver.stringValueProvider = stringValueProvider;
+    resolver.inputStreamProvider = inputStreamProvider;
+    resolver.macroValueProvider = macroValueProvider;
+    return resolver;
   }
 
   /**
@@ -44,7 +75,69 @@ public class StringTemplateResolver {
    */
   public void setInputStreamProvider(InputStreamProvider inputStreamProvider) {
     this.inputStreamProvider = inputStreamProvider;
-    this.macroValueProvider = new MacroValueProvider(inputStreamProvider);
+    setMacroValueProvider(new MacroValueProvider(inputStreamProvider));
+  }
+
+  /**
+   * Sets the MacroValueProvider, and initializes it with the StringValueProvider.
+   *
+   * @param macroValueProvider the MacroValueProvider
+   */
+  public void setMacroValueProvider(MacroValueProvider macroValueProvider) {
+    this.macroValueProvider = macroValueProvider;
+    macroValueProvider.setStringValueProvider(stringValueProvider);
+  }
+
+  private String getContentString(ByteBuffer content, HttpFile.StringTemplate resource) {
+    return (content != null
+        ? Charset.defaultCharset().decode(content).toString()
+        : "Resource '" + resource + "' not found");
+  }
+
+  /**
+   * Expands the given part of a string template.
+   *
+   * @param part the part
+   * @return the expanded string
+   */
+  public String toString(Part part) {
+    return switch (part) {
+      case Part.Constant constant -> constant.value();
+      case Part.VariableRef(var name) -> stringValueProvider.getStringValue(name);
+      case Part.MacroCall(var macro, var args, var binding) -> {
+        try {
+          yield macroValueProvider.applyMacro(macro, binding);
+        } catch (Exception e) {
+          yield e.getMessage();
+        }
+      }
+      case Part.ResourceRef resourceRef -> {
+        var resource = toString(resourceRef.resource());
+        try {
+          yield getContentString(inputStreamProvider.getContent(resource),
+              resourceRef.resource());
+        } catch (IOException e) {
+          yield e.getMessage();
+        }
+      }
+    };
+  }
+
+  /**
+   * Expands each part of the string template and returns the result.
+   *
+   * @param stringTemplate the StringTemplate
+   * @return the expanded string
+   */
+  public String toString(HttpFile.StringTemplate stringTemplate) {
+    var parts = stringTemplate.parts();
+    if (parts.size() == 1 && parts.get(0) instanceof Part.Constant(var value)) {
+      // e.g. resolved ahead of time
+      return value;
+    }
+    StringBuffer buffer = new StringBuffer();
+    toStringBuffer(stringTemplate, buffer);
+    return buffer.toString();
   }
 
   /**
@@ -57,35 +150,62 @@ public class StringTemplateResolver {
   public void forEach(HttpFile.StringTemplate stringTemplate,
       BiConsumer<Integer, String> consumer) {
     for (int index = 0; index < stringTemplate.parts().size(); index++) {
-      var s = switch (stringTemplate.parts().get(index)) {
-        case Part.Constant constant -> constant.value();
-        case Part.VariableRef(var name) -> stringValueProvider.getStringValue(name);
-        case Part.MacroCall(var macro, var args) -> {
-          try {
-            yield macroValueProvider.applyMacro(macro, args);
-          } catch (Exception e) {
-            yield e.getMessage();
-          }
-        }
-        case Part.ResourceRef resourceRef -> {
-          var resource = toString(resourceRef.resource());
-          try (var inputStream = inputStreamProvider.getInputStream(resource)) {
-            if (inputStream == null) {
-              yield "Resource '" + resourceRef.resource() + "' not found";
-            } else {
-              yield new String(inputStream.readAllBytes());
-            }
-          } catch (IOException e) {
-            yield e.getMessage();
-          }
-        }
-        // shouldn't need this one, it's already exhaustive
-        default -> null;
-      };
-      consumer.accept(index, s);
+      consumer.accept(index, toString(stringTemplate.parts().get(index)));
     }
   }
 
+  /**
+   * Expands each part of the string template, without waiting for resources.
+   * Resources are fetched concurrently using
+   * {@link InputStreamProvider#getContentAsync(String)},
+   * while the other parts are expanded.
+   *
+   * @param stringTemplate the StringTemplate
+   * @return the future expanded parts, completing when all resources are fetched
+   */
+  public CompletableFuture<List<String>> toStringsAsync(HttpFile.StringTemplate stringTemplate) {
+    var parts = stringTemplate.parts();
+    List<CompletableFuture<String>> futures = new ArrayList<>(parts.size());
+    for (var part : parts) {
+      futures.add(part instanceof Part.ResourceRef resourceRef
+          ? toStringAsync(resourceRef)
+          : CompletableFuture.completedFuture(toString(part)));
+    }
+    return CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new))
+        .thenApply(ignore -> futures.stream().map(CompletableFuture::join).toList());
+  }
+
+  private CompletableFuture<String> toStringAsync(Part.ResourceRef resourceRef) {
+    var resource = toString(resourceRef.resource());
+    return inputStreamProvider.getContentAsync(resource).handle((content, ex) -> {
+      if (ex != null) {
+        var cause = (ex instanceof CompletionException && ex.getCause() != null
+            ? ex.getCause() : ex);
+        return cause.getMessage();
+      }
+      return getContentString(content, resourceRef.resource());
+    });
+  }
+
+  /**
+   * Expands the string template, without waiting for resources.
+   *
+   * @param stringTemplate the StringTemplate
+   * @return the future expanded string
+   * @see #toStringsAsync(HttpFile.StringTemplate)
+   */
+  public CompletableFuture<String> toStringAsync(HttpFile.StringTemplate stringTemplate) {
+    return toStringsAsync(stringTemplate).thenApply(strings -> {
+      var buffer = new StringBuilder();
+      for (var s : strings) {
+        if (s != null) {
+          buffer.append(s);
+        }
+      }
+      return buffer.toString();
+    });
+  }
+
   /**
    * Expands each part of the string template and appends it to the buffer.
    *
@@ -100,41 +220,106 @@ public class StringTemplateResolver {
     });
   }
 
-  /**
-   * Expands each part of the string template and returns the result.
-   *
-   * @param stringTemplate the StringTemplate
-   * @return the expanded string
-   */
-  public String toString(HttpFile.StringTemplate stringTemplate) {
-    StringBuffer buffer = new StringBuffer();
-    toStringBuffer(stringTemplate, buffer);
-    return buffer.toString();
+  // guards against cyclic variable references
+  private static final int MAX_VARIABLE_DEPTH = 100;
+
+  private static void addResolved(List<Part> parts, Part part) {
+    if (part instanceof Part.Constant(var value)
+        && !parts.isEmpty() && parts.getLast() instanceof Part.Constant(var previous)) {
+      parts.set(parts.size() - 1, new Part.Constant(previous + value));
+    } else {
+      parts.add(part);
+    }
+  }
+
+  private void resolve(HttpFile.StringTemplate stringTemplate, List<Part> parts, int depth) {
+    for (var part : stringTemplate.parts()) {
+      switch (part) {
+        case Part.Constant constant -> addResolved(parts, constant);
+        // macros generate new values each time
+        case Part.MacroCall macroCall -> parts.add(macroCall);
+        case Part.VariableRef(var name) -> {
+          var template = stringValueProvider.getStringTemplate(name);
+          if (template == null) {
+            // e.g. response data, only known when performing requests
+            parts.add(part);
+          } else if (depth >= MAX_VARIABLE_DEPTH) {
+            throw new IllegalArgumentException("Too deeply nested reference to " + name);
+          } else {
+            // inline the variable, so its macros and response references are kept
+            resolve(template, parts, depth + 1);
+          }
+        }
+        case Part.ResourceRef(var resource) -> {
+          var resolvedResource = resolve(resource);
+          addResolved(parts, resolvedResource.constantValue() != null
+              ? new Part.Constant(toString(new Part.ResourceRef(resolvedResource)))
+              : new Part.ResourceRef(resolvedResource));
+        }
+      }
+    }
   }
 
   /**
-   * Replaces each part of the string template with the expanded string.
+   * Creates a new string template, with all parts that can be expanded ahead of time
+   * replaced by constants, and adjacent constants merged.
+   * Macro calls and references to values that are only known
+   * when requests are performed are kept.
+   * Variables are inlined, so their dynamic parts are kept, too.
    *
    * @param stringTemplate the StringTemplate
+   * @return the resolved StringTemplate
    */
-  public void resolve(HttpFile.StringTemplate stringTemplate) {
-    forEach(stringTemplate, (i, s) -> stringTemplate.parts().set(i, new Part.Constant(s)));
+  public HttpFile.StringTemplate resolve(HttpFile.StringTemplate stringTemplate) {
+    if (stringTemplate == null) {
+      return null;
+    }
+    List<Part> parts = new ArrayList<>(stringTemplate.parts().size());
+    resolve(stringTemplate, parts, 0);
+    return new HttpFile.StringTemplate(List.copyOf(parts));
   }
 
   /**
-   * Resolves all string templates in the model.
+   * Creates a new immutable model, with all string templates in the requests resolved,
+   * so it can be performed repeatedly without expanding the same parts each time.
    *
    * @param model the model
+   * @return the resolved model
+   * @see #resolve(HttpFile.StringTemplate)
    */
-  public void resolve(Model model) {
+  public Model resolve(Model model) {
+    List<HttpFile.Request> requests = new ArrayList<>(model.requests().size());
     for (var request : model.requests()) {
-      resolve(request.target());
+      List<HttpFile.Header> headers = new ArrayList<>(request.headers().size());
       for (var header : request.headers()) {
-        resolve(header.value());
+        headers.add(new HttpFile.Header(resolve(header.name()), resolve(header.value())));
       }
-      if (request.body() != null) {
-        resolve(request.body().content());
+      requests.add(new HttpFile.Request(List.copyOf(request.requestProperties()),
+          request.method(), resolve(request.target()), resolve(request.version()),
+          List.copyOf(headers), resolve(request.body())));
+    }
+    return new Model(List.copyOf(model.fileVariables()), List.copyOf(requests));
+  }
+
+  private HttpFile.Body resolve(HttpFile.Body body) {
+    if (body == null || !body.isMultipart()) {
+      return (body != null
+          ? new HttpFile.Body(body.contentType(), resolve(body.content())) : null);
+    }
+    List<HttpFile.Body.Part> parts = new ArrayList<>(body.parts().size());
+    for (var part : body.parts()) {
+      List<HttpFile.Header> headers = new ArrayList<>(part.headers().size());
+      for (var header : part.headers()) {
+        headers.add(new HttpFile.Header(resolve(header.name()), resolve(header.value())));
       }
+      // file content is streamed when sent, so only the resource is resolved
+      var resourceRef = part.resourceRef();
+      var content = (resourceRef != null
+          ? new HttpFile.StringTemplate(List.of(
+              new Part.ResourceRef(resolve(resourceRef.resource()))))
+          : resolve(part.content()));
+      parts.add(new HttpFile.Body.Part(List.copyOf(headers), content));
     }
+    return new HttpFile.Body(body.contentType(), List.copyOf(parts));
   }
 }
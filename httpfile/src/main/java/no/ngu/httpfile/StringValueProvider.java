@@ -21,6 +21,18 @@ public interface StringValueProvider {
    */
   public String getStringValue(String name);
 
+  /**
+   * Gets the template of the value for the given name, for resolving it ahead of time.
+   * Values that are only known when requests are performed, e.g. response data, have none.
+   *
+   * @param name the name
+   * @return the template, or null if not found or not known ahead of time
+   */
+  public default HttpFile.StringTemplate getStringTemplate(String name) {
+    var value = getStringValue(name);
+    return (value != null ? HttpFile.StringTemplate.constant(value) : null);
+  }
+
   /**
    * StringValueProvider that looks up name in a list of variables.
    * Uses a template value provider to expand variable values.
@@ -39,6 +51,16 @@ public interface StringValueProvider {
       }
       return null;
     }
+
+    @Override
+    public HttpFile.StringTemplate getStringTemplate(String name) {
+      for (var variable : variables) {
+        if (name.equals(variable.name())) {
+          return variable.value();
+        }
+      }
+      return null;
+    }
   }
 
   /**
@@ -56,6 +78,12 @@ public interface StringValueProvider {
       }
       return null;
     }
+
+    @Override
+    public HttpFile.StringTemplate getStringTemplate(String path) {
+      // the data may change as requests are performed
+      return null;
+    }
   }
 
   /**
@@ -122,5 +150,16 @@ public interface StringValueProvider {
       }
       return null;
     }
+
+    @Override
+    public HttpFile.StringTemplate getStringTemplate(String name) {
+      for (var provider : providers) {
+        var template = provider.getStringTemplate(name);
+        if (template != null) {
+          return template;
+        }
+      }
+      return null;
+    }
   }
 }
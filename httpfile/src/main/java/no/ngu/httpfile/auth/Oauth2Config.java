@@ -0,0 +1,85 @@
+package no.ngu.httpfile.auth;
+
+import java.net.URI;
+import java.util.function.Function;
+
+/**
+ * Configuration of an OAuth2 token request,
+ * using the client credentials or password grant.
+ *
+ * @param tokenEndpoint the token endpoint
+ * @param grantType the grant type, client_credentials or password
+ * @param clientId the client id
+ * @param clientSecret the client secret, or null
+ * @param scope the scope, or null
+ * @param username the username, for the password grant
+ * @param password the password, for the password grant
+ */
+public record Oauth2Config(URI tokenEndpoint, String grantType, String clientId,
+    String clientSecret, String scope, String username, String password) {
+
+  /**
+   * The client credentials grant type.
+   */
+  public static final String CLIENT_CREDENTIALS = "client_credentials";
+
+  /**
+   * The password grant type.
+   */
+  public static final String PASSWORD = "password";
+
+  /**
+   * Convenience constructor for the client credentials grant.
+   *
+   * @param tokenEndpoint the token endpoint
+   * @param clientId the client id
+   * @param clientSecret the client secret
+   * @param scope the scope, or null
+   */
+  public Oauth2Config(URI tokenEndpoint, String clientId, String clientSecret, String scope) {
+    this(tokenEndpoint, CLIENT_CREDENTIALS, clientId, clientSecret, scope, null, null);
+  }
+
+  /**
+   * The key of tokens for a configuration.
+   * Configurations with the same key share tokens.
+   */
+  public record Key(URI tokenEndpoint, String clientId, String scope, String username) {
+  }
+
+  /**
+   * Gets the key of tokens for this configuration.
+   *
+   * @return the key
+   */
+  public Key key() {
+    return new Key(tokenEndpoint, clientId, scope, username);
+  }
+
+  /**
+   * Creates a configuration from values looked up by name, e.g. variables.
+   * The names are the prefix followed by .tokenEndpoint, .grantType, .clientId, .clientSecret,
+   * .scope, .username and .password. The grant type defaults to client_credentials,
+   * or password, if a username is provided.
+   *
+   * @param prefix the prefix of the names
+   * @param values function for looking up values, returning null if missing
+   * @return the configuration
+   * @throws IllegalArgumentException if the token endpoint is missing
+   */
+  public static Oauth2Config of(String prefix, Function<String, String> values)
+      throws IllegalArgumentException {
+    var tokenEndpoint = values.apply(prefix + ".tokenEndpoint");
+    if (tokenEndpoint == null) {
+      throw new IllegalArgumentException("No " + prefix + ".tokenEndpoint");
+    }
+    var username = values.apply(prefix + ".username");
+    var grantType = values.apply(prefix + ".grantType");
+    if (grantType == null) {
+      grantType = (username != null ? PASSWORD : CLIENT_CREDENTIALS);
+    }
+    return new Oauth2Config(URI.create(tokenEndpoint), grantType,
+        values.apply(prefix + ".clientId"), values.apply(prefix + ".clientSecret"),
+        values.apply(prefix + ".scope"), username, values.apply(prefix + ".password"));
+  }
+}
@@ -0,0 +1,217 @@
+package no.ngu.httpfile.auth;
+
+import jakarta.json.Json;
+import jakarta.json.JsonNumber;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Thread-safe store of OAuth2 access tokens, keyed by {@link Oauth2Config.Key}.
+ * Tokens are refreshed ahead of expiry, in the background,
+ * and concurrent requests for a token share a single in-flight fetch.
+ */
+public class TokenStore {
+
+  /**
+   * An access token.
+   *
+   * @param accessToken the access token
+   * @param tokenType the token type, e.g. Bearer
+   * @param expiresAt when the token expires
+   */
+  public record Token(String accessToken, String tokenType, Instant expiresAt) {
+  }
+
+  private static class Entry {
+    final AtomicReference<Token> token = new AtomicReference<>();
+    final AtomicReference<CompletableFuture<Token>> inFlight = new AtomicReference<>();
+  }
+
+  // created when first used, by the class loader
+  private static class DefaultHolder {
+    static final TokenStore DEFAULT = new TokenStore();
+  }
+
+  /**
+   * Gets the store shared by all clients in the JVM.
+   *
+   * @return the shared store
+   */
+  public static TokenStore getDefault() {
+    return DefaultHolder.DEFAULT;
+  }
+
+  private final Map<Oauth2Config.Key, Entry> entries = new ConcurrentHashMap<>();
+  private final Function<Oauth2Config, CompletableFuture<Token>> tokenFetcher;
+  private final Duration refreshAhead;
+  private final Clock clock;
+
+  private final Lock lock = new ReentrantLock();
+  private HttpClient httpClient = null;
+
+  /**
+   * Initializes with the given token fetcher, refresh margin and clock.
+   *
+   * @param tokenFetcher fetches a new token for a configuration
+   * @param refreshAhead how long before expiry a token is refreshed
+   * @param clock the clock for checking expiry
+   */
+  public TokenStore(Function<Oauth2Config, CompletableFuture<Token>> tokenFetcher,
+      Duration refreshAhead, Clock clock) {
+    this.tokenFetcher = (tokenFetcher != null ? tokenFetcher : this::fetchToken);
+    this.refreshAhead = refreshAhead;
+    this.clock = clock;
+  }
+
+  /**
+   * Initializes with token requests to the configured token endpoint,
+   * refreshing tokens 30 seconds before expiry.
+   */
+  public TokenStore() {
+    this(null, Duration.ofSeconds(30), Clock.systemUTC());
+  }
+
+  private HttpClient getHttpClient() {
+    lock.lock();
+    try {
+      if (httpClient == null) {
+        httpClient = HttpClient.newHttpClient();
+      }
+      return httpClient;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private static void addFormParam(StringBuilder form, String name, String value) {
+    if (value != null) {
+      if (!form.isEmpty()) {
+        form.append('&');
+      }
+      form.append(name).append('=').append(URLEncoder.encode(value, StandardCharsets.UTF_8));
+    }
+  }
+
+  /**
+   * Fetches a new token by posting a form to the token endpoint.
+   *
+   * @param config the configuration
+   * @return the future token
+   */
+  public CompletableFuture<Token> fetchToken(Oauth2Config config) {
+    var form = new StringBuilder();
+    addFormParam(form, "grant_type", config.grantType());
+    addFormParam(form, "client_id", config.clientId());
+    addFormParam(form, "client_secret", config.clientSecret());
+    addFormParam(form, "scope", config.scope());
+    addFormParam(form, "username", config.username());
+    addFormParam(form, "password", config.password());
+    var request = HttpRequest.newBuilder(config.tokenEndpoint())
+        .header("Content-Type", "application/x-www-form-urlencoded")
+        .header("Accept", "application/json")
+        .POST(BodyPublishers.ofString(form.toString()))
+        .build();
+    var requestTime = clock.instant();
+    return getHttpClient().sendAsync(request, BodyHandlers.ofString()).thenApply(response -> {
+      if (response.statusCode() / 100 != 2) {
+        throw new CompletionException(new IOException("Status " + response.statusCode()
+            + " from token endpoint " + config.tokenEndpoint() + ": " + response.body()));
+      }
+      var json = Json.createReader(new StringReader(response.body())).readObject();
+      var expiresIn = json.get("expires_in");
+      var expiresAt = (expiresIn instanceof JsonNumber number
+          ? requestTime.plusSeconds(number.longValue())
+          : Instant.MAX);
+      return new Token(json.getString("access_token"),
+          json.getString("token_type", "Bearer"), expiresAt);
+    });
+  }
+
+  private CompletableFuture<Token> refresh(Entry entry, Oauth2Config config) {
+    while (true) {
+      var inFlight = entry.inFlight.get();
+      if (inFlight != null) {
+        return inFlight;
+      }
+      var future = new CompletableFuture<Token>();
+      if (entry.inFlight.compareAndSet(null, future)) {
+        CompletableFuture<Token> fetch;
+        try {
+          fetch = tokenFetcher.apply(config);
+        } catch (RuntimeException e) {
+          // e.g. an invalid token endpoint, fails this and later callers alike
+          fetch = CompletableFuture.failedFuture(e);
+        }
+        fetch.whenComplete((token, ex) -> {
+          if (token != null) {
+            entry.token.set(token);
+          }
+          entry.inFlight.set(null);
+          if (ex != null) {
+            future.completeExceptionally(ex);
+          } else {
+            future.complete(token);
+          }
+        });
+        return future;
+      }
+    }
+  }
+
+  /**
+   * Gets a valid token for the configuration, fetching a new one if needed.
+   * A token that expires soon is returned, but refreshed in the background.
+   *
+   * @param config the configuration
+   * @param forceNew whether to fetch a new token, even if the current one is valid
+   * @return the future token
+   */
+  public CompletableFuture<Token> getToken(Oauth2Config config, boolean forceNew) {
+    var entry = entries.computeIfAbsent(config.key(), key -> new Entry());
+    var token = entry.token.get();
+    var now = clock.instant();
+    if (!forceNew && token != null && now.isBefore(token.expiresAt())) {
+      if (!now.isBefore(token.expiresAt().minus(refreshAhead))) {
+        refresh(entry, config);
+      }
+      return CompletableFuture.completedFuture(token);
+    }
+    return refresh(entry, config);
+  }
+
+  /**
+   * Gets a valid access token for the configuration, waiting for it to be fetched if needed.
+   *
+   * @param config the configuration
+   * @param forceNew whether to fetch a new token, even if the current one is valid
+   * @return the access token
+   * @throws CompletionException if fetching the token failed
+   */
+  public String getAccessToken(Oauth2Config config, boolean forceNew) {
+    return getToken(config, forceNew).join().accessToken();
+  }
+
+  /**
+   * Removes all tokens.
+   */
+  public void clear() {
+    entries.clear();
+  }
+}
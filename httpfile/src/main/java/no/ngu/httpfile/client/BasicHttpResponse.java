@@ -0,0 +1,45 @@
+package no.ngu.httpfile.client;
+
+import java.net.URI;
+import java.net.http.HttpClient.Version;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Optional;
+import javax.net.ssl.SSLSession;
+
+/**
+ * {@link HttpResponse} that wasn't received from the network, e.g. served from a cache.
+ *
+ * @param <T> the body type
+ */
+public record BasicHttpResponse<T>(HttpRequest request, int statusCode, HttpHeaders headers,
+    T body, URI uri, Version version) implements HttpResponse<T> {
+
+  /**
+   * Initializes for the given request, with the request's uri and HTTP/1.1.
+   *
+   * @param request the request
+   * @param statusCode the status code
+   * @param headers the headers
+   * @param body the body
+   */
+  public BasicHttpResponse(HttpRequest request, int statusCode, HttpHeaders headers, T body) {
+    this(request, statusCode, headers, body, request.uri(), Version.HTTP_1_1);
+  }
+
+  @Override
+  public Optional<HttpResponse<T>> previousResponse() {
+    return Optional.empty();
+  }
+
+  @Override
+  public Optional<SSLSession> sslSession() {
+    return Optional.empty();
+  }
+
+  @Override
+  public String toString() {
+    return "(%s %s) %d".formatted(request.method(), uri, statusCode);
+  }
+}
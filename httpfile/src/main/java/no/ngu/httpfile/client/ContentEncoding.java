@@ -0,0 +1,179 @@
+package no.ngu.httpfile.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+
+/**
+ * Content encodings for compressing request bodies, as selected by # @compress.
+ * Compression is pull-based, so bytes are compressed as the body is published,
+ * and the compressed body is never buffered as a whole.
+ */
+public enum ContentEncoding {
+
+  gzip {
+    @Override
+    public InputStream compress(InputStream input) {
+      var crc = new CRC32();
+      var deflating = new EndingDeflaterInputStream(new CheckedInputStream(input, crc),
+          new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+      return new SequenceInputStream(Collections.enumeration(List.of(
+          new ByteArrayInputStream(GZIP_HEADER),
+          deflating,
+          new LazyInputStream(() -> {
+            // the trailer is computed when reached, after all input is compressed
+            deflating.closeQuietly();
+            return new ByteArrayInputStream(gzipTrailer(crc.getValue(), deflating.bytesRead));
+          }))));
+    }
+  },
+
+  deflate {
+    @Override
+    public InputStream compress(InputStream input) {
+      return new EndingDeflaterInputStream(input, new Deflater(Deflater.DEFAULT_COMPRESSION));
+    }
+  };
+
+  private static final byte[] GZIP_HEADER = {
+      0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+  };
+
+  private static byte[] gzipTrailer(long crc, long size) {
+    var trailer = new byte[8];
+    for (int i = 0; i < 4; i++) {
+      trailer[i] = (byte) (crc >> (i * 8));
+      trailer[i + 4] = (byte) (size >> (i * 8));
+    }
+    return trailer;
+  }
+
+  /**
+   * Wraps an input stream in one that compresses its bytes as they are read.
+   *
+   * @param input the uncompressed input
+   * @return the compressed input
+   */
+  public abstract InputStream compress(InputStream input);
+
+  /**
+   * Creates a body publisher of the UTF-8 encoded and compressed parts.
+   * Each part is encoded when reached.
+   *
+   * @param parts the body parts, null parts are skipped
+   * @return the body publisher
+   */
+  public BodyPublisher publisher(List<String> parts) {
+    return BodyPublishers.ofInputStream(() -> compress(encode(parts)));
+  }
+
+  /**
+   * Gets the content encoding with the given name, ignoring case.
+   *
+   * @param name the name
+   * @return the content encoding
+   * @throws IllegalArgumentException if the encoding isn't supported
+   */
+  public static ContentEncoding of(String name) {
+    for (var encoding : values()) {
+      if (encoding.name().equalsIgnoreCase(name.trim())) {
+        return encoding;
+      }
+    }
+    throw new IllegalArgumentException("Unsupported content encoding: " + name);
+  }
+
+  /**
+   * Deflater input stream that ends its deflater when closed, to free its native memory
+   * without waiting for the cleaner, also when the body isn't read to the end.
+   */
+  private static class EndingDeflaterInputStream extends DeflaterInputStream {
+
+    // the number of uncompressed bytes, kept when the deflater is ended
+    private long bytesRead = 0;
+    private boolean ended = false;
+
+    EndingDeflaterInputStream(InputStream input, Deflater deflater) {
+      super(input, deflater);
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        if (!ended) {
+          ended = true;
+          bytesRead = def.getBytesRead();
+          def.end();
+        }
+      }
+    }
+
+    private void closeQuietly() {
+      try {
+        close();
+      } catch (IOException e) {
+        // the input is already read to the end
+      }
+    }
+  }
+
+  /**
+   * Input stream that creates the actual stream when first read.
+   */
+  private static class LazyInputStream extends InputStream {
+
+    private final Supplier<InputStream> supplier;
+    private InputStream input = null;
+
+    LazyInputStream(Supplier<InputStream> supplier) {
+      this.supplier = supplier;
+    }
+
+    private InputStream getInput() {
+      if (input == null) {
+        input = supplier.get();
+      }
+      return input;
+    }
+
+    @Override
+    public int read() throws IOException {
+      return getInput().read();
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+      return getInput().read(bytes, offset, length);
+    }
+  }
+
+  private static InputStream encode(List<String> parts) {
+    Iterator<String> it = parts.stream().filter(part -> part != null).iterator();
+    return new SequenceInputStream(new Enumeration<InputStream>() {
+      @Override
+      public boolean hasMoreElements() {
+        return it.hasNext();
+      }
+
+      @Override
+      public InputStream nextElement() {
+        return new ByteArrayInputStream(it.next().getBytes(StandardCharsets.UTF_8));
+      }
+    });
+  }
+}
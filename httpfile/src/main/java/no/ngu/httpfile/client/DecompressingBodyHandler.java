@@ -0,0 +1,300 @@
+package no.ngu.httpfile.client;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodySubscriber;
+import java.net.http.HttpResponse.ResponseInfo;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * {@link BodyHandler} that decompresses gzip and deflate encoded responses,
+ * before passing the body on to another handler.
+ * The body is inflated incrementally as buffers arrive, so the compressed body is never buffered.
+ * The downstream handler sees the response headers without Content-Encoding and Content-Length.
+ *
+ * @param <T> the body type
+ */
+public class DecompressingBodyHandler<T> implements BodyHandler<T> {
+
+  /**
+   * The value of the Accept-Encoding header for the supported encodings.
+   */
+  public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+  private final BodyHandler<T> bodyHandler;
+
+  /**
+   * Initializes with the handler for the decompressed body.
+   *
+   * @param bodyHandler the handler for the decompressed body
+   */
+  public DecompressingBodyHandler(BodyHandler<T> bodyHandler) {
+    this.bodyHandler = bodyHandler;
+  }
+
+  @Override
+  public BodySubscriber<T> apply(ResponseInfo responseInfo) {
+    var contentEncoding = responseInfo.headers().firstValue("Content-Encoding")
+        .map(String::trim).map(String::toLowerCase).orElse("identity");
+    boolean gzip;
+    switch (contentEncoding) {
+      case "gzip", "x-gzip" -> gzip = true;
+      case "deflate" -> gzip = false;
+      default -> {
+        return bodyHandler.apply(responseInfo);
+      }
+    }
+    var headers = HttpHeaders.of(responseInfo.headers().map(), (name, value) ->
+        !name.equalsIgnoreCase("Content-Encoding") && !name.equalsIgnoreCase("Content-Length"));
+    var decodedInfo = new ResponseInfo() {
+      @Override
+      public int statusCode() {
+        return responseInfo.statusCode();
+      }
+
+      @Override
+      public HttpHeaders headers() {
+        return headers;
+      }
+
+      @Override
+      public HttpClient.Version version() {
+        return responseInfo.version();
+      }
+    };
+    return new DecompressingSubscriber<>(bodyHandler.apply(decodedInfo), new Decompressor(gzip));
+  }
+
+  /**
+   * Incremental gzip or deflate decompressor.
+   * Gzip headers and trailers are parsed by hand, since they may be split across buffers.
+   * Likewise, the first two bytes of a deflate body are collected before telling whether
+   * the body is zlib wrapped or raw.
+   */
+  static class Decompressor {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private enum Phase {
+      HEADER, BODY, TRAILER, DONE
+    }
+
+    private final boolean gzip;
+    private Inflater inflater = null;
+    private final CRC32 crc = new CRC32();
+    private Phase phase = Phase.HEADER;
+    // collects the gzip header and trailer, or the first two bytes of a deflate body
+    private byte[] pending = new byte[16];
+    private int pendingLength = 0;
+
+    Decompressor(boolean gzip) {
+      this.gzip = gzip;
+    }
+
+    boolean isDone() {
+      return phase == Phase.DONE;
+    }
+
+    /**
+     * Tells whether no input has been decompressed,
+     * e.g. for HEAD requests and 204 or 304 responses, which have no body.
+     */
+    boolean isEmpty() {
+      return phase == Phase.HEADER && pendingLength == 0;
+    }
+
+    private void addPending(ByteBuffer input, int count) {
+      if (pendingLength + count > pending.length) {
+        pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + count));
+      }
+      input.get(pending, pendingLength, count);
+      pendingLength += count;
+    }
+
+    private int pendingShort(int pos) {
+      return (pending[pos] & 0xff) | (pending[pos + 1] & 0xff) << 8;
+    }
+
+    private long pendingInt(int pos) {
+      return pendingShort(pos) | ((long) pendingShort(pos + 2)) << 16;
+    }
+
+    // returns the length of the gzip header in pending, or -1 if it is incomplete
+    private int gzipHeaderLength() throws IOException {
+      if (pendingLength < 10) {
+        return -1;
+      }
+      if ((pending[0] & 0xff) != 0x1f || (pending[1] & 0xff) != 0x8b || pending[2] != 8) {
+        throw new IOException("Not in gzip format");
+      }
+      int flags = pending[3];
+      int pos = 10;
+      if ((flags & 4) != 0) {
+        // FEXTRA
+        if (pendingLength < pos + 2) {
+          return -1;
+        }
+        pos += 2 + pendingShort(pos);
+      }
+      for (int flag : new int[] {8, 16}) {
+        // FNAME and FCOMMENT, zero-terminated
+        if ((flags & flag) != 0) {
+          while (pos < pendingLength && pending[pos] != 0) {
+            pos++;
+          }
+          pos++;
+        }
+      }
+      if ((flags & 2) != 0) {
+        // FHCRC
+        pos += 2;
+      }
+      return (pos <= pendingLength ? pos : -1);
+    }
+
+    // zlib wrapped, unless the first two bytes in pending aren't a valid zlib header
+    private boolean isZlibHeader() {
+      return (pending[0] & 0x0f) == 8 && ((pending[0] & 0xff) << 8 | (pending[1] & 0xff)) % 31 == 0;
+    }
+
+    private void inflate(ByteBuffer input, List<ByteBuffer> output) throws IOException {
+      inflater.setInput(input);
+      try {
+        while (!inflater.finished()) {
+          var buffer = ByteBuffer.allocate(BUFFER_SIZE);
+          int count = inflater.inflate(buffer);
+          if (count > 0) {
+            buffer.flip();
+            if (gzip) {
+              crc.update(buffer.duplicate());
+            }
+            output.add(buffer);
+          } else if (inflater.needsInput() || inflater.needsDictionary()) {
+            break;
+          }
+        }
+      } catch (DataFormatException e) {
+        throw new IOException(e);
+      }
+      if (inflater.finished()) {
+        inflater.end();
+        phase = (gzip ? Phase.TRAILER : Phase.DONE);
+      }
+    }
+
+    /**
+     * Decompresses the input, appending the decompressed buffers to the output.
+     *
+     * @param input the compressed input
+     * @param output the list of decompressed buffers
+     * @throws IOException if the input is not valid
+     */
+    void decompress(ByteBuffer input, List<ByteBuffer> output) throws IOException {
+      while (input.hasRemaining()) {
+        switch (phase) {
+          case HEADER -> {
+            if (gzip) {
+              // add one byte at a time, since header length is unknown
+              addPending(input, 1);
+              if (gzipHeaderLength() >= 0) {
+                pendingLength = 0;
+                inflater = new Inflater(true);
+                phase = Phase.BODY;
+              }
+            } else {
+              addPending(input, Math.min(2 - pendingLength, input.remaining()));
+              if (pendingLength == 2) {
+                inflater = new Inflater(!isZlibHeader());
+                phase = Phase.BODY;
+                inflate(ByteBuffer.wrap(pending, 0, 2), output);
+                pendingLength = 0;
+              }
+            }
+          }
+          case BODY -> inflate(input, output);
+          case TRAILER -> {
+            addPending(input, Math.min(8 - pendingLength, input.remaining()));
+            if (pendingLength == 8) {
+              if (pendingInt(0) != crc.getValue()) {
+                throw new IOException("Corrupt gzip body, CRC mismatch");
+              }
+              phase = Phase.DONE;
+            }
+          }
+          case DONE -> {
+            // ignore trailing garbage
+            input.position(input.limit());
+          }
+          default -> throw new IllegalStateException();
+        }
+      }
+    }
+  }
+
+  private static class DecompressingSubscriber<T> implements BodySubscriber<T> {
+
+    private final BodySubscriber<T> bodySubscriber;
+    private final Decompressor decompressor;
+    private Flow.Subscription subscription;
+
+    DecompressingSubscriber(BodySubscriber<T> bodySubscriber, Decompressor decompressor) {
+      this.bodySubscriber = bodySubscriber;
+      this.decompressor = decompressor;
+    }
+
+    @Override
+    public CompletionStage<T> getBody() {
+      return bodySubscriber.getBody();
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      this.subscription = subscription;
+      bodySubscriber.onSubscribe(subscription);
+    }
+
+    @Override
+    public void onNext(List<ByteBuffer> items) {
+      List<ByteBuffer> output = new ArrayList<>(items.size() * 2);
+      try {
+        for (var item : items) {
+          decompressor.decompress(item, output);
+        }
+      } catch (IOException e) {
+        subscription.cancel();
+        bodySubscriber.onError(e);
+        return;
+      }
+      if (output.isEmpty()) {
+        // nothing to pass on, so request more instead of consuming downstream demand
+        subscription.request(1);
+      } else {
+        bodySubscriber.onNext(output);
+      }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      bodySubscriber.onError(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+      if (decompressor.isDone() || decompressor.isEmpty()) {
+        bodySubscriber.onComplete();
+      } else {
+        bodySubscriber.onError(new IOException("Compressed body ended prematurely"));
+      }
+    }
+  }
+}
@@ -0,0 +1,333 @@
+package no.ngu.httpfile.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient.Version;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+/**
+ * Archive of recorded HTTP exchanges, for replaying responses without the network.
+ * Responses are keyed by a hash of the request's method, uri, headers and body,
+ * except the ignored headers, by default Authorization and the conditional headers.
+ * Hence, a request with dynamic macros like {{$guid}} or {{$timestamp}} in the target or body
+ * cannot be replayed, and neither can one with them in headers that aren't ignored.
+ * The archive consists of an append-only data file and an index file of keys and offsets.
+ * When replaying, the data file is memory-mapped and only the index is read up front.
+ * Since the data file is mapped as one buffer, it is limited to 2 GB.
+ */
+public class ExchangeArchive implements AutoCloseable {
+
+  /**
+   * Whether exchanges are recorded or replayed.
+   */
+  public enum Mode {
+    RECORD, REPLAY
+  }
+
+  private static final String DATA_FILE = "exchanges.dat";
+  private static final String INDEX_FILE = "exchanges.idx";
+  private static final int KEY_SIZE = 32;
+
+  // conditional headers depend on caching, not on the request,
+  // and tokens differ between runs, and shouldn't be part of a stored key
+  private static final Set<String> DEFAULT_IGNORED_HEADERS = Set.of("if-none-match",
+      "if-modified-since", "authorization");
+
+  private final Mode mode;
+  private Set<String> ignoredHeaders = DEFAULT_IGNORED_HEADERS;
+  // guards the appends to the channels and index while recording
+  private final Lock lock = new ReentrantLock();
+  // only modified while recording, and read-only while replaying
+  private final Map<String, Long> index = new HashMap<>();
+  private final FileChannel dataChannel;
+  private final FileChannel indexChannel;
+  private final MappedByteBuffer data;
+
+  private ExchangeArchive(Path directory, Mode mode) throws IOException {
+    this.mode = mode;
+    var dataPath = directory.resolve(DATA_FILE);
+    var indexPath = directory.resolve(INDEX_FILE);
+    if (mode == Mode.RECORD) {
+      Files.createDirectories(directory);
+      dataChannel = FileChannel.open(dataPath, StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+      indexChannel = FileChannel.open(indexPath, StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+      data = null;
+    } else {
+      dataChannel = null;
+      indexChannel = null;
+      try (var channel = FileChannel.open(dataPath, StandardOpenOption.READ)) {
+        if (channel.size() > Integer.MAX_VALUE) {
+          throw new IOException("Archive data file is larger than 2 GB: " + dataPath);
+        }
+        data = channel.map(MapMode.READ_ONLY, 0, channel.size());
+      }
+      if (Files.exists(indexPath)) {
+        readIndex(ByteBuffer.wrap(Files.readAllBytes(indexPath)));
+      } else {
+        scanData();
+      }
+    }
+  }
+
+  /**
+   * Gets the mode of the archive.
+   *
+   * @return the mode
+   */
+  public Mode getMode() {
+    return mode;
+  }
+
+  /**
+   * Sets the names of the headers that aren't part of the key,
+   * e.g. ones with dynamic values like request ids.
+   * By default, Authorization, If-None-Match and If-Modified-Since are ignored.
+   * The same headers must be ignored when recording and replaying.
+   *
+   * @param names the header names, ignoring case
+   */
+  public void setIgnoredHeaders(Collection<String> names) {
+    this.ignoredHeaders = names.stream().map(String::toLowerCase)
+        .collect(Collectors.toUnmodifiableSet());
+  }
+
+  /**
+   * Tells whether a header isn't part of the key.
+   *
+   * @param name the header name, ignoring case
+   * @return whether the header is ignored
+   */
+  public boolean isIgnoredHeader(String name) {
+    return ignoredHeaders.contains(name.toLowerCase());
+  }
+
+  @Override
+  public void close() throws IOException {
+    lock.lock();
+    try {
+      if (dataChannel != null) {
+        dataChannel.close();
+        indexChannel.close();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void readIndex(ByteBuffer buffer) {
+    var key = new byte[KEY_SIZE];
+    while (buffer.remaining() >= KEY_SIZE + Long.BYTES) {
+      buffer.get(key);
+      // later recordings of the same request win
+      index.put(HexFormat.of().formatHex(key), buffer.getLong());
+    }
+  }
+
+  // rebuilds the index from the data file, each record starts with its length and key
+  private void scanData() {
+    var buffer = data.duplicate();
+    var key = new byte[KEY_SIZE];
+    while (buffer.remaining() >= Integer.BYTES + KEY_SIZE) {
+      int offset = buffer.position();
+      int length = buffer.getInt();
+      buffer.get(key);
+      index.put(HexFormat.of().formatHex(key), (long) offset);
+      buffer.position(offset + Integer.BYTES + length);
+    }
+  }
+
+  /**
+   * Computes the key of a request, from the method, uri, headers and body,
+   * except the ignored headers.
+   *
+   * @param request the request
+   * @param body the rendered body
+   * @return the key
+   */
+  public byte[] key(HttpRequest request, String body) {
+    try {
+      var bytes = new ByteArrayOutputStream();
+      var output = new DataOutputStream(bytes);
+      output.writeUTF(request.method());
+      output.writeUTF(request.uri().toString());
+      // the header map is sorted by name
+      for (var header : request.headers().map().entrySet()) {
+        if (!isIgnoredHeader(header.getKey())) {
+          for (var value : header.getValue()) {
+            output.writeUTF(header.getKey().toLowerCase());
+            output.writeUTF(value);
+          }
+        }
+      }
+      output.flush();
+      var digest = MessageDigest.getInstance("SHA-256");
+      digest.update(bytes.toByteArray());
+      digest.update((body != null ? body : "").getBytes(StandardCharsets.UTF_8));
+      return digest.digest();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static void writeBytes(DataOutputStream output, byte[] bytes) throws IOException {
+    output.writeInt(bytes.length);
+    output.write(bytes);
+  }
+
+  private static void writeString(DataOutputStream output, String s) throws IOException {
+    writeBytes(output, s.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    var bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static boolean isBodyEncodingHeader(String name) {
+    return name.equalsIgnoreCase("Content-Encoding") || name.equalsIgnoreCase("Content-Length");
+  }
+
+  /**
+   * Opens an archive for recording, appending to existing files in the directory.
+   *
+   * @param directory the archive directory
+   * @return the archive
+   * @throws IOException if the archive files cannot be opened
+   */
+  public static ExchangeArchive record(Path directory) throws IOException {
+    return new ExchangeArchive(directory, Mode.RECORD);
+  }
+
+  /**
+   * Records a response, by appending it to the data file and its key to the index file.
+   *
+   * @param key the request key
+   * @param response the response
+   */
+  public void record(byte[] key, HttpResponse<String> response) {
+    if (mode != Mode.RECORD) {
+      throw new IllegalStateException("Archive is not opened for recording");
+    }
+    try {
+      var bytes = new ByteArrayOutputStream();
+      var output = new DataOutputStream(bytes);
+      output.writeInt(0);
+      output.write(key);
+      output.writeInt(response.statusCode());
+      writeString(output, response.uri().toString());
+      var headerMap = response.headers().map();
+      output.writeInt(headerMap.entrySet().stream()
+          .filter(header -> !isBodyEncodingHeader(header.getKey()))
+          .mapToInt(header -> header.getValue().size()).sum());
+      for (var header : headerMap.entrySet()) {
+        // the body is recorded decoded
+        if (isBodyEncodingHeader(header.getKey())) {
+          continue;
+        }
+        for (var value : header.getValue()) {
+          writeString(output, header.getKey());
+          writeString(output, value);
+        }
+      }
+      writeString(output, response.body() != null ? response.body() : "");
+      output.flush();
+      var record = ByteBuffer.wrap(bytes.toByteArray());
+      record.putInt(0, record.limit() - Integer.BYTES);
+      // the record is built before locking, so only the appends are done under the lock
+      lock.lock();
+      try {
+        long offset = dataChannel.size();
+        if (offset + record.limit() > Integer.MAX_VALUE) {
+          throw new IllegalStateException("Archive data file would be larger than 2 GB");
+        }
+        while (record.hasRemaining()) {
+          dataChannel.write(record);
+        }
+        var indexEntry = ByteBuffer.allocate(KEY_SIZE + Long.BYTES).put(key).putLong(offset)
+            .flip();
+        while (indexEntry.hasRemaining()) {
+          indexChannel.write(indexEntry);
+        }
+        index.put(HexFormat.of().formatHex(key), offset);
+      } finally {
+        lock.unlock();
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Opens an archive for replaying.
+   *
+   * @param directory the archive directory
+   * @return the archive
+   * @throws IOException if the archive files cannot be read
+   */
+  public static ExchangeArchive replay(Path directory) throws IOException {
+    return new ExchangeArchive(directory, Mode.REPLAY);
+  }
+
+  /**
+   * Replays the recorded response for a request.
+   *
+   * @param request the request
+   * @param key the request key
+   * @return the recorded response
+   * @throws IllegalStateException if there is no recorded response for the request
+   */
+  public HttpResponse<String> replay(HttpRequest request, byte[] key) {
+    if (mode != Mode.REPLAY) {
+      throw new IllegalStateException("Archive is not opened for replaying");
+    }
+    var offset = index.get(HexFormat.of().formatHex(key));
+    if (offset == null) {
+      throw new IllegalStateException("No recorded response for %s %s"
+          .formatted(request.method(), request.uri()));
+    }
+    // offsets are below 2 GB, since the data file is checked when mapped
+    var buffer = data.duplicate().position(Math.toIntExact(offset) + Integer.BYTES + KEY_SIZE);
+    int statusCode = buffer.getInt();
+    var uri = URI.create(readString(buffer));
+    Map<String, List<String>> headerMap = new LinkedHashMap<>();
+    for (int i = buffer.getInt(); i > 0; i--) {
+      headerMap.computeIfAbsent(readString(buffer), name -> new ArrayList<>())
+          .add(readString(buffer));
+    }
+    var body = readString(buffer);
+    return new BasicHttpResponse<>(request, statusCode,
+        HttpHeaders.of(headerMap, (name, value) -> true), body, uri,
+        request.version().orElse(Version.HTTP_1_1));
+  }
+}
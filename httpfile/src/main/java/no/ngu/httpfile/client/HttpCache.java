@@ -0,0 +1,351 @@
+package no.ngu.httpfile.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * On-disk cache of GET responses with validators, i.e. ETag or Last-Modified,
+ * so repeated runs can revalidate with If-None-Match and If-Modified-Since
+ * instead of downloading the body again.
+ * Responses are only used for requests with the same values of the headers named by Vary.
+ * The total size of the cache files is bounded, and least recently used entries are evicted.
+ * Files are read and written without holding the lock, which only guards the in-memory index
+ * of file sizes and use order. Entries are written to a temporary file that is moved in place,
+ * so readers never see a partial entry.
+ */
+public class HttpCache {
+
+  /**
+   * A cached response.
+   *
+   * @param uri the request uri
+   * @param requestHeaders the request headers named by the Vary response header
+   * @param statusCode the status code
+   * @param headers the response headers
+   * @param body the decoded body
+   */
+  public record Entry(URI uri, HttpHeaders requestHeaders, int statusCode, HttpHeaders headers,
+      String body) {
+
+    /**
+     * Gets the names of the request headers the response varies by, from the Vary header.
+     *
+     * @return the lower-case header names, which may include *
+     */
+    public List<String> vary() {
+      return varyNames(headers);
+    }
+
+    /**
+     * Tells whether this response may be used for the given request,
+     * i.e. whether the request has the same values of the headers the response varies by.
+     *
+     * @param request the request
+     * @return whether this response matches the request
+     */
+    public boolean matches(HttpRequest request) {
+      return uri.equals(request.uri()) && vary().stream().allMatch(name -> !name.equals("*")
+          && request.headers().allValues(name).equals(requestHeaders.allValues(name)));
+    }
+
+    /**
+     * Gets the ETag validator.
+     *
+     * @return the ETag, or empty if none
+     */
+    public Optional<String> etag() {
+      return headers.firstValue("ETag");
+    }
+
+    /**
+     * Gets the Last-Modified validator.
+     *
+     * @return the Last-Modified date, or empty if none
+     */
+    public Optional<String> lastModified() {
+      return headers.firstValue("Last-Modified");
+    }
+
+    /**
+     * Adds the validators as conditional request headers.
+     *
+     * @param builder the request builder
+     */
+    public void addValidators(HttpRequest.Builder builder) {
+      etag().ifPresent(etag -> builder.header("If-None-Match", etag));
+      lastModified().ifPresent(lastModified -> builder.header("If-Modified-Since", lastModified));
+    }
+
+    /**
+     * Creates a response with the cached body, for a request that got 304 Not Modified.
+     * The headers of the 304 response override the cached ones.
+     *
+     * @param notModified the 304 response
+     * @return the response with the cached status code and body
+     */
+    public HttpResponse<String> toResponse(HttpResponse<?> notModified) {
+      Map<String, List<String>> headerMap = new LinkedHashMap<>(headers.map());
+      notModified.headers().map().forEach((name, values) -> {
+        headerMap.keySet().removeIf(name::equalsIgnoreCase);
+        headerMap.put(name, values);
+      });
+      return new BasicHttpResponse<>(notModified.request(), statusCode,
+          HttpHeaders.of(headerMap, (name, value) -> true), body,
+          notModified.uri(), notModified.version());
+    }
+  }
+
+  private static final String SUFFIX = ".cached";
+
+  private final Path directory;
+  private final long maxSize;
+
+  private final Lock lock = new ReentrantLock();
+  // the sizes of the cache files, in least recently used order,
+  // or null until the directory is listed by the first put
+  private Map<Path, Long> index = null;
+  // the total size of the cache files
+  private long size = 0;
+
+  /**
+   * Initializes with the directory for the cache files and the maximum total size.
+   *
+   * @param directory the directory, created if needed
+   * @param maxSize the maximum total size of the cache files
+   */
+  public HttpCache(Path directory, long maxSize) {
+    this.directory = directory;
+    this.maxSize = maxSize;
+  }
+
+  private Path getPath(URI uri) {
+    try {
+      var digest = MessageDigest.getInstance("SHA-256")
+          .digest(uri.toString().getBytes(StandardCharsets.UTF_8));
+      return directory.resolve(HexFormat.of().formatHex(digest) + SUFFIX);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static List<String> varyNames(HttpHeaders headers) {
+    return headers.allValues("Vary").stream()
+        .flatMap(value -> Arrays.stream(value.split(",")))
+        .map(name -> name.trim().toLowerCase())
+        .filter(name -> !name.isEmpty())
+        .toList();
+  }
+
+  private static HttpHeaders readHeaders(DataInputStream input) throws IOException {
+    Map<String, List<String>> headerMap = new LinkedHashMap<>();
+    for (int i = input.readInt(); i > 0; i--) {
+      headerMap.computeIfAbsent(input.readUTF(), name -> new ArrayList<>())
+          .add(input.readUTF());
+    }
+    return HttpHeaders.of(headerMap, (name, value) -> true);
+  }
+
+  private static void writeHeaders(HttpHeaders headers, DataOutputStream output)
+      throws IOException {
+    var headerMap = headers.map();
+    output.writeInt(headerMap.values().stream().mapToInt(List::size).sum());
+    for (var header : headerMap.entrySet()) {
+      for (var value : header.getValue()) {
+        output.writeUTF(header.getKey());
+        output.writeUTF(value);
+      }
+    }
+  }
+
+  /**
+   * Gets the cached response for the request.
+   *
+   * @param request the request
+   * @return the cached response, or null if none or if it doesn't match the request
+   */
+  public Entry get(HttpRequest request) {
+    var path = getPath(request.uri());
+    try (var input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+      var uri = URI.create(input.readUTF());
+      var requestHeaders = readHeaders(input);
+      int statusCode = input.readInt();
+      var headers = readHeaders(input);
+      var body = new String(input.readNBytes(input.readInt()), StandardCharsets.UTF_8);
+      var entry = new Entry(uri, requestHeaders, statusCode, headers, body);
+      if (!entry.matches(request)) {
+        return null;
+      }
+      // for least recently used eviction, also in later runs
+      Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+      lock.lock();
+      try {
+        if (index != null) {
+          // moves it last in the use order
+          index.get(path);
+        }
+      } finally {
+        lock.unlock();
+      }
+      return entry;
+    } catch (IOException | RuntimeException e) {
+      // missing or corrupt, e.g. of an older format
+      return null;
+    }
+  }
+
+  private static boolean hasCacheControl(HttpHeaders headers, String... directives) {
+    return headers.allValues("Cache-Control").stream()
+        .flatMap(value -> Arrays.stream(value.split(",")))
+        .map(directive -> directive.trim().toLowerCase())
+        .anyMatch(directive -> Arrays.stream(directives).anyMatch(directive::startsWith));
+  }
+
+  /**
+   * Stores a successful response, if it has a validator and may be stored.
+   * Responses to requests with Authorization are only stored if Cache-Control
+   * explicitly allows it, i.e. with public, must-revalidate or s-maxage.
+   *
+   * @param response the response
+   * @return whether the response was stored
+   */
+  public boolean put(HttpResponse<String> response) {
+    var headers = response.headers();
+    var request = response.request();
+    boolean hasValidator = headers.firstValue("ETag").isPresent()
+        || headers.firstValue("Last-Modified").isPresent();
+    boolean noStore = hasCacheControl(headers, "no-store");
+    boolean authorized = request.headers().firstValue("Authorization").isPresent()
+        && !hasCacheControl(headers, "public", "must-revalidate", "s-maxage");
+    var vary = varyNames(headers);
+    if (response.statusCode() != 200 || !hasValidator || noStore || authorized
+        || vary.contains("*")) {
+      return false;
+    }
+    var requestHeaders = HttpHeaders.of(request.headers().map(), (name, value) ->
+        vary.contains(name.toLowerCase()));
+    // the body is stored decoded
+    var storedHeaders = HttpHeaders.of(headers.map(), (name, value) ->
+        !name.equalsIgnoreCase("Content-Encoding") && !name.equalsIgnoreCase("Content-Length"));
+    put(new Entry(request.uri(), requestHeaders, response.statusCode(), storedHeaders,
+        response.body()));
+    return true;
+  }
+
+  /**
+   * Stores an entry, and evicts least recently used entries if the cache is too large.
+   *
+   * @param entry the entry
+   */
+  public void put(Entry entry) {
+    try {
+      Files.createDirectories(directory);
+      loadIndex();
+      var path = getPath(entry.uri());
+      var tempPath = Files.createTempFile(directory, "entry", ".tmp");
+      try (var output = new DataOutputStream(new BufferedOutputStream(
+          Files.newOutputStream(tempPath)))) {
+        output.writeUTF(entry.uri().toString());
+        writeHeaders(entry.requestHeaders(), output);
+        output.writeInt(entry.statusCode());
+        writeHeaders(entry.headers(), output);
+        var body = entry.body().getBytes(StandardCharsets.UTF_8);
+        output.writeInt(body.length);
+        output.write(body);
+      }
+      long fileSize = Files.size(tempPath);
+      try {
+        Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+      }
+      for (var evicted : updateIndex(path, fileSize)) {
+        Files.deleteIfExists(evicted);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // lists the cache files the first time, ordered by last use
+  private void loadIndex() throws IOException {
+    lock.lock();
+    try {
+      if (index != null) {
+        return;
+      }
+    } finally {
+      lock.unlock();
+    }
+    List<CacheFile> files = new ArrayList<>();
+    try (var paths = Files.list(directory)) {
+      for (var path : (Iterable<Path>) paths::iterator) {
+        if (path.getFileName().toString().endsWith(SUFFIX)) {
+          files.add(new CacheFile(path, Files.size(path), Files.getLastModifiedTime(path)));
+        }
+      }
+    }
+    files.sort(Comparator.comparing(CacheFile::lastModified));
+    lock.lock();
+    try {
+      if (index == null) {
+        index = new LinkedHashMap<>(16, 0.75f, true);
+        for (var file : files) {
+          index.put(file.path(), file.size());
+          size += file.size();
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private record CacheFile(Path path, long size, FileTime lastModified) {
+  }
+
+  // records the size of a file, and returns the least recently used files to delete
+  private List<Path> updateIndex(Path path, long fileSize) {
+    lock.lock();
+    try {
+      var oldSize = index.remove(path);
+      size += fileSize - (oldSize != null ? oldSize : 0);
+      index.put(path, fileSize);
+      List<Path> evicted = new ArrayList<>();
+      var lru = index.entrySet().iterator();
+      while (size > maxSize && lru.hasNext()) {
+        var file = lru.next();
+        evicted.add(file.getKey());
+        size -= file.getValue();
+        lru.remove();
+      }
+      return evicted;
+    } finally {
+      lock.unlock();
+    }
+  }
+}
@@ -1,23 +1,44 @@
 package no.ngu.httpfile.client;
 
+import jakarta.json.JsonValue;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpClient.Version;
+import java.net.http.HttpHeaders;
 import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublisher;
 import java.net.http.HttpRequest.BodyPublishers;
 import java.net.http.HttpResponse;
 import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
+import java.util.stream.Stream;
 import no.ngu.httpfile.HttpFile;
 import no.ngu.httpfile.InputStreamProvider;
+import no.ngu.httpfile.MacroValueProvider;
 import no.ngu.httpfile.StringTemplateResolver;
 import no.ngu.httpfile.StringValueProvider;
 import no.ngu.httpfile.StringValueProvider.Properties;
+import no.ngu.httpfile.auth.TokenStore;
 import no.ngu.httpfile.data.CollectionDataTraverser;
 import no.ngu.httpfile.data.DataTraverser;
 import no.ngu.httpfile.data.HttpDataTraverser;
@@ -30,14 +51,24 @@ public class HttpFileClient implements AutoCloseable {
 
   private InputStreamProvider inputStreamProvider;
   private HttpClient httpClient;
+  private HttpTransport transport;
+  private Long randomSeed = null;
+  private boolean acceptCompressed = false;
+  private HttpCache httpCache = null;
+  private boolean coalesceRequests = false;
+  private RateLimiter rateLimiter = null;
+  private ExchangeArchive exchangeArchive = null;
+  private boolean printResults = true;
 
   /**
    * Initializes with the provided {@link InputStreamProvider}.
    */
   public HttpFileClient(InputStreamProvider inputStreamProvider) {
-    this.inputStreamProvider = inputStreamProvider;
     var builder = HttpClient.newBuilder();
     this.httpClient = builder.build();
+    this.transport = new HttpTransport.Client(httpClient);
+    // fetch http resources asynchronously with the same client
+    this.inputStreamProvider = new InputStreamProvider.Http(httpClient, inputStreamProvider);
   }
 
   /**
@@ -58,6 +89,108 @@ public class HttpFileClient implements AutoCloseable {
     }
   }
 
+  /**
+   * Sets the seed for random values generated by macros, e.g. {{$guid}},
+   * so runs can be reproduced. Each call to performRequests starts from the seed.
+   *
+   * @param randomSeed the seed, or null for non-reproducible random values
+   */
+  public void setRandomSeed(Long randomSeed) {
+    this.randomSeed = randomSeed;
+  }
+
+  /**
+   * Sets the transport for sending requests, e.g. an {@link HttpTransport.InProcess}
+   * for testing against handlers without the network.
+   *
+   * @param transport the transport
+   */
+  public void setTransport(HttpTransport transport) {
+    this.transport = transport;
+  }
+
+  /**
+   * Gets the transport for sending requests, e.g. for wrapping it.
+   *
+   * @return the transport
+   */
+  public HttpTransport getTransport() {
+    return transport;
+  }
+
+  /**
+   * Sets whether the results so far are printed to System.err after each request,
+   * e.g. turned off for load runs.
+   *
+   * @param printResults whether to print the results
+   */
+  public void setPrintResults(boolean printResults) {
+    this.printResults = printResults;
+  }
+
+  /**
+   * Sets whether to ask for compressed responses, by sending Accept-Encoding: gzip, deflate
+   * with requests that don't specify Accept-Encoding themselves.
+   * Gzip and deflate encoded responses are decompressed as they are received,
+   * regardless of this setting.
+   *
+   * @param acceptCompressed whether to ask for compressed responses
+   */
+  public void setAcceptCompressed(boolean acceptCompressed) {
+    this.acceptCompressed = acceptCompressed;
+  }
+
+  /**
+   * Sets whether concurrent identical GET and HEAD requests share a single exchange,
+   * i.e. requests with the same uri and headers that are performed while one is in flight.
+   * Can be overridden per request with the # @coalesce [true|false] property.
+   *
+   * @param coalesceRequests whether to coalesce identical requests
+   */
+  public void setCoalesceRequests(boolean coalesceRequests) {
+    this.coalesceRequests = coalesceRequests;
+  }
+
+  /**
+   * Sets the limiter of request rate and requests in flight per host.
+   * Requests can have their own limits, with the # @rate requests-per-second,
+   * # @burst count and # @max-concurrent count properties,
+   * which apply in addition to the limits of the host.
+   * Requests that get 429 or 503 with Retry-After are retried after the given delay,
+   * up to three times, and other requests to the same host wait, too.
+   * The limiter may be shared by clients.
+   *
+   * @param rateLimiter the limiter, or null for no limits
+   */
+  public void setRateLimiter(RateLimiter rateLimiter) {
+    this.rateLimiter = rateLimiter;
+  }
+
+  /**
+   * Sets the cache for GET responses, so unchanged responses are served from the cache,
+   * after revalidating them with If-None-Match and If-Modified-Since.
+   * A response served from the cache looks like the original one, including the status code.
+   *
+   * @param httpCache the cache, or null for no caching
+   */
+  public void setHttpCache(HttpCache httpCache) {
+    this.httpCache = httpCache;
+  }
+
+  /**
+   * Sets the archive for recording or replaying exchanges.
+   * When recording, each response is appended to the archive.
+   * When replaying, responses are served from the archive instead of the network,
+   * and a request that wasn't recorded fails.
+   * While replaying, {{$oauth2Token}} isn't fetched, but gives a placeholder,
+   * unless the archive keys requests by Authorization.
+   *
+   * @param exchangeArchive the archive, or null for neither recording nor replaying
+   */
+  public void setExchangeArchive(ExchangeArchive exchangeArchive) {
+    this.exchangeArchive = exchangeArchive;
+  }
+
   /**
    * The data traversers used by this client.
    */
@@ -82,9 +215,43 @@ public class HttpFileClient implements AutoCloseable {
       BiFunction<HttpFile.Request, String, HttpFile.Request> requestTransform,
       BiConsumer<HttpFile.Request, Map<String, Object>> resultConsumer
   ) {
-    Map<String, Object> results = new HashMap<>();
+    return performRequests(model, variableOverrides, requestTransform, resultConsumer, Map.of());
+  }
+
+  /**
+   * Performs the requests in the provided {@link HttpFile.Model},
+   * with the results of earlier requests, e.g. ones that are skipped, available to refer to.
+   *
+   * @param model the model containing the requests to perform
+   * @param variableOverrides variable overrides
+   * @param requestTransform a function returning the actual request to perform, or null to skip
+   * @param resultConsumer a consumer for processing or valildating the result after each request
+   * @param previousResults the results of earlier requests, with the request name as key
+   * @return a map of the previous and new results, with the request name as key
+   */
+  public Map<String, Object> performRequests(
+      HttpFile.Model model,
+      Properties variableOverrides,
+      BiFunction<HttpFile.Request, String, HttpFile.Request> requestTransform,
+      BiConsumer<HttpFile.Request, Map<String, Object>> resultConsumer,
+      Map<String, Object> previousResults
+  ) {
+    Map<String, Object> results = new HashMap<>(previousResults);
     var stringTemplateResolver = new StringTemplateResolver();
     stringTemplateResolver.setInputStreamProvider(inputStreamProvider);
+    var replayTokens = (exchangeArchive != null
+        && exchangeArchive.getMode() == ExchangeArchive.Mode.REPLAY
+        && exchangeArchive.isIgnoredHeader("Authorization"));
+    if (randomSeed != null || replayTokens) {
+      var macroValueProvider = (randomSeed != null
+          ? new MacroValueProvider(inputStreamProvider, randomSeed)
+          : new MacroValueProvider(inputStreamProvider));
+      if (replayTokens) {
+        // the token isn't part of the archive key, so there's no need to fetch one
+        macroValueProvider.setTokenStore(REPLAY_TOKEN_STORE);
+      }
+      stringTemplateResolver.setMacroValueProvider(macroValueProvider);
+    }
     var fileVariableValuesProvider = new StringValueProvider.Variables(model.fileVariables(), 
         stringTemplateResolver);
     StringValueProvider stringValueProvider = new StringValueProvider.Providers(
@@ -103,17 +270,30 @@ public class HttpFileClient implements AutoCloseable {
           break;
         }
         if (actualRequest != null) {
-          var result = performRequest(actualRequest, stringTemplateResolver);
+          var paginate = actualRequest.getRequestPropertyValue("paginate");
+          var stream = actualRequest.getRequestPropertyValue("stream");
+          var until = actualRequest.getRequestPropertyValue("until");
+          // pages and events are passed to the consumer as they arrive, only the last is kept
+          var result = (paginate.isPresent()
+              ? performPages(actualRequest, paginate.get(), stringTemplateResolver,
+                  stringValueProvider, resultConsumer)
+              : stream.isPresent()
+              ? performStream(actualRequest, stream.get(), stringTemplateResolver, resultConsumer)
+              : until.isPresent()
+              ? performUntil(actualRequest, until.get(), stringTemplateResolver)
+              : performRequest(actualRequest, stringTemplateResolver));
           if (requestName.isPresent()) {
             results.put(requestName.get(), result);
           }
-          if (resultConsumer != null) {
+          if (resultConsumer != null && paginate.isEmpty() && stream.isEmpty()) {
             resultConsumer.accept(actualRequest, result);
           }
         }
-        System.err.println("Results, after performing\n%s %s:\n%s"
-            .formatted(request.method(), stringTemplateResolver.toString(request.target()),
-                results));
+        if (printResults) {
+          System.err.println("Results, after performing\n%s %s:\n%s"
+              .formatted(request.method(), stringTemplateResolver.toString(request.target()),
+                  results));
+        }
       } catch (Exception ex) {
         System.err.println("Aborting, due to exception when performing\n%s %s:\n%s"
             .formatted(request.method(), request.target(), ex));
@@ -197,28 +377,486 @@ public class HttpFileClient implements AutoCloseable {
     return performRequests(model, List.of(requestNames), null);
   }
 
-  private Map<String, Object> performRequest(HttpFile.Request request,
+  // gives the same token for every configuration, without fetching
+  private static final TokenStore REPLAY_TOKEN_STORE = new TokenStore(
+      config -> CompletableFuture.completedFuture(
+          new TokenStore.Token("replayed", "Bearer", Instant.MAX)),
+      Duration.ZERO, Clock.systemUTC());
+
+  // runs prefetching of pages and polls, which may block, on virtual threads
+  private static final Executor VIRTUAL_EXECUTOR = runnable -> Thread.ofVirtual().start(runnable);
+
+  // gets the value at the path as a string, or null if it is missing or null
+  private String getStringValue(Map<String, Object> result, String path) {
+    try {
+      var value = traversePath(result, path);
+      if (value == null || value == JsonValue.NULL) {
+        return null;
+      }
+      DataTraverser converter = DataTraverser.converterFor(value, dataTraversers);
+      return (converter != null ? converter.asString(value) : String.valueOf(value));
+    } catch (RuntimeException e) {
+      // e.g. missing on the last page
+      return null;
+    }
+  }
+
+  /**
+   * Performs a request with the # @paginate variable = path property repeatedly,
+   * with the variable set to the value of the path in the previous page,
+   * until the value is missing, empty or unchanged.
+   * The next page is fetched while the consumer processes the current one.
+   */
+  private Map<String, Object> performPages(HttpFile.Request request, String paginate,
+      StringTemplateResolver templateResolver, StringValueProvider stringValueProvider,
+      BiConsumer<HttpFile.Request, Map<String, Object>> resultConsumer) {
+    int pos = paginate.indexOf('=');
+    if (pos < 0) {
+      throw new IllegalArgumentException(
+          "Expected @paginate <variable> = <path>, but was " + paginate);
+    }
+    var variable = paginate.substring(0, pos).trim();
+    var path = paginate.substring(pos + 1).trim();
+    var page = performRequest(request, templateResolver);
+    String previousCursor = null;
+    while (true) {
+      var cursor = getStringValue(page, path);
+      CompletableFuture<Map<String, Object>> nextPage = null;
+      if (cursor != null && !cursor.isBlank() && !cursor.equals(previousCursor)) {
+        // the next page is resolved on the prefetch thread, so it gets its own resolver
+        var pageResolver = templateResolver.withStringValueProvider(
+            new StringValueProvider.Providers(
+                StringValueProvider.Properties.of(Map.of(variable, cursor)),
+                stringValueProvider));
+        nextPage = CompletableFuture.supplyAsync(() -> performRequest(request, pageResolver),
+            VIRTUAL_EXECUTOR);
+      }
+      if (resultConsumer != null) {
+        resultConsumer.accept(request, page);
+      }
+      if (nextPage == null) {
+        return page;
+      }
+      previousCursor = cursor;
+      page = nextPage.join();
+    }
+  }
+
+  /**
+   * Condition of the # @until property, e.g. response.body.$.status == "DONE".
+   */
+  private record Condition(String path, boolean equals, String value) {
+
+    static Condition of(String until) {
+      int pos = until.indexOf("==");
+      boolean equals = pos >= 0;
+      if (!equals) {
+        pos = until.indexOf("!=");
+      }
+      if (pos < 0) {
+        throw new IllegalArgumentException(
+            "Expected @until <path> == <value> or <path> != <value>, but was " + until);
+      }
+      var value = until.substring(pos + 2).trim();
+      if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+        value = value.substring(1, value.length() - 1);
+      }
+      return new Condition(until.substring(0, pos).trim(), equals, value);
+    }
+
+    boolean matches(String actual) {
+      return value.equals(actual) == equals;
+    }
+  }
+
+  /**
+   * Delays between polls, from the # @backoff initial [max] [jitter] property.
+   * The delay doubles for each poll, up to the max,
+   * and with jitter a random delay up to that is used.
+   */
+  private record Backoff(Duration initial, Duration max, boolean jitter) {
+
+    static Backoff of(String backoff) {
+      var args = backoff.trim().split("\\s+");
+      var initial = parseDuration(args[0]);
+      var max = (args.length > 1 && !args[1].equals("jitter") ? parseDuration(args[1])
+          : Duration.ofSeconds(5));
+      return new Backoff(initial, max, args[args.length - 1].equals("jitter"));
+    }
+
+    long delayMillis(int attempt) {
+      long delay = Math.min(max.toMillis(),
+          initial.toMillis() << Math.min(attempt - 1, 30));
+      return (jitter ? ThreadLocalRandom.current().nextLong(delay + 1) : delay);
+    }
+  }
+
+  // parses 500ms, 2s and 1m, and plain numbers as millis
+  private static Duration parseDuration(String s) {
+    s = s.trim();
+    if (s.endsWith("ms")) {
+      return Duration.ofMillis(Long.parseLong(s.substring(0, s.length() - 2)));
+    } else if (s.endsWith("s")) {
+      return Duration.ofSeconds(Long.parseLong(s.substring(0, s.length() - 1)));
+    } else if (s.endsWith("m")) {
+      return Duration.ofMinutes(Long.parseLong(s.substring(0, s.length() - 1)));
+    }
+    return Duration.ofMillis(Long.parseLong(s));
+  }
+
+  /**
+   * Performs a request with the # @until property,
+   * and repeats the built request until the condition is met or the deadline has passed,
+   * as given by the # @deadline property, by default one minute.
+   * Each attempt is performed like other requests, e.g. within the rate limits.
+   * The delays are scheduled instead of slept, so no pool thread is held during a delay,
+   * but the calling thread waits for the final result, like for other requests.
+   */
+  private Map<String, Object> performUntil(HttpFile.Request request, String until,
       StringTemplateResolver templateResolver) {
-    var builder = HttpRequest.newBuilder(URI.create(templateResolver.toString(request.target())));
+    var condition = Condition.of(until);
+    var backoff = Backoff.of(request.getRequestPropertyValue("backoff").orElse("100ms"));
+    var deadline = System.nanoTime() + request.getRequestPropertyValue("deadline")
+        .map(HttpFileClient::parseDuration).orElse(Duration.ofMinutes(1)).toNanos();
+    var builtRequest = buildRequest(request, templateResolver);
+    var result = performRequest(request, builtRequest);
+    return poll(request, builtRequest, result, condition, backoff, 1, deadline).join();
+  }
+
+  private CompletableFuture<Map<String, Object>> poll(HttpFile.Request request,
+      BuiltRequest builtRequest, Map<String, Object> result, Condition condition,
+      Backoff backoff, int attempt, long deadline) {
+    var value = getStringValue(result, condition.path());
+    if (condition.matches(value)) {
+      return CompletableFuture.completedFuture(result);
+    }
+    long delay = backoff.delayMillis(attempt);
+    if (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay) > deadline) {
+      return CompletableFuture.failedFuture(new IllegalStateException(
+          "%s %s %s was still %s after %d attempts".formatted(condition.path(),
+              condition.equals() ? "==" : "!=", condition.value(), value, attempt)));
+    }
+    var delayedExecutor = CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS,
+        VIRTUAL_EXECUTOR);
+    return CompletableFuture.supplyAsync(() -> performRequest(request, builtRequest),
+            delayedExecutor)
+        .thenCompose(next -> poll(request, builtRequest, next, condition, backoff,
+            attempt + 1, deadline));
+  }
+
+  /**
+   * Performs a request with the # @stream [sse|ndjson] property,
+   * and passes each Server-Sent Event or line of NDJSON to the consumer as it arrives,
+   * as the event of a result with the request and response.
+   * Without a value, the format is given by the response's Content-Type.
+   * With the # @stream-until property, e.g. event.data.$.status == "done",
+   * the stream is cancelled when an event meets the condition.
+   * The events aren't buffered, only the last one is kept in the result.
+   */
+  private Map<String, Object> performStream(HttpFile.Request request, String stream,
+      StringTemplateResolver templateResolver,
+      BiConsumer<HttpFile.Request, Map<String, Object>> resultConsumer) {
+    var until = request.getRequestPropertyValue("stream-until").map(Condition::of);
+    var httpRequest = buildRequest(request, templateResolver).httpRequest();
+    long start = System.nanoTime();
+    HttpResponse<Stream<String>> httpResponse;
+    try {
+      httpResponse = transport.send(httpRequest,
+          new DecompressingBodyHandler<>(BodyHandlers.ofLines()));
+    } catch (IOException | InterruptedException ex) {
+      throw new RuntimeException(ex);
+    }
+    boolean sse = switch (stream.trim()) {
+      case "sse" -> true;
+      case "ndjson" -> false;
+      default -> httpResponse.headers().firstValue("Content-Type")
+          .map(contentType -> contentType.startsWith("text/event-stream")).orElse(false);
+    };
+    Map<String, Object> result = Map.of("request", httpRequest, "response", httpResponse);
+    // closing the lines cancels the rest of the response
+    try (var lines = httpResponse.body()) {
+      var events = StreamEvent.events(lines.iterator(), sse, start);
+      while (events.hasNext()) {
+        result = Map.of("request", httpRequest, "response", httpResponse,
+            "event", events.next());
+        if (resultConsumer != null) {
+          resultConsumer.accept(request, result);
+        }
+        if (until.isPresent() && until.get().matches(getStringValue(result, until.get().path()))) {
+          break;
+        }
+      }
+    }
+    return result;
+  }
+
+  private record InFlightKey(String method, URI uri, HttpHeaders headers) {
+  }
+
+  private final Map<InFlightKey, CompletableFuture<HttpResponse<String>>> inFlight =
+      new ConcurrentHashMap<>();
+
+  private boolean isCoalesced(HttpFile.Request request) {
+    var method = request.method();
+    if (method != HttpFile.HttpMethod.GET && method != HttpFile.HttpMethod.HEAD) {
+      return false;
+    }
+    return request.getRequestPropertyValue("coalesce")
+        .map(value -> value.isBlank() || Boolean.parseBoolean(value.trim()))
+        .orElse(coalesceRequests);
+  }
+
+  // sends a request, throwing like HttpTransport.send
+  private interface Sender {
+    HttpResponse<String> send(HttpRequest httpRequest) throws IOException, InterruptedException;
+  }
+
+  // shares the exchange with identical requests in flight,
+  // so only the first one is sent with the sender, e.g. within the rate limits
+  private HttpResponse<String> sendCoalesced(HttpRequest httpRequest, Sender sender)
+      throws IOException, InterruptedException {
+    var key = new InFlightKey(httpRequest.method(), httpRequest.uri(), httpRequest.headers());
+    var future = new CompletableFuture<HttpResponse<String>>();
+    var existing = inFlight.putIfAbsent(key, future);
+    if (existing == null) {
+      try {
+        var response = sender.send(httpRequest);
+        future.complete(response);
+        return response;
+      } catch (IOException | InterruptedException | RuntimeException e) {
+        future.completeExceptionally(e);
+        throw e;
+      } finally {
+        inFlight.remove(key, future);
+      }
+    }
+    try {
+      return existing.get();
+    } catch (ExecutionException e) {
+      var cause = (e.getCause() instanceof CompletionException && e.getCause().getCause() != null
+          ? e.getCause().getCause() : e.getCause());
+      if (cause instanceof IOException ioe) {
+        throw ioe;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  // the number of retries after a Retry-After
+  private static final int MAX_RETRIES = 3;
+
+  // sends within the rate limits, if any, retrying when asked to by Retry-After
+  private HttpResponse<String> sendWithinLimits(HttpFile.Request request,
+      HttpRequest httpRequest) throws IOException, InterruptedException {
+    var bodyHandler = new DecompressingBodyHandler<>(BodyHandlers.ofString());
+    if (rateLimiter == null) {
+      return transport.send(httpRequest, bodyHandler);
+    }
+    var authority = httpRequest.uri().getAuthority();
+    var limits = rateLimiter.getDefaultLimits().with(request::getRequestPropertyValue);
+    for (int retry = 0; ; retry++) {
+      HttpResponse<String> httpResponse;
+      var permit = rateLimiter.acquire(authority, limits);
+      try {
+        httpResponse = transport.send(httpRequest, bodyHandler);
+      } finally {
+        permit.close();
+      }
+      if (rateLimiter.retryAfter(authority, httpResponse).isEmpty() || retry >= MAX_RETRIES) {
+        return httpResponse;
+      }
+    }
+  }
+
+  // sends the request, coalesced with identical ones if enabled, and within the rate limits
+  private HttpResponse<String> sendLimited(HttpFile.Request request, HttpRequest httpRequest)
+      throws IOException, InterruptedException {
+    return (isCoalesced(request)
+        ? sendCoalesced(httpRequest, coalesced -> sendWithinLimits(request, coalesced))
+        : sendWithinLimits(request, httpRequest));
+  }
+
+  // parsed targets without dynamic parts, e.g. of resolved models
+  private final Map<String, URI> constantUris = new ConcurrentHashMap<>();
+  private static final int MAX_CONSTANT_URIS = 1000;
+
+  private URI toUri(HttpFile.StringTemplate target, StringTemplateResolver templateResolver) {
+    var constantTarget = (target.parts().size() == 1 ? target.constantValue() : null);
+    if (constantTarget == null) {
+      return URI.create(templateResolver.toString(target));
+    }
+    if (constantUris.size() >= MAX_CONSTANT_URIS) {
+      constantUris.clear();
+    }
+    return constantUris.computeIfAbsent(constantTarget, URI::create);
+  }
+
+  /**
+   * A multipart body, with a description of the content for computing archive keys.
+   */
+  private record MultipartBody(BodyPublisher publisher, String description) {
+  }
+
+  private static final String CRLF = "\r\n";
+
+  /**
+   * Creates a publisher of the parts, that streams file parts from their files,
+   * so the body is never held in memory. The Content-Length is the sum of the part lengths,
+   * unless the length of a part that isn't a file is unknown.
+   */
+  private MultipartBody multipartBody(HttpFile.Body body, String boundary,
+      StringTemplateResolver templateResolver) throws FileNotFoundException {
+    List<BodyPublisher> publishers = new ArrayList<>();
+    var description = new StringBuilder();
+    for (var part : body.parts()) {
+      var head = new StringBuilder("--").append(boundary).append(CRLF);
+      for (var header : part.headers()) {
+        head.append(templateResolver.toString(header.name())).append(": ")
+            .append(templateResolver.toString(header.value())).append(CRLF);
+      }
+      head.append(CRLF);
+      publishers.add(BodyPublishers.ofString(head.toString()));
+      description.append(head);
+      var resourceRef = part.resourceRef();
+      if (resourceRef != null) {
+        var resource = templateResolver.toString(resourceRef.resource());
+        var path = inputStreamProvider.getPath(resource);
+        publishers.add(path != null ? BodyPublishers.ofFile(path)
+            : BodyPublishers.ofInputStream(() -> inputStreamProvider.getInputStream(resource)));
+        description.append("< ").append(resource);
+      } else {
+        var content = templateResolver.toString(part.content());
+        publishers.add(BodyPublishers.ofString(content));
+        description.append(content);
+      }
+      publishers.add(BodyPublishers.ofString(CRLF));
+      description.append(CRLF);
+    }
+    var end = "--" + boundary + "--" + CRLF;
+    publishers.add(BodyPublishers.ofString(end));
+    description.append(end);
+    return new MultipartBody(BodyPublishers.concat(publishers.toArray(BodyPublisher[]::new)),
+        description.toString());
+  }
+
+  /**
+   * A built request, with the cached response it revalidates, if any,
+   * and the body for computing its archive key.
+   */
+  private record BuiltRequest(HttpRequest httpRequest, boolean cacheable,
+      HttpCache.Entry cacheEntry, String archiveBody) {
+  }
+
+  private BuiltRequest buildRequest(HttpFile.Request request,
+      StringTemplateResolver templateResolver) {
+    boolean multipart = (request.body() != null && request.body().isMultipart());
+    var compress = (request.body() != null && !multipart
+        ? request.getRequestPropertyValue("compress").map(ContentEncoding::of)
+        : Optional.<ContentEncoding>empty());
+    // start fetching body resources, while resolving the rest of the request
+    final var bodyContent = (request.body() != null && !multipart && compress.isEmpty()
+        ? templateResolver.toStringAsync(request.body().content())
+        : CompletableFuture.completedFuture(""));
+    final var bodyParts = (compress.isPresent()
+        ? templateResolver.toStringsAsync(request.body().content())
+        : null);
+    var uri = toUri(request.target(), templateResolver);
+    var builder = HttpRequest.newBuilder(uri);
     if (request.version() != null) {
       var versionString = templateResolver.toString(request.version());
       // turn HTTP/1.1 into HTTP_1_1 and HTTP/2 into HTTP_2
       builder.version(Version.valueOf(versionString.replaceAll("\\W", "_")));
     }
+    Set<String> headerNames = new HashSet<>();
+    String contentType = null;
     for (var header : request.headers()) {
-      builder.header(
-          templateResolver.toString(header.name()),
-          templateResolver.toString(header.value())
-      );
+      var headerName = templateResolver.toString(header.name());
+      var headerValue = templateResolver.toString(header.value());
+      headerNames.add(headerName.toLowerCase());
+      builder.header(headerName, headerValue);
+      if (headerName.equalsIgnoreCase("Content-Type")) {
+        contentType = headerValue;
+      } else if (headerName.equalsIgnoreCase("Content-Encoding") && compress.isPresent()
+          && !headerValue.trim().equalsIgnoreCase(compress.get().name())) {
+        throw new IllegalArgumentException("Content-Encoding: %s doesn't match # @compress %s"
+            .formatted(headerValue, compress.get().name()));
+      }
+    }
+    if (acceptCompressed && !headerNames.contains("accept-encoding")) {
+      builder.header("Accept-Encoding", DecompressingBodyHandler.ACCEPT_ENCODING);
+    }
+    // revalidate cached response, unless the request is already conditional
+    var cacheable = (httpCache != null && request.method() == HttpFile.HttpMethod.GET
+        && request.getRequestPropertyValue("stream").isEmpty());
+    // the builder has the uri and headers the cached response must match
+    var cacheEntry = (cacheable ? httpCache.get(builder.build()) : null);
+    if (cacheEntry != null && !headerNames.contains("if-none-match")
+        && !headerNames.contains("if-modified-since")) {
+      cacheEntry.addValidators(builder);
+    } else {
+      cacheEntry = null;
+    }
+    MultipartBody multipartBody = null;
+    if (multipart) {
+      var boundary = HttpFile.Body.boundary(contentType);
+      if (boundary == null) {
+        throw new IllegalArgumentException(
+            "Expected multipart Content-Type with boundary, but was " + contentType);
+      }
+      try {
+        multipartBody = multipartBody(request.body(), boundary, templateResolver);
+      } catch (FileNotFoundException ex) {
+        throw new RuntimeException(ex);
+      }
+      builder.method(request.method().name(), multipartBody.publisher());
+    } else if (compress.isPresent()) {
+      // the body is rendered into strings first, and only the compression is done while sent,
+      // with chunked transfer encoding, since the compressed length is unknown
+      if (!headerNames.contains("content-encoding")) {
+        builder.header("Content-Encoding", compress.get().name());
+      }
+      builder.method(request.method().name(), compress.get().publisher(bodyParts.join()));
+    } else {
+      builder.method(request.method().name(), BodyPublishers.ofString(bodyContent.join()));
+    }
+    var archiveBody = (exchangeArchive == null ? null
+        : multipartBody != null ? multipartBody.description()
+        : compress.isPresent()
+        ? String.join("", bodyParts.join().stream().filter(part -> part != null).toList())
+        : bodyContent.join());
+    return new BuiltRequest(builder.build(), cacheable, cacheEntry, archiveBody);
+  }
+
+  private Map<String, Object> performRequest(HttpFile.Request request,
+      StringTemplateResolver templateResolver) {
+    return performRequest(request, buildRequest(request, templateResolver));
+  }
+
+  // performs a built request, e.g. again when polling
+  private Map<String, Object> performRequest(HttpFile.Request request,
+      BuiltRequest builtRequest) {
+    var httpRequest = builtRequest.httpRequest();
+    var cacheEntry = builtRequest.cacheEntry();
+    byte[] archiveKey = null;
+    if (exchangeArchive != null) {
+      archiveKey = exchangeArchive.key(httpRequest, builtRequest.archiveBody());
+      if (exchangeArchive.getMode() == ExchangeArchive.Mode.REPLAY) {
+        return Map.of("request", httpRequest,
+            "response", exchangeArchive.replay(httpRequest, archiveKey));
+      }
     }
-    var bodyContent = (request.body() != null
-        ? templateResolver.toString(request.body().content())
-        : "");
-    builder.method(request.method().name(), BodyPublishers.ofString(bodyContent));
-    var httpRequest = builder.build();
 
     try {
-      HttpResponse<String> httpResponse = httpClient.send(httpRequest, BodyHandlers.ofString());
+      HttpResponse<String> httpResponse = sendLimited(request, httpRequest);
+      if (cacheEntry != null && httpResponse.statusCode() == 304) {
+        httpResponse = cacheEntry.toResponse(httpResponse);
+      } else if (builtRequest.cacheable()) {
+        httpCache.put(httpResponse);
+      }
+      // the cached response is recorded, since a replay won't have the cache entry
+      if (archiveKey != null) {
+        exchangeArchive.record(archiveKey, httpResponse);
+      }
       return Map.of("request", httpRequest, "response", httpResponse);
     } catch (IOException | InterruptedException ex) {
       throw new RuntimeException(ex);
@@ -0,0 +1,271 @@
+package no.ngu.httpfile.client;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import no.ngu.httpfile.HttpFile;
+import no.ngu.httpfile.HttpFile.StringTemplate.Part;
+import no.ngu.httpfile.HttpFileParser;
+import no.ngu.httpfile.StringValueProvider;
+
+/**
+ * Watches an .http file, and re-runs the requests affected by each edit.
+ * Only the ### blocks that changed are re-parsed, and the new model is diffed against
+ * the previous one. Changed requests, requests referring to changed file variables,
+ * and requests referring to the results of these, are performed again,
+ * while the results of the other requests are kept, e.g. of login and setup requests.
+ * A request refers to another one with a variable reference starting with its name,
+ * e.g. {{login.response.body.$.token}}, directly or through file variables.
+ */
+public class HttpFileWatcher {
+
+  // how long to wait for an editor to finish writing, before reading the file
+  private static final long SETTLE_MILLIS = 50;
+
+  private final HttpFileClient client;
+  private final HttpFileParser parser = new HttpFileParser();
+  private Map<String, String> variableOverrides = Map.of();
+  private BiConsumer<HttpFile.Request, Map<String, Object>> resultConsumer = null;
+
+  private final Map<String, HttpFile.Model> blockCache = new HashMap<>();
+  private String source = null;
+  private HttpFile.Model model = null;
+  private Map<String, Object> results = Map.of();
+
+  /**
+   * Initializes with the client that performs the requests.
+   *
+   * @param client the client
+   */
+  public HttpFileWatcher(HttpFileClient client) {
+    this.client = client;
+  }
+
+  /**
+   * Sets the variable overrides.
+   *
+   * @param variableOverrides the variable overrides
+   */
+  public void setVariableOverrides(Map<String, String> variableOverrides) {
+    this.variableOverrides = Map.copyOf(variableOverrides);
+  }
+
+  /**
+   * Sets the consumer for processing or validating the result after each request.
+   *
+   * @param resultConsumer the consumer
+   */
+  public void setResultConsumer(BiConsumer<HttpFile.Request, Map<String, Object>> resultConsumer) {
+    this.resultConsumer = resultConsumer;
+  }
+
+  /**
+   * Gets the results of the requests performed so far, that are still in the file.
+   *
+   * @return the results, with the request name as key
+   */
+  public Map<String, Object> getResults() {
+    return results;
+  }
+
+  /**
+   * Re-parses the source, and performs the requests affected by the changes
+   * since the previous source, or all of them the first time.
+   *
+   * @param source the .http source
+   * @return the requests that were performed, in file order
+   */
+  public List<HttpFile.Request> update(String source) {
+    // kept for diffing against the new model
+    final var previousModel = model;
+    model = parser.parse(source, blockCache);
+    this.source = source;
+    Map<String, Object> previousResults = new HashMap<>();
+    for (var request : model.requests()) {
+      request.getRequestPropertyValue("name")
+          .filter(name -> results.containsKey(name))
+          .ifPresent(name -> previousResults.put(name, results.get(name)));
+    }
+    var requests = requestsToPerform(previousModel, model, previousResults.keySet());
+    Set<HttpFile.Request> performed = Collections.newSetFromMap(new IdentityHashMap<>());
+    performed.addAll(requests);
+    for (var request : requests) {
+      request.getRequestPropertyValue("name").ifPresent(previousResults::remove);
+    }
+    results = client.performRequests(model, StringValueProvider.Properties.of(variableOverrides),
+        (request, name) -> performed.contains(request) ? request : null, resultConsumer,
+        previousResults);
+    return requests;
+  }
+
+  /**
+   * Performs the requests in the file, and then the affected ones whenever it is changed,
+   * until the thread is interrupted.
+   *
+   * @param file the .http file
+   * @throws IOException if the file cannot be watched or read
+   * @throws InterruptedException if interrupted while waiting for changes
+   */
+  public void watch(Path file) throws IOException, InterruptedException {
+    var path = file.toAbsolutePath();
+    try (var watchService = path.getFileSystem().newWatchService()) {
+      path.getParent().register(watchService,
+          StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+      updateFrom(path);
+      while (true) {
+        var key = watchService.take();
+        Thread.sleep(SETTLE_MILLIS);
+        boolean changed = false;
+        // collect all events of the edit, so it's handled once
+        for (; key != null; key = watchService.poll()) {
+          for (var event : key.pollEvents()) {
+            changed |= path.getFileName().equals(event.context());
+          }
+          key.reset();
+        }
+        if (changed) {
+          updateFrom(path);
+        }
+      }
+    }
+  }
+
+  // updates from the file, unless its content is the same, and reports errors
+  private void updateFrom(Path path) throws IOException {
+    var content = Files.readString(path);
+    if (content.equals(source)) {
+      return;
+    }
+    try {
+      var requests = update(content);
+      System.err.println("Performed %d of %d requests in %s"
+          .formatted(requests.size(), model.requests().size(), path));
+    } catch (RuntimeException ex) {
+      // keep watching, the next edit may fix it
+      this.source = content;
+      System.err.println("Failed updating from %s:\n%s".formatted(path, ex));
+    }
+  }
+
+  /**
+   * Determines the requests to perform after a change, in file order:
+   * the ones that are new or changed, or refer to file variables that are new or changed,
+   * and the ones that refer to the results of these.
+   * Requests that these refer to, are also performed, if there is no result for them.
+   *
+   * @param previous the previous model, or null if none
+   * @param current the current model
+   * @param resultNames the names of the requests with a result
+   * @return the requests to perform
+   */
+  static List<HttpFile.Request> requestsToPerform(HttpFile.Model previous,
+      HttpFile.Model current, Set<String> resultNames) {
+    Set<String> changedVariables = new HashSet<>();
+    for (var variable : current.fileVariables()) {
+      if (previous == null || !previous.getFileVariableValue(variable.name())
+          .equals(current.getFileVariableValue(variable.name()))) {
+        changedVariables.add(variable.name());
+      }
+    }
+    if (previous != null) {
+      for (var variable : previous.fileVariables()) {
+        if (current.getFileVariableValue(variable.name()).isEmpty()) {
+          changedVariables.add(variable.name());
+        }
+      }
+    }
+    var requests = current.requests();
+    List<Set<String>> references = new ArrayList<>();
+    for (var request : requests) {
+      references.add(references(request, current));
+    }
+    // requests can only refer to earlier ones, so one pass finds all dependents
+    Set<String> performedNames = new HashSet<>();
+    boolean[] perform = new boolean[requests.size()];
+    for (int i = 0; i < requests.size(); i++) {
+      var request = requests.get(i);
+      perform[i] = previous == null || !previous.requests().contains(request)
+          || !Collections.disjoint(references.get(i), changedVariables)
+          || !Collections.disjoint(references.get(i), performedNames);
+      if (perform[i]) {
+        request.getRequestPropertyValue("name").ifPresent(performedNames::add);
+      }
+    }
+    // and a backward pass finds the missing results they refer to
+    Set<String> missingNames = new HashSet<>();
+    for (int i = requests.size() - 1; i >= 0; i--) {
+      var name = requests.get(i).getRequestPropertyValue("name");
+      perform[i] |= name.isPresent() && missingNames.contains(name.get());
+      if (perform[i]) {
+        for (var reference : references.get(i)) {
+          if (!resultNames.contains(reference)) {
+            missingNames.add(reference);
+          }
+        }
+      }
+    }
+    List<HttpFile.Request> result = new ArrayList<>();
+    for (int i = 0; i < requests.size(); i++) {
+      if (perform[i]) {
+        result.add(requests.get(i));
+      }
+    }
+    return result;
+  }
+
+  // the first segment of the variable references of the request,
+  // including those of the file variables it refers to
+  private static Set<String> references(HttpFile.Request request, HttpFile.Model model) {
+    List<HttpFile.StringTemplate> templates = new ArrayList<>();
+    templates.add(request.target());
+    templates.add(request.version());
+    if (request.headers() != null) {
+      for (var header : request.headers()) {
+        templates.add(header.name());
+        templates.add(header.value());
+      }
+    }
+    var body = request.body();
+    if (body != null) {
+      templates.add(body.content());
+      if (body.isMultipart()) {
+        for (var part : body.parts()) {
+          for (var header : part.headers()) {
+            templates.add(header.name());
+            templates.add(header.value());
+          }
+          templates.add(part.content());
+        }
+      }
+    }
+    Set<String> references = new HashSet<>();
+    while (!templates.isEmpty()) {
+      var template = templates.removeLast();
+      if (template == null) {
+        continue;
+      }
+      for (var part : template.parts()) {
+        if (part instanceof Part.VariableRef(var name)) {
+          int pos = name.indexOf('.');
+          var reference = (pos >= 0 ? name.substring(0, pos) : name);
+          if (references.add(reference)) {
+            model.getFileVariableValue(reference).ifPresent(templates::add);
+          }
+        } else if (part instanceof Part.ResourceRef(var resource)) {
+          templates.add(resource);
+        }
+      }
+    }
+    return references;
+  }
+}
@@ -0,0 +1,239 @@
+package no.ngu.httpfile.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.http.HttpClient;
+import java.net.http.HttpClient.Version;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.ResponseInfo;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+
+/**
+ * Sends requests and receives responses, for {@link HttpFileClient}.
+ */
+public interface HttpTransport {
+
+  /**
+   * Sends a request asynchronously.
+   *
+   * @param <T> the body type
+   * @param request the request
+   * @param bodyHandler the handler of the response body
+   * @return the future response
+   */
+  <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request,
+      BodyHandler<T> bodyHandler);
+
+  /**
+   * Sends a request and waits for the response.
+   *
+   * @param <T> the body type
+   * @param request the request
+   * @param bodyHandler the handler of the response body
+   * @return the response
+   * @throws IOException if sending or receiving fails
+   * @throws InterruptedException if interrupted while waiting
+   */
+  default <T> HttpResponse<T> send(HttpRequest request, BodyHandler<T> bodyHandler)
+      throws IOException, InterruptedException {
+    try {
+      return sendAsync(request, bodyHandler).get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException ioe) {
+        throw ioe;
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * Transport using a {@link HttpClient}.
+   *
+   * @param httpClient the client
+   */
+  public record Client(HttpClient httpClient) implements HttpTransport {
+
+    @Override
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request,
+        BodyHandler<T> bodyHandler) {
+      return httpClient.sendAsync(request, bodyHandler);
+    }
+
+    @Override
+    public <T> HttpResponse<T> send(HttpRequest request, BodyHandler<T> bodyHandler)
+        throws IOException, InterruptedException {
+      return httpClient.send(request, bodyHandler);
+    }
+  }
+
+  /**
+   * Response of an in-process handler.
+   *
+   * @param statusCode the status code
+   * @param headers the headers
+   * @param body the body
+   */
+  public record Response(int statusCode, Map<String, List<String>> headers, byte[] body) {
+
+    /**
+     * Initializes with a text body.
+     *
+     * @param statusCode the status code
+     * @param contentType the content type, without charset, since UTF-8 is used
+     * @param body the body
+     */
+    public Response(int statusCode, String contentType, String body) {
+      this(statusCode, Map.of("Content-Type", List.of(contentType + "; charset=UTF-8")),
+          body.getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  /**
+   * Handles requests in-process.
+   */
+  public interface Handler {
+
+    /**
+     * Handles a request.
+     *
+     * @param request the request
+     * @param body the published request body
+     * @return the response
+     * @throws Exception if handling fails
+     */
+    Response handle(HttpRequest request, byte[] body) throws Exception;
+  }
+
+  /**
+   * Transport that dispatches requests to handlers registered for their authority,
+   * i.e. host and port, without sockets, HTTP framing or thread hand-offs.
+   * Request bodies are published and responses are passed through the body handler,
+   * as for the network.
+   */
+  public class InProcess implements HttpTransport {
+
+    private final Map<String, Handler> handlers = new ConcurrentHashMap<>();
+
+    /**
+     * Registers the handler for requests to the authority.
+     *
+     * @param authority the host, with the port if it isn't the default one
+     * @param handler the handler
+     * @return this transport, for chaining
+     */
+    public InProcess register(String authority, Handler handler) {
+      handlers.put(authority, handler);
+      return this;
+    }
+
+    @Override
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request,
+        BodyHandler<T> bodyHandler) {
+      var handler = handlers.get(request.uri().getAuthority());
+      if (handler == null) {
+        return CompletableFuture.failedFuture(new ConnectException(
+            "No in-process handler for " + request.uri().getAuthority()));
+      }
+      var requestBody = request.bodyPublisher()
+          .map(InProcess::collect)
+          .orElse(CompletableFuture.completedFuture(new byte[0]));
+      return requestBody.thenCompose(body -> {
+        Response response;
+        try {
+          response = handler.handle(request, body);
+        } catch (Exception e) {
+          return CompletableFuture.failedFuture(e);
+        }
+        return receive(request, response, bodyHandler);
+      });
+    }
+
+    // subscribes to the publisher and collects the bytes
+    private static CompletableFuture<byte[]> collect(Flow.Publisher<ByteBuffer> publisher) {
+      var result = new CompletableFuture<byte[]>();
+      publisher.subscribe(new Flow.Subscriber<>() {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+          subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(ByteBuffer item) {
+          var array = new byte[item.remaining()];
+          item.get(array);
+          bytes.writeBytes(array);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+          result.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+          result.complete(bytes.toByteArray());
+        }
+      });
+      return result;
+    }
+
+    // feeds the response body to the body handler's subscriber
+    private static <T> CompletableFuture<HttpResponse<T>> receive(HttpRequest request,
+        Response response, BodyHandler<T> bodyHandler) {
+      var headers = HttpHeaders.of(response.headers(), (name, value) -> true);
+      var version = request.version().orElse(Version.HTTP_1_1);
+      ResponseInfo responseInfo = new ResponseInfo() {
+        @Override
+        public int statusCode() {
+          return response.statusCode();
+        }
+
+        @Override
+        public HttpHeaders headers() {
+          return headers;
+        }
+
+        @Override
+        public Version version() {
+          return version;
+        }
+      };
+      var bodySubscriber = bodyHandler.apply(responseInfo);
+      bodySubscriber.onSubscribe(new Flow.Subscription() {
+        private boolean done = false;
+
+        @Override
+        public void request(long n) {
+          if (!done && n > 0) {
+            done = true;
+            if (response.body().length > 0) {
+              bodySubscriber.onNext(List.of(ByteBuffer.wrap(response.body())));
+            }
+            bodySubscriber.onComplete();
+          }
+        }
+
+        @Override
+        public void cancel() {
+          done = true;
+        }
+      });
+      return bodySubscriber.getBody().toCompletableFuture()
+          .thenApply(body -> new BasicHttpResponse<>(request, response.statusCode(), headers,
+              body, request.uri(), version));
+    }
+  }
+}
@@ -0,0 +1,235 @@
+package no.ngu.httpfile.client;
+
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Limits the request rate and the number of requests in flight per host, i.e. uri authority.
+ * The rate is limited by a token bucket, implemented as a single atomic
+ * theoretical arrival time that is advanced with compare-and-set, so no locks are taken.
+ * Requests with overridden limits pass an extra gate with these limits,
+ * shared by the requests to the host with the same limits.
+ * Each caller reserves its slot and then sleeps until it is due.
+ * A Retry-After from a 429 or 503 response pauses all requests to the host.
+ */
+public class RateLimiter {
+
+  /**
+   * Limits for a host.
+   *
+   * @param requestsPerSecond the sustained request rate, or 0 for unlimited
+   * @param burst the number of requests that may be sent at once, after being idle
+   * @param maxConcurrent the maximum number of requests in flight, or 0 for unlimited
+   */
+  public record Limits(double requestsPerSecond, int burst, int maxConcurrent) {
+
+    /**
+     * No limits.
+     */
+    public static final Limits UNLIMITED = new Limits(0, 1, 0);
+
+    /**
+     * Creates limits with properties overriding these limits,
+     * i.e. # @rate requests-per-second, # @burst count and # @max-concurrent count.
+     *
+     * @param properties gets a property value
+     * @return the resulting limits
+     */
+    public Limits with(Function<String, Optional<String>> properties) {
+      return new Limits(
+          properties.apply("rate").map(String::trim).map(Double::parseDouble)
+              .orElse(requestsPerSecond),
+          properties.apply("burst").map(String::trim).map(Integer::parseInt).orElse(burst),
+          properties.apply("max-concurrent").map(String::trim).map(Integer::parseInt)
+              .orElse(maxConcurrent));
+    }
+  }
+
+  /**
+   * A token bucket and concurrency limit.
+   * The bucket is a single atomic theoretical arrival time, advanced with compare-and-set.
+   */
+  private static class Gate {
+
+    // the interval between requests and how far ahead of it a burst may go, in nanos
+    private final long interval;
+    private final long tolerance;
+    // the theoretical arrival time of the next request, in nanos
+    private final AtomicLong nextArrival = new AtomicLong(System.nanoTime());
+    // null if the number of requests in flight isn't limited
+    private final Semaphore semaphore;
+
+    Gate(Limits limits) {
+      this.interval = (limits.requestsPerSecond() > 0
+          ? (long) (TimeUnit.SECONDS.toNanos(1) / limits.requestsPerSecond()) : 0);
+      this.tolerance = interval * Math.max(limits.burst() - 1, 0);
+      this.semaphore = (limits.maxConcurrent() > 0 ? new Semaphore(limits.maxConcurrent()) : null);
+    }
+
+    // reserves a slot, and returns the nanos to wait for it
+    long reserve(long now) {
+      if (interval == 0) {
+        return 0;
+      }
+      while (true) {
+        long arrival = nextArrival.get();
+        if (nextArrival.compareAndSet(arrival, Math.max(arrival, now) + interval)) {
+          // up to burst requests are allowed ahead of the theoretical arrival time
+          return Math.max(arrival - tolerance - now, 0);
+        }
+      }
+    }
+
+    // waits for a slot and a permit
+    void acquire() throws InterruptedException {
+      long wait = reserve(System.nanoTime());
+      if (wait > 0) {
+        TimeUnit.NANOSECONDS.sleep(wait);
+      }
+      if (semaphore != null) {
+        semaphore.acquire();
+      }
+    }
+
+    void release() {
+      if (semaphore != null) {
+        semaphore.release();
+      }
+    }
+  }
+
+  /**
+   * State of a host, i.e. the gate of the default limits and the Retry-After pause.
+   */
+  private static class HostState {
+
+    private final Gate gate;
+    // the earliest time requests may be sent, after Retry-After, in nanos
+    private final AtomicLong notBefore = new AtomicLong(System.nanoTime());
+
+    HostState(Limits limits) {
+      this.gate = new Gate(limits);
+    }
+  }
+
+  /**
+   * Key of the gate of requests to a host with overridden limits.
+   */
+  private record OverrideKey(String authority, Limits limits) {
+  }
+
+  /**
+   * A permit for sending a request, that must be released when the response is received.
+   */
+  public interface Permit extends AutoCloseable {
+
+    @Override
+    void close();
+  }
+
+  private final Limits defaultLimits;
+  private final Map<String, HostState> hostStates = new ConcurrentHashMap<>();
+  private final Map<OverrideKey, Gate> overrideGates = new ConcurrentHashMap<>();
+
+  /**
+   * Initializes with the limits used for requests without overriding properties.
+   *
+   * @param defaultLimits the default limits
+   */
+  public RateLimiter(Limits defaultLimits) {
+    this.defaultLimits = defaultLimits;
+  }
+
+  /**
+   * Gets the limits used for requests without overriding properties.
+   *
+   * @return the default limits
+   */
+  public Limits getDefaultLimits() {
+    return defaultLimits;
+  }
+
+  private HostState getHostState(String authority) {
+    return hostStates.computeIfAbsent(authority, key -> new HostState(defaultLimits));
+  }
+
+  /**
+   * Waits until a request may be sent to the host.
+   * The default limits of the host always apply, and other limits, e.g. from request properties,
+   * apply in addition, to the requests to the host with the same limits.
+   *
+   * @param authority the host, with the port if it isn't the default one
+   * @param limits the limits
+   * @return the permit, to be closed when the response is received
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public Permit acquire(String authority, Limits limits) throws InterruptedException {
+    var hostState = getHostState(authority);
+    long pause = hostState.notBefore.get() - System.nanoTime();
+    if (pause > 0) {
+      TimeUnit.NANOSECONDS.sleep(pause);
+    }
+    var overrideGate = (limits.equals(defaultLimits) ? null
+        : overrideGates.computeIfAbsent(new OverrideKey(authority, limits),
+            key -> new Gate(limits)));
+    if (overrideGate == null) {
+      hostState.gate.acquire();
+      return hostState.gate::release;
+    }
+    overrideGate.acquire();
+    try {
+      hostState.gate.acquire();
+    } catch (InterruptedException e) {
+      overrideGate.release();
+      throw e;
+    }
+    return () -> {
+      hostState.gate.release();
+      overrideGate.release();
+    };
+  }
+
+  /**
+   * Pauses requests to the host, if the response is 429 or 503 with a Retry-After header.
+   *
+   * @param authority the host
+   * @param response the response
+   * @return the pause, or empty if the response doesn't ask for one
+   */
+  public Optional<Duration> retryAfter(String authority, HttpResponse<?> response) {
+    if (response.statusCode() != 429 && response.statusCode() != 503) {
+      return Optional.empty();
+    }
+    var retryAfter = response.headers().firstValue("Retry-After").flatMap(RateLimiter::parse);
+    retryAfter.ifPresent(duration -> {
+      long until = System.nanoTime() + duration.toNanos();
+      getHostState(authority).notBefore.accumulateAndGet(until, Math::max);
+    });
+    return retryAfter;
+  }
+
+  // parses delay-seconds or an HTTP-date
+  static Optional<Duration> parse(String retryAfter) {
+    try {
+      return Optional.of(Duration.ofSeconds(Long.parseLong(retryAfter.trim())));
+    } catch (NumberFormatException e) {
+      try {
+        var date = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+        var duration = Duration.between(ZonedDateTime.now(), date);
+        return Optional.of(duration.isNegative() ? Duration.ZERO : duration);
+      } catch (DateTimeParseException dtpe) {
+        return Optional.empty();
+      }
+    }
+  }
+}
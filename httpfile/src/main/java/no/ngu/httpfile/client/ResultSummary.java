@@ -0,0 +1,36 @@
+package no.ngu.httpfile.client;
+
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Map;
+import no.ngu.httpfile.HttpFile;
+
+/**
+ * Summary of a request result, for printing it.
+ *
+ * @param label the request name, or the method and URI if the request has no name
+ * @param statusCode the status code, or 0 if there is no response
+ * @param body the response body, the data of a streamed event, or empty if none
+ */
+public record ResultSummary(String label, int statusCode, String body) {
+
+  /**
+   * Summarizes a result of {@link HttpFileClient#performRequests}.
+   *
+   * @param request the request
+   * @param result the result
+   * @return the summary
+   */
+  public static ResultSummary of(HttpFile.Request request, Map<String, Object> result) {
+    var label = request.getRequestPropertyValue("name").orElseGet(() ->
+        result.get("request") instanceof HttpRequest httpRequest
+            ? "%s %s".formatted(httpRequest.method(), httpRequest.uri())
+            : request.method().name());
+    int statusCode = (result.get("response") instanceof HttpResponse<?> response
+        ? response.statusCode() : 0);
+    var body = (result.get("event") instanceof StreamEvent event ? event.data()
+        : result.get("response") instanceof HttpResponse<?> response
+        && response.body() instanceof String s ? s : "");
+    return new ResultSummary(label, statusCode, body);
+  }
+}
@@ -0,0 +1,99 @@
+package no.ngu.httpfile.client;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An event of a streaming response, i.e. a Server-Sent Event or a line of NDJSON.
+ *
+ * @param index the index of the event, starting at 0
+ * @param type the event type, or null if none
+ * @param id the event id, or null if none
+ * @param data the event data, i.e. the joined data lines of an SSE or a line of NDJSON
+ * @param elapsed the time from sending the request to receiving the event,
+ *     for the first event the time to first event
+ * @param sincePrevious the time since the previous event, or since sending the request
+ */
+public record StreamEvent(int index, String type, String id, String data, Duration elapsed,
+    Duration sincePrevious) {
+
+  /**
+   * Reads events from the lines of a response, as they arrive.
+   *
+   * @param lines the lines
+   * @param sse whether the lines are Server-Sent Events, otherwise each non-blank line is an event
+   * @param start the time the request was sent, in nanos
+   * @return the events
+   */
+  public static Iterator<StreamEvent> events(Iterator<String> lines, boolean sse, long start) {
+    return new Iterator<>() {
+      private StreamEvent next = null;
+      private int index = 0;
+      private long previous = start;
+
+      private StreamEvent event(String type, String id, String data) {
+        long now = System.nanoTime();
+        var event = new StreamEvent(index++, type, id, data, Duration.ofNanos(now - start),
+            Duration.ofNanos(now - previous));
+        previous = now;
+        return event;
+      }
+
+      // reads lines until an event is complete, or returns null at the end
+      private StreamEvent read() {
+        String type = null;
+        String id = null;
+        StringBuilder data = null;
+        while (lines.hasNext()) {
+          var line = lines.next();
+          if (!sse) {
+            if (!line.isBlank()) {
+              return event(null, null, line);
+            }
+          } else if (line.isEmpty()) {
+            if (data != null) {
+              return event(type, id, data.toString());
+            }
+            type = null;
+          } else if (!line.startsWith(":")) {
+            int pos = line.indexOf(':');
+            var field = (pos >= 0 ? line.substring(0, pos) : line);
+            var value = (pos >= 0 ? line.substring(pos + 1) : "");
+            if (value.startsWith(" ")) {
+              value = value.substring(1);
+            }
+            switch (field) {
+              case "event" -> type = value;
+              case "id" -> id = value;
+              case "data" -> data = (data == null ? new StringBuilder(value)
+                  : data.append('\n').append(value));
+              default -> {
+                // e.g. retry
+              }
+            }
+          }
+        }
+        return null;
+      }
+
+      @Override
+      public boolean hasNext() {
+        if (next == null) {
+          next = read();
+        }
+        return next != null;
+      }
+
+      @Override
+      public StreamEvent next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        var event = next;
+        next = null;
+        return event;
+      }
+    };
+  }
+}
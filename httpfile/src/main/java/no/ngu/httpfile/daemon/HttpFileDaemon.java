@@ -0,0 +1,223 @@
+package no.ngu.httpfile.daemon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import no.ngu.httpfile.HttpFile;
+import no.ngu.httpfile.HttpFileParser;
+import no.ngu.httpfile.client.HttpFileClient;
+import no.ngu.httpfile.client.ResultSummary;
+
+/**
+ * Long-lived process that runs .http files for {@link HttpFileDaemonClient}s,
+ * to avoid paying JVM startup, class loading and JIT warm-up for each run.
+ * It listens on a Unix domain socket, and keeps one {@link HttpFileClient},
+ * with its connection pools, and the parsed models of the files it has run,
+ * which are re-parsed incrementally when a file changes.
+ * The results are streamed back to the client as each request is performed.
+ */
+public class HttpFileDaemon implements AutoCloseable {
+
+  /**
+   * A parsed file, with the models of its blocks for re-parsing incrementally.
+   */
+  private record ParsedFile(String source, Map<String, HttpFile.Model> blockCache,
+      HttpFile.Model model) {
+  }
+
+  private final HttpFileClient client;
+  private final Path socketPath;
+  private final HttpFileParser parser = new HttpFileParser();
+  private final Map<Path, ParsedFile> parsedFiles = new ConcurrentHashMap<>();
+  // guards binding and closing the server channel
+  private final Lock lock = new ReentrantLock();
+  private ServerSocketChannel serverChannel = null;
+
+  /**
+   * Initializes with the client that performs the requests, and the socket path to listen on.
+   *
+   * @param client the client
+   * @param socketPath the socket path
+   */
+  public HttpFileDaemon(HttpFileClient client, Path socketPath) {
+    this.client = client;
+    this.socketPath = socketPath;
+  }
+
+  /**
+   * Starts listening on the socket path.
+   * A socket file left by a daemon that is no longer running, is replaced.
+   *
+   * @throws IOException if another daemon is listening, the socket path is owned by
+   *     another user, or the socket cannot be bound
+   */
+  public void bind() throws IOException {
+    lock.lock();
+    try {
+      HttpFileDaemonClient.checkSocketPath(socketPath);
+      if (Files.exists(socketPath)) {
+        boolean listening;
+        try (var channel = SocketChannel.open(UnixDomainSocketAddress.of(socketPath))) {
+          listening = true;
+        } catch (IOException e) {
+          listening = false;
+        }
+        if (listening) {
+          throw new IOException("A daemon is already listening on " + socketPath);
+        }
+        Files.deleteIfExists(socketPath);
+      }
+      serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+      serverChannel.bind(UnixDomainSocketAddress.of(socketPath));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Accepts connections and handles their commands, each on a virtual thread,
+   * until stopped or closed.
+   *
+   * @throws IOException if not bound
+   */
+  public void serve() throws IOException {
+    try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      while (serverChannel.isOpen()) {
+        SocketChannel channel;
+        try {
+          channel = serverChannel.accept();
+        } catch (IOException e) {
+          // closed
+          break;
+        }
+        executor.execute(() -> {
+          try (channel) {
+            handle(channel);
+          } catch (IOException e) {
+            System.err.println("Failed handling command: " + e);
+          }
+        });
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    lock.lock();
+    try {
+      if (serverChannel != null) {
+        serverChannel.close();
+        Files.deleteIfExists(socketPath);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void handle(SocketChannel channel) throws IOException {
+    var input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+    var output = new DataOutputStream(
+        new BufferedOutputStream(Channels.newOutputStream(channel)));
+    switch (input.readByte()) {
+      case HttpFileDaemonClient.RUN -> run(HttpFileDaemonClient.Run.read(input), output);
+      case HttpFileDaemonClient.STOP -> close();
+      default -> throw new IOException("Unexpected command");
+    }
+  }
+
+  // re-parses the file, if it has changed since it was last run
+  private HttpFile.Model parse(Path file) throws IOException {
+    var source = Files.readString(file);
+    var parsedFile = parsedFiles.compute(file, (key, previous) -> {
+      if (previous != null && previous.source().equals(source)) {
+        return previous;
+      }
+      Map<String, HttpFile.Model> blockCache = new HashMap<>(
+          previous != null ? previous.blockCache() : Map.of());
+      return new ParsedFile(source, blockCache, parser.parse(source, blockCache));
+    });
+    return parsedFile.model();
+  }
+
+  private void run(HttpFileDaemonClient.Run run, DataOutputStream output) throws IOException {
+    HttpFile.Model model;
+    try {
+      model = parse(run.file());
+    } catch (IOException | RuntimeException e) {
+      output.writeByte(HttpFileDaemonClient.ERROR);
+      HttpFileDaemonClient.writeString(output, "Failed parsing %s: %s".formatted(run.file(), e));
+      output.flush();
+      return;
+    }
+    int expected = 0;
+    for (var request : model.requests()) {
+      var name = request.getRequestPropertyValue("name");
+      if (run.requestNames().isEmpty()
+          || (name.isPresent() && run.requestNames().contains(name.get()))) {
+        expected++;
+      }
+    }
+    // pages and events are results of the same request
+    Set<HttpFile.Request> performed = Collections.newSetFromMap(new IdentityHashMap<>());
+    client.performRequests(model, run.variableOverrides(), run.requestNames(),
+        (request, result) -> {
+          performed.add(request);
+          try {
+            writeResult(request, result, output);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+    output.writeByte(HttpFileDaemonClient.DONE);
+    output.writeInt(performed.size());
+    output.writeInt(expected);
+    output.flush();
+  }
+
+  private static void writeResult(HttpFile.Request request, Map<String, Object> result,
+      DataOutputStream output) throws IOException {
+    var summary = ResultSummary.of(request, result);
+    output.writeByte(HttpFileDaemonClient.RESULT);
+    output.writeUTF(summary.label());
+    output.writeInt(summary.statusCode());
+    HttpFileDaemonClient.writeString(output, summary.body());
+    output.flush();
+  }
+
+  /**
+   * Starts a daemon listening on the socket path, and serves until stopped.
+   *
+   * @param args the socket path, or none for the default
+   * @throws Exception if the daemon cannot be started
+   */
+  public static void main(String[] args) throws Exception {
+    var socketPath = (args.length > 0 ? Path.of(args[0])
+        : HttpFileDaemonClient.defaultSocketPath());
+    try (var client = new HttpFileClient();
+        var daemon = new HttpFileDaemon(client, socketPath)) {
+      // the results are sent to the caller, not printed by the daemon
+      client.setPrintResults(false);
+      daemon.bind();
+      daemon.serve();
+    }
+  }
+}
@@ -0,0 +1,284 @@
+package no.ngu.httpfile.daemon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Thin client of a {@link HttpFileDaemon}, that sends a run command over a Unix domain socket
+ * and prints the results as they are streamed back.
+ * It only uses classes of java.base, so it starts quickly,
+ * and starts the daemon if it isn't running.
+ */
+public class HttpFileDaemonClient {
+
+  static final byte RUN = 1;
+  static final byte STOP = 2;
+
+  static final byte RESULT = 1;
+  static final byte ERROR = 2;
+  static final byte DONE = 3;
+
+  // how long to wait for a daemon that is started to accept connections
+  private static final long START_TIMEOUT_MILLIS = 10_000;
+
+  /**
+   * A run command.
+   *
+   * @param file the absolute path of the .http file
+   * @param variableOverrides the variable overrides
+   * @param requestNames the names of the requests to perform, or empty to perform all
+   */
+  public record Run(Path file, Map<String, String> variableOverrides, List<String> requestNames) {
+
+    void write(DataOutputStream output) throws IOException {
+      output.writeUTF(file.toString());
+      output.writeInt(variableOverrides.size());
+      for (var entry : variableOverrides.entrySet()) {
+        output.writeUTF(entry.getKey());
+        output.writeUTF(entry.getValue());
+      }
+      output.writeInt(requestNames.size());
+      for (var requestName : requestNames) {
+        output.writeUTF(requestName);
+      }
+    }
+
+    static Run read(DataInputStream input) throws IOException {
+      var file = Path.of(input.readUTF());
+      Map<String, String> variableOverrides = new LinkedHashMap<>();
+      for (int i = input.readInt(); i > 0; i--) {
+        variableOverrides.put(input.readUTF(), input.readUTF());
+      }
+      List<String> requestNames = new ArrayList<>();
+      for (int i = input.readInt(); i > 0; i--) {
+        requestNames.add(input.readUTF());
+      }
+      return new Run(file, variableOverrides, requestNames);
+    }
+  }
+
+  // strings may be longer than writeUTF allows
+  static void writeString(DataOutputStream output, String s) throws IOException {
+    var bytes = s.getBytes(StandardCharsets.UTF_8);
+    output.writeInt(bytes.length);
+    output.write(bytes);
+  }
+
+  static String readString(DataInputStream input) throws IOException {
+    return new String(input.readNBytes(input.readInt()), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Gets the default socket path, in $XDG_RUNTIME_DIR if set,
+   * otherwise in a directory in the temp dir that is specific to the user.
+   * Both are only accessible by the user, so others cannot connect to the daemon,
+   * or put their own socket in its place.
+   *
+   * @return the socket path
+   */
+  public static Path defaultSocketPath() {
+    var runtimeDir = System.getenv("XDG_RUNTIME_DIR");
+    if (runtimeDir != null && !runtimeDir.isBlank()) {
+      return Path.of(runtimeDir, "httpfile.sock");
+    }
+    return Path.of(System.getProperty("java.io.tmpdir"),
+        "httpfile-%s".formatted(System.getProperty("user.name")), "daemon.sock");
+  }
+
+  /**
+   * Prepares the socket path for connecting or binding.
+   * The directory is created if missing, only accessible by the user,
+   * and it and an existing socket file must be owned by the user,
+   * since a predictable path may have been created by someone else.
+   *
+   * @param socketPath the socket path
+   * @throws IOException if the directory or socket file is owned by another user
+   */
+  static void checkSocketPath(Path socketPath) throws IOException {
+    var dir = socketPath.toAbsolutePath().getParent();
+    if (!Files.exists(dir, LinkOption.NOFOLLOW_LINKS)) {
+      if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+        Files.createDirectories(dir,
+            PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+      } else {
+        Files.createDirectories(dir);
+      }
+    }
+    var user = FileSystems.getDefault().getUserPrincipalLookupService()
+        .lookupPrincipalByName(System.getProperty("user.name"));
+    for (var path : List.of(dir, socketPath)) {
+      if (Files.exists(path, LinkOption.NOFOLLOW_LINKS)
+          && !Files.getOwner(path, LinkOption.NOFOLLOW_LINKS).equals(user)) {
+        throw new IOException("%s is owned by %s, not %s"
+            .formatted(path, Files.getOwner(path, LinkOption.NOFOLLOW_LINKS), user));
+      }
+    }
+  }
+
+  /**
+   * Connects to the daemon listening on the socket path.
+   *
+   * @param socketPath the socket path
+   * @param start whether to start the daemon, if it isn't running
+   * @return the connected channel
+   * @throws IOException if the daemon isn't running and cannot be started,
+   *     or the socket path is owned by another user
+   */
+  public static SocketChannel connect(Path socketPath, boolean start) throws IOException {
+    checkSocketPath(socketPath);
+    var address = UnixDomainSocketAddress.of(socketPath);
+    try {
+      return SocketChannel.open(address);
+    } catch (IOException e) {
+      if (!start) {
+        throw e;
+      }
+    }
+    startDaemon(socketPath);
+    long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+    while (true) {
+      try {
+        return SocketChannel.open(address);
+      } catch (IOException e) {
+        if (System.currentTimeMillis() > deadline) {
+          throw new IOException("Daemon didn't start listening on " + socketPath, e);
+        }
+      }
+      try {
+        Thread.sleep(20);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while starting daemon", e);
+      }
+    }
+  }
+
+  private static void startDaemon(Path socketPath) throws IOException {
+    List<String> command = new ArrayList<>();
+    command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    // by name, to avoid loading the daemon's classes
+    command.add("no.ngu.httpfile.daemon.HttpFileDaemon");
+    command.add(socketPath.toString());
+    new ProcessBuilder(command)
+        .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+        .redirectError(ProcessBuilder.Redirect.DISCARD)
+        .start();
+  }
+
+  /**
+   * Sends the run command to the daemon, and prints the results as they arrive.
+   *
+   * @param channel the channel connected to the daemon
+   * @param run the run command
+   * @param out where to print the results
+   * @return the exit status, 0 if all requests were performed, otherwise 1
+   * @throws IOException if the connection fails
+   */
+  public static int run(SocketChannel channel, Run run, PrintStream out) throws IOException {
+    var output = new DataOutputStream(
+        new BufferedOutputStream(Channels.newOutputStream(channel)));
+    output.writeByte(RUN);
+    run.write(output);
+    output.flush();
+    var input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+    while (true) {
+      switch (input.readByte()) {
+        case RESULT -> {
+          var label = input.readUTF();
+          int statusCode = input.readInt();
+          out.println("%s %d".formatted(label, statusCode));
+          out.println(readString(input));
+          out.flush();
+        }
+        case ERROR -> {
+          out.println(readString(input));
+          return 1;
+        }
+        case DONE -> {
+          int performed = input.readInt();
+          int expected = input.readInt();
+          return (performed == expected ? 0 : 1);
+        }
+        default -> throw new IOException("Unexpected message from daemon");
+      }
+    }
+  }
+
+  /**
+   * Stops the daemon.
+   *
+   * @param channel the channel connected to the daemon
+   * @throws IOException if the connection fails
+   */
+  public static void stop(SocketChannel channel) throws IOException {
+    var output = new DataOutputStream(Channels.newOutputStream(channel));
+    output.writeByte(STOP);
+    output.flush();
+  }
+
+  /**
+   * Runs an .http file in the daemon, which is started if it isn't running.
+   * Arguments are [--socket path] [--stop] [--var name=value]... file [request-name]...
+   *
+   * @param args the arguments
+   * @throws IOException if the daemon cannot be started or the connection fails
+   */
+  public static void main(String[] args) throws IOException {
+    var socketPath = defaultSocketPath();
+    Map<String, String> variableOverrides = new LinkedHashMap<>();
+    List<String> rest = new ArrayList<>();
+    boolean stop = false;
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+        case "--socket" -> socketPath = Path.of(args[++i]);
+        case "--stop" -> stop = true;
+        case "--var" -> {
+          var variable = args[++i];
+          int pos = variable.indexOf('=');
+          if (pos < 0) {
+            throw new IllegalArgumentException("Expected --var name=value, but was " + variable);
+          }
+          variableOverrides.put(variable.substring(0, pos), variable.substring(pos + 1));
+        }
+        default -> rest.add(args[i]);
+      }
+    }
+    if (stop) {
+      try (var channel = connect(socketPath, false)) {
+        stop(channel);
+      }
+      return;
+    }
+    if (rest.isEmpty()) {
+      System.err.println(
+          "Usage: [--socket path] [--stop] [--var name=value]... file [request-name]...");
+      System.exit(2);
+    }
+    var run = new Run(Path.of(rest.getFirst()).toAbsolutePath(), variableOverrides,
+        rest.subList(1, rest.size()));
+    int status;
+    try (var channel = connect(socketPath, true)) {
+      status = run(channel, run, System.out);
+    }
+    System.exit(status);
+  }
+}
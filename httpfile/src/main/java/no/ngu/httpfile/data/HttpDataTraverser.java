@@ -3,16 +3,18 @@ package no.ngu.httpfile.data;
 import java.net.http.HttpHeaders;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import no.ngu.httpfile.client.StreamEvent;
 
 /**
- * {@link DataTraverser} implementation for traversing HTTP requests, headers and responses.
+ * {@link DataTraverser} implementation for traversing HTTP requests, headers and responses,
+ * and events of streaming responses.
  */
 public class HttpDataTraverser implements DataTraverser {
 
   @Override
   public boolean traverses(Object data, String step) {
     return data instanceof HttpRequest || data instanceof HttpResponse
-        || data instanceof HttpHeaders
+        || data instanceof HttpHeaders || data instanceof StreamEvent
         || (data instanceof String && step.equals("*"));
   }
 
@@ -32,6 +34,15 @@ public class HttpDataTraverser implements DataTraverser {
         case "headers" -> response.headers();
         default -> DataTraverser.throwIllegalStep(data, step);
       };
+      case StreamEvent event -> switch (step) {
+        case "index" -> event.index();
+        case "type" -> event.type();
+        case "id" -> event.id();
+        case "data" -> event.data();
+        case "elapsed" -> event.elapsed();
+        case "sincePrevious" -> event.sincePrevious();
+        default -> DataTraverser.throwIllegalStep(data, step);
+      };
       case HttpHeaders headers -> {
         var values = headers.map().get(step);
         if (values != null && values.size() == 1) {
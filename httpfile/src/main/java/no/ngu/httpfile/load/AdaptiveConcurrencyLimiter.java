@@ -0,0 +1,231 @@
+package no.ngu.httpfile.load;
+
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import no.ngu.httpfile.client.HttpTransport;
+
+/**
+ * {@link HttpTransport} that limits the number of requests in flight,
+ * and adapts the limit to the observed latency and errors,
+ * with additive increase and multiplicative decrease (AIMD).
+ * The limit grows by 1/limit for each fast response while at least half of it is used,
+ * i.e. by about one per round trip, and shrinks by the backoff ratio when a response is slow,
+ * i.e. the latency exceeds the tolerance times the minimum latency, or is an error,
+ * i.e. 429 or 5xx or an exception.
+ * The minimum latency is taken from successful responses only, since errors may be fast,
+ * and it decays towards recent latencies, so a lasting change of the server is followed.
+ * The limit then settles around the knee, where more concurrency only adds queueing.
+ * Requests above the limit wait in a queue, without blocking the caller's thread.
+ */
+public class AdaptiveConcurrencyLimiter implements HttpTransport {
+
+  /**
+   * A latency sample.
+   *
+   * @param time the time the response was received, in nanos
+   * @param latency the latency, in nanos
+   * @param limit the limit after adapting to the sample
+   * @param error whether the response was an error
+   */
+  public record Sample(long time, long latency, int limit, boolean error) {
+  }
+
+  // the minimum latency moves 1/MIN_LATENCY_DECAY of the way to higher latencies
+  private static final int MIN_LATENCY_DECAY = 100;
+
+  private final HttpTransport transport;
+
+  // guards the limit, its settings, the requests in flight and waiting, and the samples
+  private final Lock lock = new ReentrantLock();
+  private double limit = 10;
+  private int minLimit = 1;
+  private int maxLimit = 1000;
+  private double backoffRatio = 0.9;
+  private double latencyTolerance = 2.0;
+  private long minLatency = Long.MAX_VALUE;
+
+  private int inFlight = 0;
+  private final Deque<Runnable> waiting = new ArrayDeque<>();
+
+  private static final int MAX_SAMPLES = 1000;
+  private final Sample[] samples = new Sample[MAX_SAMPLES];
+  private long sampleCount = 0;
+
+  /**
+   * Initializes with the transport that sends the requests.
+   *
+   * @param transport the transport
+   */
+  public AdaptiveConcurrencyLimiter(HttpTransport transport) {
+    this.transport = transport;
+  }
+
+  /**
+   * Sets the initial limit, and the bounds of the limit.
+   *
+   * @param initialLimit the initial limit
+   * @param minLimit the minimum limit
+   * @param maxLimit the maximum limit
+   */
+  public void setLimits(int initialLimit, int minLimit, int maxLimit) {
+    lock.lock();
+    try {
+      if (minLimit < 1 || initialLimit < minLimit || maxLimit < initialLimit) {
+        throw new IllegalArgumentException("Expected 1 <= min <= initial <= max, but was %d, %d, %d"
+            .formatted(minLimit, initialLimit, maxLimit));
+      }
+      this.limit = initialLimit;
+      this.minLimit = minLimit;
+      this.maxLimit = maxLimit;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Sets the ratio the limit is multiplied with, when a response is slow or an error.
+   *
+   * @param backoffRatio the ratio, between 0 and 1
+   */
+  public void setBackoffRatio(double backoffRatio) {
+    lock.lock();
+    try {
+      this.backoffRatio = backoffRatio;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Sets how many times the minimum latency a response may take, before it is considered slow.
+   *
+   * @param latencyTolerance the tolerance, above 1
+   */
+  public void setLatencyTolerance(double latencyTolerance) {
+    lock.lock();
+    try {
+      this.latencyTolerance = latencyTolerance;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Gets the current limit.
+   *
+   * @return the limit
+   */
+  public int getLimit() {
+    lock.lock();
+    try {
+      return (int) limit;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Gets the number of requests in flight.
+   *
+   * @return the number of requests in flight
+   */
+  public int getInFlight() {
+    lock.lock();
+    try {
+      return inFlight;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Gets the most recent latency samples, oldest first.
+   *
+   * @return the samples
+   */
+  public List<Sample> getSamples() {
+    lock.lock();
+    try {
+      List<Sample> result = new ArrayList<>(MAX_SAMPLES);
+      for (long i = Math.max(sampleCount - MAX_SAMPLES, 0); i < sampleCount; i++) {
+        result.add(samples[(int) (i % MAX_SAMPLES)]);
+      }
+      return result;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request,
+      BodyHandler<T> bodyHandler) {
+    var result = new CompletableFuture<HttpResponse<T>>();
+    Runnable start = () -> {
+      long startTime = System.nanoTime();
+      CompletableFuture<HttpResponse<T>> future;
+      try {
+        future = transport.sendAsync(request, bodyHandler);
+      } catch (RuntimeException e) {
+        // releases the slot like a failed response
+        future = CompletableFuture.failedFuture(e);
+      }
+      future.whenComplete((response, ex) -> {
+        boolean error = (ex != null || response.statusCode() == 429
+            || response.statusCode() >= 500);
+        release(System.nanoTime() - startTime, error);
+        if (ex != null) {
+          result.completeExceptionally(ex);
+        } else {
+          result.complete(response);
+        }
+      });
+    };
+    lock.lock();
+    try {
+      if (inFlight >= (int) limit) {
+        waiting.add(start);
+        return result;
+      }
+      inFlight++;
+    } finally {
+      lock.unlock();
+    }
+    start.run();
+    return result;
+  }
+
+  // adapts the limit to the sample, and starts waiting requests that are within the limit
+  private void release(long latency, boolean error) {
+    List<Runnable> starts = new ArrayList<>();
+    lock.lock();
+    try {
+      if (!error) {
+        minLatency = (latency < minLatency ? latency
+            : minLatency + (latency - minLatency) / MIN_LATENCY_DECAY);
+      }
+      if (error || latency > minLatency * latencyTolerance) {
+        limit = Math.max(minLimit, limit * backoffRatio);
+      } else if (inFlight * 2 >= limit) {
+        limit = Math.min(maxLimit, limit + 1 / limit);
+      }
+      samples[(int) (sampleCount++ % MAX_SAMPLES)] =
+          new Sample(System.nanoTime(), latency, (int) limit, error);
+      inFlight--;
+      while (inFlight < (int) limit && !waiting.isEmpty()) {
+        inFlight++;
+        starts.add(waiting.poll());
+      }
+    } finally {
+      lock.unlock();
+    }
+    starts.forEach(Runnable::run);
+  }
+}
@@ -0,0 +1,176 @@
+package no.ngu.httpfile.load;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in nanos, with log-linear buckets,
+ * i.e. 32 linear sub-buckets per power of two, for a relative error of at most about 3%.
+ * Recording is lock-free, and reading while recording gives a slightly inconsistent snapshot,
+ * so histograms should be merged and read when recording is done.
+ */
+public class LatencyHistogram {
+
+  /**
+   * Summary of a histogram, with latencies in nanos.
+   *
+   * @param count the number of recorded latencies
+   * @param p50 the median
+   * @param p99 the 99th percentile
+   * @param p999 the 99.9th percentile
+   * @param max the maximum
+   */
+  public record Summary(long count, long p50, long p99, long p999, long max) {
+
+    @Override
+    public String toString() {
+      return "count=%d p50=%.3fms p99=%.3fms p99.9=%.3fms max=%.3fms".formatted(count,
+          millis(p50), millis(p99), millis(p999), millis(max));
+    }
+
+    private static double millis(long nanos) {
+      return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+  }
+
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int LINEAR_BUCKETS = 2 * SUB_BUCKETS;
+  static final int BUCKET_COUNT =
+      LINEAR_BUCKETS + (Long.SIZE - 1 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  // values below 64 have their own bucket, above that the top six bits select the bucket
+  static int bucketIndex(long value) {
+    if (value < LINEAR_BUCKETS) {
+      return (int) Math.max(value, 0);
+    }
+    int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+  }
+
+  // the highest value in the bucket
+  static long bucketValue(int index) {
+    if (index < LINEAR_BUCKETS) {
+      return index;
+    }
+    int shift = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+    long subBucket = (index - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+    return ((subBucket + 1) << shift) - 1;
+  }
+
+  /**
+   * Records a latency.
+   *
+   * @param nanos the latency in nanos
+   */
+  public void record(long nanos) {
+    counts.incrementAndGet(bucketIndex(nanos));
+    count.incrementAndGet();
+    max.accumulateAndGet(nanos, Math::max);
+  }
+
+  /**
+   * Adds the latencies recorded by another histogram.
+   *
+   * @param other the other histogram
+   */
+  public void merge(LatencyHistogram other) {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      long otherCount = other.counts.get(i);
+      if (otherCount > 0) {
+        counts.addAndGet(i, otherCount);
+      }
+    }
+    count.addAndGet(other.getCount());
+    max.accumulateAndGet(other.getMax(), Math::max);
+  }
+
+  /**
+   * Gets the number of recorded latencies.
+   *
+   * @return the count
+   */
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * Gets the maximum recorded latency.
+   *
+   * @return the maximum in nanos, or 0 if none are recorded
+   */
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+   * Gets the latency at or below which the given percentage of the latencies are.
+   *
+   * @param percentile the percentile, between 0 and 100
+   * @return the latency in nanos, or 0 if none are recorded
+   */
+  public long getValueAtPercentile(double percentile) {
+    long total = getCount();
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return Math.min(bucketValue(i), getMax());
+      }
+    }
+    return getMax();
+  }
+
+  // the count of a bucket, for comparing and storing histograms
+  long getBucketCount(int index) {
+    return counts.get(index);
+  }
+
+  // adds to the count of a bucket, when restoring a histogram
+  void addBucketCount(int index, long bucketCount) {
+    counts.addAndGet(index, bucketCount);
+    count.addAndGet(bucketCount);
+  }
+
+  // updates the maximum, when restoring a histogram
+  void updateMax(long value) {
+    max.accumulateAndGet(value, Math::max);
+  }
+
+  // the latencies recorded since the previous snapshot of this histogram, for streaming deltas
+  LatencyHistogram minus(LatencyHistogram previous) {
+    var delta = new LatencyHistogram();
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      long bucketCount = counts.get(i) - previous.counts.get(i);
+      if (bucketCount > 0) {
+        delta.addBucketCount(i, bucketCount);
+      }
+    }
+    delta.updateMax(getMax());
+    return delta;
+  }
+
+  /**
+   * Summarizes the histogram, with the commonly reported percentiles.
+   *
+   * @return the summary
+   */
+  public Summary summary() {
+    return new Summary(getCount(), getValueAtPercentile(50), getValueAtPercentile(99),
+        getValueAtPercentile(99.9), getMax());
+  }
+
+  @Override
+  public String toString() {
+    return summary().toString();
+  }
+}
@@ -0,0 +1,57 @@
+package no.ngu.httpfile.load;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records latencies per request name, into histograms that are merged when reporting.
+ * Each name has a stripe of histograms, and threads record into the one given by their id,
+ * so concurrent recording rarely touches the same counters.
+ * Threads are typically virtual and short-lived, so there is a stripe per thread id hash,
+ * rather than a histogram per thread.
+ */
+public class LatencyRecorder {
+
+  private static final int STRIPES =
+      Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) * 2;
+
+  private final Map<String, LatencyHistogram[]> histograms = new ConcurrentHashMap<>();
+
+  private static LatencyHistogram[] newStripes(String name) {
+    var stripes = new LatencyHistogram[STRIPES];
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new LatencyHistogram();
+    }
+    return stripes;
+  }
+
+  /**
+   * Records a latency.
+   *
+   * @param name the request name
+   * @param nanos the latency in nanos
+   */
+  public void record(String name, long nanos) {
+    var stripes = histograms.computeIfAbsent(name, LatencyRecorder::newStripes);
+    long threadId = Thread.currentThread().threadId();
+    stripes[(int) ((threadId ^ (threadId >>> 16)) & (STRIPES - 1))].record(nanos);
+  }
+
+  /**
+   * Merges the recorded latencies into one histogram per request name.
+   *
+   * @return the histograms, sorted by name
+   */
+  public Map<String, LatencyHistogram> report() {
+    Map<String, LatencyHistogram> report = new TreeMap<>();
+    histograms.forEach((name, stripes) -> {
+      var merged = new LatencyHistogram();
+      for (var stripe : stripes) {
+        merged.merge(stripe);
+      }
+      report.put(name, merged);
+    });
+    return report;
+  }
+}
@@ -0,0 +1,277 @@
+package no.ngu.httpfile.load;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the requests of an .http file at a fixed rate, distributed over worker processes,
+ * since a single JVM becomes CPU- and socket-bound before the servers under test.
+ * The coordinator launches {@link LoadWorker}s on this machine, that connect to it
+ * over a loopback socket, and sends each of them the .http source, its share of the rate
+ * and its shard of the dataset. The workers stream latency histogram deltas back,
+ * which are merged into one report.
+ * The output of each worker is written to a log file, that is kept if the run fails.
+ * The source is sent rather than the parsed model, and parsed by each worker,
+ * since the model isn't serializable.
+ */
+public class LoadCoordinator {
+
+  static final byte DELTA = 1;
+  static final byte DONE = 2;
+
+  /**
+   * What a worker should run.
+   */
+  record Assignment(String source, double rate, Duration duration,
+      List<Map<String, String>> dataset) {
+
+    void write(DataOutputStream output) throws IOException {
+      var sourceBytes = source.getBytes(StandardCharsets.UTF_8);
+      output.writeInt(sourceBytes.length);
+      output.write(sourceBytes);
+      output.writeDouble(rate);
+      output.writeLong(duration.toNanos());
+      output.writeInt(dataset.size());
+      for (var row : dataset) {
+        output.writeInt(row.size());
+        for (var entry : row.entrySet()) {
+          output.writeUTF(entry.getKey());
+          output.writeUTF(entry.getValue());
+        }
+      }
+    }
+
+    static Assignment read(DataInputStream input) throws IOException {
+      var source = new String(input.readNBytes(input.readInt()), StandardCharsets.UTF_8);
+      double rate = input.readDouble();
+      var duration = Duration.ofNanos(input.readLong());
+      List<Map<String, String>> dataset = new ArrayList<>();
+      for (int i = input.readInt(); i > 0; i--) {
+        Map<String, String> row = new HashMap<>();
+        for (int j = input.readInt(); j > 0; j--) {
+          row.put(input.readUTF(), input.readUTF());
+        }
+        dataset.add(row);
+      }
+      return new Assignment(source, rate, duration, dataset);
+    }
+  }
+
+  private final String source;
+  private final int workers;
+  private double rate = 1;
+  private Duration duration = Duration.ofSeconds(10);
+  private List<Map<String, String>> dataset = List.of();
+  private List<String> jvmOptions = List.of();
+  private Duration connectTimeout = Duration.ofSeconds(30);
+
+  private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+
+  /**
+   * Initializes with the .http source and the number of worker processes.
+   *
+   * @param source the .http source
+   * @param workers the number of worker processes
+   */
+  public LoadCoordinator(String source, int workers) {
+    this.source = source;
+    this.workers = workers;
+  }
+
+  /**
+   * Sets the total rate of iterations, that is shared evenly by the workers.
+   *
+   * @param rate the number of iterations per second
+   */
+  public void setRate(double rate) {
+    this.rate = rate;
+  }
+
+  /**
+   * Sets the duration of the run.
+   *
+   * @param duration the duration
+   */
+  public void setDuration(Duration duration) {
+    this.duration = duration;
+  }
+
+  /**
+   * Sets the dataset, with variable overrides for each iteration.
+   * Each worker gets every n'th row, where n is the number of workers.
+   *
+   * @param dataset the rows of variable overrides
+   */
+  public void setDataset(List<Map<String, String>> dataset) {
+    this.dataset = List.copyOf(dataset);
+  }
+
+  /**
+   * Sets the options of the worker JVMs, e.g. -Xmx1g.
+   *
+   * @param jvmOptions the options
+   */
+  public void setJvmOptions(List<String> jvmOptions) {
+    this.jvmOptions = List.copyOf(jvmOptions);
+  }
+
+  /**
+   * Sets how long to wait for the workers to start and connect.
+   *
+   * @param connectTimeout the timeout
+   */
+  public void setConnectTimeout(Duration connectTimeout) {
+    this.connectTimeout = connectTimeout;
+  }
+
+  /**
+   * Gets the latencies merged so far, e.g. for reporting progress while running.
+   *
+   * @return the latency histograms per request name, sorted by name
+   */
+  public Map<String, LatencyHistogram> getLatencies() {
+    return new TreeMap<>(latencies);
+  }
+
+  /**
+   * Launches the workers, sends them their assignments and merges their results.
+   *
+   * @return the merged results
+   * @throws IOException if a worker cannot be launched or fails,
+   *     the message then tells where the worker logs are
+   * @throws InterruptedException if interrupted while waiting for the workers
+   */
+  public RunResults run() throws IOException, InterruptedException {
+    latencies.clear();
+    var logDirectory = Files.createTempDirectory("httpfile-workers");
+    List<Process> processes = new ArrayList<>();
+    boolean completed = false;
+    try (var serverSocket = new ServerSocket(0, workers, InetAddress.getLoopbackAddress());
+        var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (int i = 0; i < workers; i++) {
+        processes.add(launchWorker(serverSocket.getLocalPort(),
+            logDirectory.resolve("worker-" + i + ".log")));
+      }
+      serverSocket.setSoTimeout((int) connectTimeout.toMillis());
+      var iterations = new AtomicLong();
+      var failures = new AtomicLong();
+      var duration = new AtomicLong();
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < workers; i++) {
+        var socket = serverSocket.accept();
+        // deltas are sent regularly, so this is only reached if a worker hangs
+        socket.setSoTimeout((int) (this.duration.toMillis() + connectTimeout.toMillis()));
+        var shard = shard(i);
+        futures.add(executor.submit(() -> {
+          try (socket) {
+            var result = coordinate(socket, shard);
+            iterations.addAndGet(result.iterations());
+            failures.addAndGet(result.failures());
+            duration.accumulateAndGet(result.duration().toNanos(), Math::max);
+          }
+          return null;
+        }));
+      }
+      for (var future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          throw new IOException("Worker failed, see the logs in " + logDirectory, e.getCause());
+        }
+      }
+      completed = true;
+      return new RunResults(iterations.get(), failures.get(), Duration.ofNanos(duration.get()),
+          getLatencies());
+    } catch (SocketTimeoutException e) {
+      throw new IOException("Worker didn't connect, see the logs in " + logDirectory, e);
+    } finally {
+      for (var process : processes) {
+        if (!process.waitFor(5, TimeUnit.SECONDS)) {
+          process.destroyForcibly();
+        }
+      }
+      if (completed) {
+        deleteLogs(logDirectory);
+      }
+    }
+  }
+
+  private static void deleteLogs(Path logDirectory) throws IOException {
+    try (var logs = Files.list(logDirectory)) {
+      for (var log : logs.toList()) {
+        Files.delete(log);
+      }
+    }
+    Files.delete(logDirectory);
+  }
+
+  private List<Map<String, String>> shard(int worker) {
+    List<Map<String, String>> shard = new ArrayList<>();
+    for (int row = worker; row < dataset.size(); row += workers) {
+      shard.add(dataset.get(row));
+    }
+    return shard;
+  }
+
+  private Process launchWorker(int port, Path log) throws IOException {
+    List<String> command = new ArrayList<>();
+    command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+    command.addAll(jvmOptions);
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add(LoadWorker.class.getName());
+    command.add(InetAddress.getLoopbackAddress().getHostAddress());
+    command.add(String.valueOf(port));
+    return new ProcessBuilder(command)
+        .redirectErrorStream(true)
+        .redirectOutput(log.toFile())
+        .start();
+  }
+
+  // sends the assignment, merges deltas until the worker is done, and returns its result
+  private LoadRunner.Result coordinate(Socket socket, List<Map<String, String>> shard)
+      throws IOException {
+    var output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    new Assignment(source, rate / workers, duration, shard).write(output);
+    output.flush();
+    var input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    while (true) {
+      switch (input.readByte()) {
+        case DELTA -> {
+          for (int i = input.readInt(); i > 0; i--) {
+            var name = input.readUTF();
+            var delta = RunResults.readHistogram(input);
+            latencies.computeIfAbsent(name, key -> new LatencyHistogram()).merge(delta);
+          }
+        }
+        case DONE -> {
+          return new LoadRunner.Result(input.readInt(), input.readInt(),
+              Duration.ofNanos(input.readLong()));
+        }
+        default -> throw new IOException("Unexpected message from worker");
+      }
+    }
+  }
+}
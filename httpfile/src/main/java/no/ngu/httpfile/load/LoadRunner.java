@@ -0,0 +1,214 @@
+package no.ngu.httpfile.load;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import no.ngu.httpfile.HttpFile;
+import no.ngu.httpfile.client.HttpFileClient;
+
+/**
+ * Runs the requests of an {@link HttpFile.Model} repeatedly and concurrently,
+ * each iteration performing all the requests in order, like a virtual user.
+ * Each iteration runs in its own virtual thread.
+ * Use an {@link AdaptiveConcurrencyLimiter} as the client's transport,
+ * to let the number of requests in flight adapt to the server,
+ * instead of being determined by the number of users.
+ */
+public class LoadRunner {
+
+  /**
+   * The result of a run.
+   *
+   * @param iterations the number of iterations
+   * @param failures the number of iterations that didn't perform all requests
+   * @param duration the duration of the run
+   */
+  public record Result(int iterations, int failures, Duration duration) {
+
+    /**
+     * Gets the number of iterations per second.
+     *
+     * @return the throughput
+     */
+    public double throughput() {
+      return iterations * 1_000_000_000.0 / Math.max(duration.toNanos(), 1);
+    }
+  }
+
+  private final HttpFileClient client;
+  private LatencyRecorder latencyRecorder = null;
+  private List<Map<String, String>> dataset = List.of();
+
+  /**
+   * Initializes with the client performing the requests,
+   * and turns off its printing of results, which would dominate a load run.
+   *
+   * @param client the client
+   */
+  public LoadRunner(HttpFileClient client) {
+    this.client = client;
+    client.setPrintResults(false);
+  }
+
+  /**
+   * Sets the recorder of request latencies, by request name.
+   * The first request of an iteration is timed from the iteration's intended start,
+   * and the following ones from the end of the previous request.
+   * A request that fails, and so aborts its iteration, is recorded too, under the same name.
+   * For runs at a fixed rate, this includes the time an iteration was delayed,
+   * e.g. by a slow server, so the latencies aren't reduced by coordinated omission.
+   *
+   * @param latencyRecorder the recorder, or null for not recording latencies
+   */
+  public void setLatencyRecorder(LatencyRecorder latencyRecorder) {
+    this.latencyRecorder = latencyRecorder;
+  }
+
+  /**
+   * Sets the dataset, with variable overrides for each iteration,
+   * e.g. user names and passwords. The rows are used in turn, starting over when all are used.
+   *
+   * @param dataset the rows of variable overrides, or empty for no overrides
+   */
+  public void setDataset(List<Map<String, String>> dataset) {
+    this.dataset = List.copyOf(dataset);
+  }
+
+  private Map<String, String> getVariableOverrides(int iteration) {
+    return (dataset.isEmpty() ? Map.of() : dataset.get(iteration % dataset.size()));
+  }
+
+  /**
+   * Wraps the client's transport in an {@link AdaptiveConcurrencyLimiter}.
+   *
+   * @param client the client, whose transport is replaced
+   * @return the limiter, e.g. for getting the limit and latency samples
+   */
+  public static AdaptiveConcurrencyLimiter limitConcurrency(HttpFileClient client) {
+    var limiter = new AdaptiveConcurrencyLimiter(client.getTransport());
+    client.setTransport(limiter);
+    return limiter;
+  }
+
+  // the names for recording latencies, the name property or the method and position
+  static List<String> requestNames(HttpFile.Model model) {
+    List<String> requestNames = new ArrayList<>(model.requests().size());
+    for (var request : model.requests()) {
+      requestNames.add(request.getRequestPropertyValue("name")
+          .orElse(request.method() + " #" + (requestNames.size() + 1)));
+    }
+    return List.copyOf(requestNames);
+  }
+
+  // performs all the requests, and returns whether all of them were performed
+  boolean performIteration(HttpFile.Model model, List<String> requestNames,
+      Map<String, String> variableOverrides, long intendedStart) {
+    // the requests are performed in order, so the number started gives the current one
+    var started = new AtomicInteger();
+    // the consumer is called for each page or event, so a request may be seen several times
+    Set<HttpFile.Request> performed = Collections.newSetFromMap(new IdentityHashMap<>());
+    var previousEnd = new AtomicLong(intendedStart);
+    client.performRequests(model, variableOverrides,
+        (request, name) -> {
+          // the previous request ended when this one starts
+          if (started.get() > 0) {
+            recordLatency(requestNames.get(started.get() - 1), previousEnd);
+          }
+          started.incrementAndGet();
+          return request;
+        },
+        (request, result) -> performed.add(request));
+    // the last request, or the failing one that aborted the iteration, which counts, too
+    if (started.get() > 0) {
+      recordLatency(requestNames.get(started.get() - 1), previousEnd);
+    }
+    return performed.size() == model.requests().size();
+  }
+
+  private void recordLatency(String requestName, AtomicLong previousEnd) {
+    if (latencyRecorder != null) {
+      long end = System.nanoTime();
+      latencyRecorder.record(requestName, end - previousEnd.get());
+      previousEnd.set(end);
+    }
+  }
+
+  /**
+   * Runs the requests with a number of concurrent users.
+   *
+   * @param model the model
+   * @param iterations the total number of iterations
+   * @param users the number of concurrent iterations
+   * @return the result
+   * @throws InterruptedException if interrupted while waiting for iterations
+   */
+  public Result run(HttpFile.Model model, int iterations, int users)
+      throws InterruptedException {
+    var requestNames = requestNames(model);
+    var semaphore = new Semaphore(users);
+    var failures = new AtomicInteger();
+    long start = System.nanoTime();
+    try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (int i = 0; i < iterations; i++) {
+        var variableOverrides = getVariableOverrides(i);
+        semaphore.acquire();
+        executor.submit(() -> {
+          try {
+            if (!performIteration(model, requestNames, variableOverrides, System.nanoTime())) {
+              failures.incrementAndGet();
+            }
+          } finally {
+            semaphore.release();
+          }
+        });
+      }
+    }
+    return new Result(iterations, failures.get(), Duration.ofNanos(System.nanoTime() - start));
+  }
+
+  /**
+   * Runs the requests at a fixed rate of iterations, regardless of how long each one takes,
+   * i.e. an open workload where a slow server doesn't slow down the arrival of users.
+   *
+   * @param model the model
+   * @param rate the number of iterations per second
+   * @param duration the duration of the run
+   * @return the result
+   * @throws InterruptedException if interrupted while waiting for iterations
+   */
+  public Result runAtRate(HttpFile.Model model, double rate, Duration duration)
+      throws InterruptedException {
+    var requestNames = requestNames(model);
+    long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+    var failures = new AtomicInteger();
+    int iterations = 0;
+    long start = System.nanoTime();
+    try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (long intendedStart = start; intendedStart - start < duration.toNanos();
+          intendedStart += interval) {
+        long wait = intendedStart - System.nanoTime();
+        if (wait > 0) {
+          TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        long iterationStart = intendedStart;
+        var variableOverrides = getVariableOverrides(iterations);
+        executor.submit(() -> {
+          if (!performIteration(model, requestNames, variableOverrides, iterationStart)) {
+            failures.incrementAndGet();
+          }
+        });
+        iterations++;
+      }
+    }
+    return new Result(iterations, failures.get(), Duration.ofNanos(System.nanoTime() - start));
+  }
+}
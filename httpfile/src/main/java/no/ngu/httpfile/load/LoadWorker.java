@@ -0,0 +1,101 @@
+package no.ngu.httpfile.load;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import no.ngu.httpfile.HttpFileParser;
+import no.ngu.httpfile.client.HttpFileClient;
+
+/**
+ * Worker process of a {@link LoadCoordinator}, that runs its assignment at a fixed rate
+ * and streams the latencies recorded since the previous delta, until it is done.
+ */
+public class LoadWorker {
+
+  // how often deltas are sent
+  private static final long DELTA_INTERVAL_MILLIS = 100;
+
+  private final DataOutputStream output;
+  private final Map<String, LatencyHistogram> previous = new HashMap<>();
+
+  private LoadWorker(DataOutputStream output) {
+    this.output = output;
+  }
+
+  private void sendDelta(LatencyRecorder recorder) throws IOException {
+    Map<String, LatencyHistogram> deltas = new HashMap<>();
+    recorder.report().forEach((name, histogram) -> {
+      var delta = histogram.minus(previous.getOrDefault(name, new LatencyHistogram()));
+      if (delta.getCount() > 0) {
+        deltas.put(name, delta);
+      }
+      previous.put(name, histogram);
+    });
+    if (deltas.isEmpty()) {
+      return;
+    }
+    output.writeByte(LoadCoordinator.DELTA);
+    output.writeInt(deltas.size());
+    for (var entry : deltas.entrySet()) {
+      output.writeUTF(entry.getKey());
+      RunResults.writeHistogram(output, entry.getValue());
+    }
+    output.flush();
+  }
+
+  private void run(LoadCoordinator.Assignment assignment) throws Exception {
+    var model = new HttpFileParser().parse(assignment.source());
+    var recorder = new LatencyRecorder();
+    try (var client = new HttpFileClient()) {
+      var runner = new LoadRunner(client);
+      runner.setLatencyRecorder(recorder);
+      runner.setDataset(assignment.dataset());
+      var run = CompletableFuture.supplyAsync(() -> {
+        try {
+          return runner.runAtRate(model, assignment.rate(), assignment.duration());
+        } catch (InterruptedException e) {
+          throw new IllegalStateException(e);
+        }
+      }, runnable -> Thread.ofVirtual().start(runnable));
+      LoadRunner.Result result = null;
+      while (result == null) {
+        try {
+          result = run.get(DELTA_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+          sendDelta(recorder);
+        } catch (ExecutionException e) {
+          throw new IOException("Run failed", e.getCause());
+        }
+      }
+      sendDelta(recorder);
+      output.writeByte(LoadCoordinator.DONE);
+      output.writeInt(result.iterations());
+      output.writeInt(result.failures());
+      output.writeLong(result.duration().toNanos());
+      output.flush();
+    }
+  }
+
+  /**
+   * Connects to the coordinator, and runs the assignment it sends.
+   *
+   * @param args the coordinator's host and port
+   * @throws Exception if the run fails
+   */
+  public static void main(String[] args) throws Exception {
+    try (var socket = new Socket(args[0], Integer.parseInt(args[1]))) {
+      var input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      var output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      new LoadWorker(output).run(LoadCoordinator.Assignment.read(input));
+    }
+  }
+}
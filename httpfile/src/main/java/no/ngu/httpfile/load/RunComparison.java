@@ -0,0 +1,185 @@
+package no.ngu.httpfile.load;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the results of a run with a baseline, per request name, to detect regressions.
+ * A request has regressed when its latencies are significantly higher,
+ * according to a one-sided Mann-Whitney U test on the histograms,
+ * and the p50 or p99 has increased by more than the threshold,
+ * or when its throughput has decreased by more than the threshold.
+ * Requests missing from the run are regressions, too.
+ */
+public class RunComparison {
+
+  /**
+   * The comparison of a request.
+   *
+   * @param name the request name
+   * @param baseline the baseline summary
+   * @param current the current summary
+   * @param p50Change the relative change of the p50, e.g. 0.1 for 10% slower
+   * @param p99Change the relative change of the p99
+   * @param throughputChange the relative change of the throughput, e.g. -0.1 for 10% less
+   * @param pvalue the probability of latencies being this much higher by chance
+   * @param regression whether the request has regressed
+   */
+  public record Difference(String name, LatencyHistogram.Summary baseline,
+      LatencyHistogram.Summary current, double p50Change, double p99Change,
+      double throughputChange, double pvalue, boolean regression) {
+
+    @Override
+    public String toString() {
+      if (current == null) {
+        return "%s: missing REGRESSION".formatted(name);
+      }
+      return "%s: p50 %+.1f%% p99 %+.1f%% throughput %+.1f%% p=%.4f%s".formatted(name,
+          p50Change * 100, p99Change * 100, throughputChange * 100, pvalue,
+          regression ? " REGRESSION" : "");
+    }
+  }
+
+  private double threshold = 0.1;
+  private double alpha = 0.01;
+
+  /**
+   * Sets the relative change of the p50, p99 or throughput that is a regression.
+   *
+   * @param threshold the threshold, e.g. 0.1 for 10%
+   */
+  public void setThreshold(double threshold) {
+    this.threshold = threshold;
+  }
+
+  /**
+   * Sets the significance level of the test for higher latencies.
+   *
+   * @param alpha the significance level, e.g. 0.01
+   */
+  public void setAlpha(double alpha) {
+    this.alpha = alpha;
+  }
+
+  private static double change(double baseline, double current) {
+    return (baseline > 0 ? (current - baseline) / baseline : 0);
+  }
+
+  /**
+   * Compares the results of a run with a baseline.
+   *
+   * @param baseline the baseline results
+   * @param current the current results
+   * @return the comparison of each request in the baseline
+   */
+  public List<Difference> compare(RunResults baseline, RunResults current) {
+    List<Difference> differences = new ArrayList<>();
+    for (var entry : baseline.latencies().entrySet()) {
+      var name = entry.getKey();
+      var baselineHistogram = entry.getValue();
+      var currentHistogram = current.latencies().get(name);
+      if (currentHistogram == null || currentHistogram.getCount() == 0) {
+        differences.add(new Difference(name, baselineHistogram.summary(), null,
+            0, 0, -1, 0, true));
+        continue;
+      }
+      var baselineSummary = baselineHistogram.summary();
+      var currentSummary = currentHistogram.summary();
+      double p50Change = change(baselineSummary.p50(), currentSummary.p50());
+      double p99Change = change(baselineSummary.p99(), currentSummary.p99());
+      double throughputChange = change(baseline.throughput(name), current.throughput(name));
+      double pvalue = mannWhitneyPvalue(baselineHistogram, currentHistogram);
+      boolean regression = (pvalue < alpha && (p50Change > threshold || p99Change > threshold))
+          || throughputChange < -threshold;
+      differences.add(new Difference(name, baselineSummary, currentSummary,
+          p50Change, p99Change, throughputChange, pvalue, regression));
+    }
+    return differences;
+  }
+
+  /**
+   * Computes the one-sided p-value of the current latencies being higher than the baseline,
+   * with the normal approximation of the Mann-Whitney U statistic, corrected for ties.
+   * Latencies in the same bucket are ties.
+   */
+  static double mannWhitneyPvalue(LatencyHistogram baseline, LatencyHistogram current) {
+    double n1 = baseline.getCount();
+    double n2 = current.getCount();
+    double n = n1 + n2;
+    // the number of (baseline, current) pairs where current is higher, ties counting half
+    double u = 0;
+    double baselineBelow = 0;
+    double tieSum = 0;
+    for (int i = 0; i < LatencyHistogram.BUCKET_COUNT; i++) {
+      long baselineCount = baseline.getBucketCount(i);
+      long currentCount = current.getBucketCount(i);
+      u += currentCount * (baselineBelow + baselineCount / 2.0);
+      baselineBelow += baselineCount;
+      double ties = baselineCount + currentCount;
+      tieSum += ties * ties * ties - ties;
+    }
+    double variance = n1 * n2 / 12 * ((n + 1) - tieSum / (n * (n - 1)));
+    if (variance <= 0) {
+      return 0.5;
+    }
+    double z = (u - n1 * n2 / 2) / Math.sqrt(variance);
+    return 1 - normalCdf(z);
+  }
+
+  // the standard normal cumulative distribution, with the Abramowitz-Stegun approximation of erf
+  private static double normalCdf(double z) {
+    double x = Math.abs(z) / Math.sqrt(2);
+    double t = 1 / (1 + 0.3275911 * x);
+    double erf = 1 - t * (0.254829592 + t * (-0.284496736 + t * (1.421413741
+        + t * (-1.453152027 + t * 1.061405429)))) * Math.exp(-x * x);
+    return (z >= 0 ? (1 + erf) / 2 : (1 - erf) / 2);
+  }
+
+  /**
+   * Prints the comparison of each request.
+   *
+   * @param differences the comparison
+   * @param output the output
+   * @return whether any request has regressed
+   */
+  public static boolean report(List<Difference> differences, PrintStream output) {
+    boolean regression = false;
+    for (var difference : differences) {
+      output.println(difference);
+      regression |= difference.regression();
+    }
+    return regression;
+  }
+
+  /**
+   * Compares a results file with a baseline results file,
+   * and exits with status 1 if any request has regressed.
+   * Usage: baseline-file current-file [--threshold percent] [--alpha level]
+   *
+   * @param args the command line arguments
+   * @throws IOException if a results file cannot be read
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println(
+          "Usage: baseline-file current-file [--threshold percent] [--alpha level]");
+      System.exit(2);
+    }
+    var comparison = new RunComparison();
+    for (int i = 2; i + 1 < args.length; i += 2) {
+      switch (args[i]) {
+        case "--threshold" -> comparison.setThreshold(Double.parseDouble(args[i + 1]) / 100);
+        case "--alpha" -> comparison.setAlpha(Double.parseDouble(args[i + 1]));
+        default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+      }
+    }
+    var differences = comparison.compare(RunResults.read(Path.of(args[0])),
+        RunResults.read(Path.of(args[1])));
+    if (report(differences, System.out)) {
+      System.exit(1);
+    }
+  }
+}
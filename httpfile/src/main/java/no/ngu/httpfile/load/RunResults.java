@@ -0,0 +1,128 @@
+package no.ngu.httpfile.load;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The results of a load run, i.e. the latency histograms per request name and the duration,
+ * that can be stored in a compact results file, for comparing with later runs.
+ * Only the non-empty buckets of the histograms are stored, and the file is gzipped.
+ *
+ * @param iterations the number of iterations
+ * @param failures the number of iterations that didn't perform all requests
+ * @param duration the duration of the run
+ * @param latencies the latency histograms per request name
+ */
+public record RunResults(long iterations, long failures, Duration duration,
+    Map<String, LatencyHistogram> latencies) {
+
+  private static final int MAGIC = 0x48465252;
+  private static final int VERSION = 1;
+
+  /**
+   * Creates results from a run and its recorded latencies.
+   *
+   * @param result the run result
+   * @param latencyRecorder the recorder used in the run
+   * @return the results
+   */
+  public static RunResults of(LoadRunner.Result result, LatencyRecorder latencyRecorder) {
+    return new RunResults(result.iterations(), result.failures(), result.duration(),
+        latencyRecorder.report());
+  }
+
+  /**
+   * Gets the throughput of a request.
+   *
+   * @param name the request name
+   * @return the number of responses per second
+   */
+  public double throughput(String name) {
+    var histogram = latencies.get(name);
+    return (histogram != null
+        ? histogram.getCount() * 1_000_000_000.0 / Math.max(duration.toNanos(), 1) : 0);
+  }
+
+  /**
+   * Writes the results to a file.
+   *
+   * @param path the file
+   * @throws IOException if writing fails
+   */
+  public void write(Path path) throws IOException {
+    try (var output = new DataOutputStream(new BufferedOutputStream(
+        new GZIPOutputStream(Files.newOutputStream(path))))) {
+      output.writeInt(MAGIC);
+      output.writeInt(VERSION);
+      output.writeLong(iterations);
+      output.writeLong(failures);
+      output.writeLong(duration.toNanos());
+      output.writeInt(latencies.size());
+      for (var entry : latencies.entrySet()) {
+        output.writeUTF(entry.getKey());
+        writeHistogram(output, entry.getValue());
+      }
+    }
+  }
+
+  // writes the max and the non-empty buckets
+  static void writeHistogram(DataOutputStream output, LatencyHistogram histogram)
+      throws IOException {
+    output.writeLong(histogram.getMax());
+    int buckets = 0;
+    for (int i = 0; i < LatencyHistogram.BUCKET_COUNT; i++) {
+      buckets += (histogram.getBucketCount(i) > 0 ? 1 : 0);
+    }
+    output.writeShort(buckets);
+    for (int i = 0; i < LatencyHistogram.BUCKET_COUNT; i++) {
+      long count = histogram.getBucketCount(i);
+      if (count > 0) {
+        output.writeShort(i);
+        output.writeLong(count);
+      }
+    }
+  }
+
+  static LatencyHistogram readHistogram(DataInputStream input) throws IOException {
+    var histogram = new LatencyHistogram();
+    histogram.updateMax(input.readLong());
+    for (int bucket = input.readUnsignedShort(); bucket > 0; bucket--) {
+      histogram.addBucketCount(input.readUnsignedShort(), input.readLong());
+    }
+    return histogram;
+  }
+
+  /**
+   * Reads results from a file.
+   *
+   * @param path the file
+   * @return the results
+   * @throws IOException if reading fails or the file isn't a results file
+   */
+  public static RunResults read(Path path) throws IOException {
+    try (var input = new DataInputStream(new BufferedInputStream(
+        new GZIPInputStream(Files.newInputStream(path))))) {
+      if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+        throw new IOException("Not a results file: " + path);
+      }
+      long iterations = input.readLong();
+      long failures = input.readLong();
+      var duration = Duration.ofNanos(input.readLong());
+      Map<String, LatencyHistogram> latencies = new TreeMap<>();
+      for (int i = input.readInt(); i > 0; i--) {
+        latencies.put(input.readUTF(), readHistogram(input));
+      }
+      return new RunResults(iterations, failures, duration, latencies);
+    }
+  }
+}
@@ -1,11 +1,22 @@
 package no.ngu.httpfile;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 import no.ngu.httpfile.HttpFile.StringTemplate.Part;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 /**
  * Test for {@link HttpFileParser}.
@@ -60,6 +71,14 @@ public class HttpFileParserTest {
             """));
   }
 
+  @Test
+  public void testMacroCallFollowedBySpace() {
+    assertEquals(new HttpFile.StringTemplate(new Part.Constant("{\"id\": \""),
+            new Part.MacroCall(Macro.guid), new Part.Constant("\", \"at\": \""),
+            new Part.MacroCall(Macro.datetime, "iso8601"), new Part.Constant("\"}")),
+        HttpFile.StringTemplate.of("{\"id\": \"{{$guid}}\", \"at\": \"{{$datetime iso8601}}\"}"));
+  }
+
   @Test
   public void testVariableRequestLine2() {
     assertEquals(
@@ -137,6 +156,40 @@ public class HttpFileParserTest {
             """));
   }
 
+  @Test
+  public void testMultipartBody() {
+    var contentType = "multipart/form-data; boundary=xyz";
+    assertEquals(
+        new HttpFile.Model(List.of(), new HttpFile.Request(List.of(), HttpFile.HttpMethod.POST,
+            new HttpFile.StringTemplate(new Part.Constant("http://vg.no/")), null,
+            List.of(new HttpFile.Header("Content-Type", contentType)),
+            new HttpFile.Body(null, List.of(
+                new HttpFile.Body.Part(
+                    List.of(new HttpFile.Header("Content-Disposition", "form-data; name=\"text\"")),
+                    new HttpFile.StringTemplate(new Part.Constant("first\n\nthird"))),
+                new HttpFile.Body.Part(
+                    List.of(new HttpFile.Header("Content-Disposition",
+                        "form-data; name=\"file\"; filename=\"content.txt\"")),
+                    new HttpFile.StringTemplate(new Part.ResourceRef("content.txt"))))))),
+        parser.parse("""
+            POST http://vg.no/
+            Content-Type: multipart/form-data; boundary=xyz
+
+            --xyz
+            Content-Disposition: form-data; name="text"
+
+            first
+
+            third
+            --xyz
+            Content-Disposition: form-data; name="file"; filename="content.txt"
+
+            < content.txt
+            --xyz--
+
+            """));
+  }
+
   @Test
   public void testResourceBody2() {
     assertEquals(
@@ -158,4 +211,139 @@ public class HttpFileParserTest {
 
             """));
   }
+
+  @Test
+  public void testPropertiesAndHeaderContinuation() {
+    assertEquals(
+        new HttpFile.Model(List.of(), new HttpFile.Request(
+            List.of(new HttpFile.Property("name", "test"), new HttpFile.Property("no-log", "")),
+            HttpFile.HttpMethod.PATCH,
+            new HttpFile.StringTemplate(new Part.Constant("http://vg.no/")),
+            new HttpFile.StringTemplate(new Part.Constant("HTTP/1.1")),
+            List.of(new HttpFile.Header("Accept", "text/plain,text/html")),
+            null)),
+        parser.parse("""
+            # @name test
+            #  @no-log
+            PATCH http://vg.no/  HTTP/1.1\r
+            Accept: text/plain,
+              text/html
+
+            """));
+  }
+
+  @Test
+  public void testHttpMethodOf() {
+    assertEquals(HttpFile.HttpMethod.DELETE, HttpFile.HttpMethod.of("xDELETE", 1, 7));
+    assertEquals(null, HttpFile.HttpMethod.of("PUSH", 0, 4));
+    assertEquals(false, HttpFile.HttpMethod.is("get"));
+  }
+
+  @Test
+  public void testParseFileInParallel(@TempDir Path tempDir) throws IOException {
+    var content = new StringBuilder();
+    for (int i = 0; i < 5000; i++) {
+      content.append("""
+          @var%1$d = value%1$d
+          # @name request%1$d
+          POST http://vg.no/{{var%1$d}}
+          Content-Type: text/plain
+
+          Content of request %1$d
+
+          ###
+          """.formatted(i));
+    }
+    content.append("@last = value\n");
+    var file = tempDir.resolve("large.http");
+    Files.writeString(file, content);
+
+    var expected = parser.parse(content.toString());
+    assertEquals(5001, expected.fileVariables().size());
+    assertEquals(5000, expected.requests().size());
+    assertEquals(expected, parser.parse(file, new ForkJoinPool(4)));
+  }
+
+  @Test
+  public void testLineView() {
+    var line = new HttpFileParser.Line();
+    line.reset("Name: value\r\n  --boundary  \nnext:\n");
+    line.advance();
+    assertEquals(4, line.indexOf(':'));
+    assertEquals(-1, line.indexOf(':', 5));
+    line.advance();
+    assertEquals(-1, line.indexOf(':'));
+    assertTrue(line.trimmedEquals("--boundary"));
+    assertFalse(line.trimmedEquals("--boundary--"));
+    assertFalse(line.trimmedEquals("--bound"));
+  }
+
+  @Test
+  public void testParseIncrementally() {
+    var source = """
+        @host = http://vg.no
+        # @name first
+        GET {{host}}/first
+
+        ###
+        # @name second
+        GET {{host}}/second
+
+        ###
+        # @name third
+        GET {{host}}/third
+        """;
+    Map<String, HttpFile.Model> blockCache = new HashMap<>();
+    var model = parser.parse(source, blockCache);
+    assertEquals(parser.parse(source), model);
+    assertEquals(3, blockCache.size());
+
+    var edited = parser.parse(source.replace("/second", "/2nd"), blockCache);
+    assertEquals(parser.parse(source.replace("/second", "/2nd")), edited);
+    assertEquals(3, blockCache.size());
+    // unchanged blocks aren't parsed again
+    assertSame(model.requests().get(0), edited.requests().get(0));
+    assertNotSame(model.requests().get(1), edited.requests().get(1));
+    assertSame(model.requests().get(2), edited.requests().get(2));
+
+    // repeated blocks give distinct requests, also when cached
+    var repeated = source + "\n###\n# @name third\nGET {{host}}/third\n\n";
+    for (int i = 0; i < 2; i++) {
+      var repeatedModel = parser.parse(repeated, blockCache);
+      assertEquals(parser.parse(repeated), repeatedModel);
+      assertEquals(3, blockCache.size());
+      assertEquals(repeatedModel.requests().get(2), repeatedModel.requests().get(3));
+      assertNotSame(repeatedModel.requests().get(2), repeatedModel.requests().get(3));
+    }
+  }
+
+  @Test
+  public void testParsePathsAgree(@TempDir Path tempDir) throws IOException {
+    var source = """
+        # @name upload
+        POST http://vg.no/upload
+        Content-Type: multipart/form-data; boundary="xyz"
+
+        --xyz
+        Content-Disposition: form-data; name="text"
+
+        first
+
+        ### not a request separator
+        --xyz--
+
+        ###
+        # @name after
+        GET http://vg.no/after
+        """;
+    var file = tempDir.resolve("multipart.http");
+    Files.writeString(file, source);
+
+    var expected = parser.parse(source);
+    assertEquals(2, expected.requests().size());
+    assertEquals("first\n\n### not a request separator",
+        expected.requests().get(0).body().parts().get(0).content().constantValue());
+    assertEquals(expected, parser.parse(file, new ForkJoinPool(2)));
+    assertEquals(expected, parser.parse(source, new HashMap<>()));
+  }
 }
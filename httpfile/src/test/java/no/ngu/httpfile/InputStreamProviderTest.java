@@ -0,0 +1,95 @@
+package no.ngu.httpfile;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test for {@link InputStreamProvider}.
+ */
+public class InputStreamProviderTest {
+
+  /**
+   * File provider that counts the number of times a file is opened.
+   */
+  private static class CountingProvider implements InputStreamProvider {
+
+    private final InputStreamProvider.File provider;
+    private int count = 0;
+
+    CountingProvider(Path basePath) {
+      this.provider = new InputStreamProvider.File(basePath);
+    }
+
+    @Override
+    public InputStream getInputStream(String resource) {
+      count++;
+      return provider.getInputStream(resource);
+    }
+
+    @Override
+    public Object getVersion(String resource) {
+      return provider.getVersion(resource);
+    }
+  }
+
+  private static String getContent(InputStreamProvider provider, String resource)
+      throws IOException {
+    var content = provider.getContent(resource);
+    return (content != null ? StandardCharsets.UTF_8.decode(content).toString() : null);
+  }
+
+  @Test
+  public void testCachedFile(@TempDir Path tempDir) throws IOException {
+    var file = tempDir.resolve("content.txt");
+    Files.writeString(file, "first");
+    var countingProvider = new CountingProvider(tempDir);
+    var cached = new InputStreamProvider.Cached(countingProvider, 1024);
+
+    assertEquals("first", getContent(cached, "content.txt"));
+    assertEquals("first", getContent(cached, "content.txt"));
+    assertEquals(1, countingProvider.count);
+
+    Files.writeString(file, "second");
+    Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 1000));
+    assertEquals("second", getContent(cached, "content.txt"));
+    assertEquals("second", new String(cached.getInputStream("content.txt").readAllBytes()));
+    assertEquals(2, countingProvider.count);
+
+    assertNull(getContent(cached, "missing.txt"));
+  }
+
+  @Test
+  public void testCachedEviction(@TempDir Path tempDir) throws IOException {
+    Files.writeString(tempDir.resolve("first.txt"), "first");
+    Files.writeString(tempDir.resolve("second.txt"), "second");
+    var countingProvider = new CountingProvider(tempDir);
+    var cached = new InputStreamProvider.Cached(countingProvider, 8);
+
+    assertEquals("first", getContent(cached, "first.txt"));
+    // evicts first.txt, since the total size would exceed 8
+    assertEquals("second", getContent(cached, "second.txt"));
+    assertEquals("second", getContent(cached, "second.txt"));
+    assertEquals(2, countingProvider.count);
+    assertEquals("first", getContent(cached, "first.txt"));
+    assertEquals(3, countingProvider.count);
+  }
+
+  @Test
+  public void testCachedClasspathResource() throws IOException {
+    var resource = new InputStreamProvider.Resource(getClass());
+    var cached = new InputStreamProvider.Cached(resource, 1024 * 1024);
+    var content = getContent(cached, "/client-test1.http");
+    assertEquals(content, getContent(cached, "/client-test1.http"));
+    assertEquals(resource.getVersion("/client-test1.http"),
+        cached.getVersion("/client-test1.http"));
+  }
+}
@@ -1,9 +1,17 @@
 package no.ngu.httpfile;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
 import org.junit.jupiter.api.Test;
 
 /**
@@ -30,4 +38,40 @@ public class MacroTest {
         macroValueProvider.applyMacro(Macro.localDatetime, "iso8601", "1", "m")
     );
   }
+
+  @Test
+  public void testBind() {
+    assertEquals(new Macro.Binding.Range(1, 10), Macro.randomInt.bind(List.of("1", "10")));
+    assertEquals(new Macro.Binding.Format("rfc1123", 2, ChronoUnit.HOURS),
+        Macro.datetime.bind(List.of("rfc1123", "2", "h")));
+    assertEquals(new Macro.Binding.Name("HOME"), Macro.processEnv.bind(List.of("%HOME")));
+    assertThrows(IllegalArgumentException.class, () -> Macro.randomInt.bind(List.of("1")));
+    assertThrows(IllegalArgumentException.class, () -> HttpFile.StringTemplate.of(
+        "{{$timestamp 1 lightyears}}"));
+  }
+
+  @Test
+  public void testSeededRandom() {
+    var first = new MacroValueProvider(new InputStreamProvider.Default(), 42);
+    var second = new MacroValueProvider(new InputStreamProvider.Default(), 42);
+    for (int i = 0; i < 10; i++) {
+      var guid = first.applyMacro(Macro.guid);
+      assertEquals(guid, second.applyMacro(Macro.guid));
+      assertEquals(4, UUID.fromString(guid).version());
+      var randomInt = Integer.parseInt(first.applyMacro(Macro.randomInt, "5", "10"));
+      assertEquals(randomInt, Integer.parseInt(second.applyMacro(Macro.randomInt, "5", "10")));
+      assertTrue(randomInt >= 5 && randomInt < 10);
+    }
+  }
+
+  @Test
+  public void testConcurrentRandom() throws Exception {
+    Set<String> guids = ConcurrentHashMap.newKeySet();
+    try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (int i = 0; i < 1000; i++) {
+        executor.submit(() -> guids.add(macroValueProvider.applyMacro(Macro.guid)));
+      }
+    }
+    assertEquals(1000, guids.size());
+  }
 }
@@ -2,7 +2,12 @@ package no.ngu.httpfile;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
+import com.sun.net.httpserver.HttpServer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.http.HttpClient;
 import java.util.List;
+import java.util.Map;
 import no.ngu.httpfile.HttpFile.StringTemplate.Part;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -37,13 +42,70 @@ public class StringTemplateResolverTest {
     var stringValueProvider =
         new StringValueProvider.Variables(model.fileVariables(), stringTemplateResolver);
     stringTemplateResolver.setStringValueProvider(stringValueProvider);
-    stringTemplateResolver.resolve(model);
+    var resolved = stringTemplateResolver.resolve(model);
 
     assertEquals(new HttpFile.Model(List.of(new HttpFile.Variable("section", "sport")),
         new HttpFile.Request(List.of(), HttpFile.HttpMethod.GET,
-            new HttpFile.StringTemplate(new Part.Constant("http://vg.no/"),
-                new Part.Constant("sport")),
+            new HttpFile.StringTemplate(new Part.Constant("http://vg.no/sport")),
             null, List.of(), null)),
-        model);
+        resolved);
+    // the original model is unchanged
+    assertEquals(2, model.requests().get(0).target().parts().size());
+  }
+
+  @Test
+  public void testResolveKeepsDynamicParts() {
+    var model = parser.parse("""
+        @host=http://vg.no
+        @id={{$guid}}
+        POST {{host}}/{{section}}/{{id}}
+        Authorization: Bearer {{login.response.body.$.token}}
+
+        {"host": "{{host}}"}
+        """);
+    var stringTemplateResolver = new StringTemplateResolver();
+    stringTemplateResolver.setInputStreamProvider(inputStreamProvider);
+    stringTemplateResolver.setStringValueProvider(new StringValueProvider.Providers(
+        StringValueProvider.Properties.of(Map.of("section", "sport")),
+        new StringValueProvider.Variables(model.fileVariables(), stringTemplateResolver),
+        new StringValueProvider.Traversable(Map.of(), List.of())));
+    var request = stringTemplateResolver.resolve(model).requests().get(0);
+
+    assertEquals(new HttpFile.StringTemplate(new Part.Constant("http://vg.no/sport/"),
+        new Part.MacroCall(Macro.guid)), request.target());
+    assertEquals(new HttpFile.StringTemplate(new Part.Constant("Bearer "),
+            new Part.VariableRef("login.response.body.$.token")),
+        request.headers().get(0).value());
+    assertEquals("{\"host\": \"http://vg.no\"}", request.body().content().constantValue());
+    // resolving again is a no-op, even though all lists are immutable
+    var resolvedAgain = stringTemplateResolver.resolve(new HttpFile.Model(List.of(), request));
+    assertEquals(request, resolvedAgain.requests().get(0));
+  }
+
+  @Test
+  public void testResourceAsync() throws Exception {
+    var server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/resource.txt", exchange -> {
+      var content = "remote content".getBytes();
+      exchange.sendResponseHeaders(200, content.length);
+      exchange.getResponseBody().write(content);
+      exchange.close();
+    });
+    server.start();
+    try (var httpClient = HttpClient.newHttpClient()) {
+      var baseUri = "http://localhost:" + server.getAddress().getPort();
+      var resource = baseUri + "/resource.txt";
+      var missing = baseUri + "/missing.txt";
+      var stringTemplateResolver = new StringTemplateResolver();
+      stringTemplateResolver.setInputStreamProvider(
+          new InputStreamProvider.Http(httpClient, inputStreamProvider));
+      var stringTemplate = new HttpFile.StringTemplate(new Part.Constant("content: "),
+          new Part.ResourceRef(resource), new Part.ResourceRef(missing));
+      assertEquals(List.of("content: ", "remote content",
+              "Resource '" + HttpFile.StringTemplate.of(missing) + "' not found"),
+          stringTemplateResolver.toStringsAsync(stringTemplate).get());
+    } finally {
+      server.stop(0);
+    }
   }
 }
@@ -0,0 +1,170 @@
+package no.ngu.httpfile.auth;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import no.ngu.httpfile.InputStreamProvider;
+import no.ngu.httpfile.Macro;
+import no.ngu.httpfile.MacroValueProvider;
+import no.ngu.httpfile.StringValueProvider;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test for {@link TokenStore}, using a stub token endpoint.
+ */
+public class TokenStoreTest {
+
+  /**
+   * Clock that only moves when told to.
+   */
+  private static class TestClock extends Clock {
+
+    private Instant instant = Instant.parse("2024-01-01T00:00:00Z");
+
+    @Override
+    public ZoneId getZone() {
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+      return this;
+    }
+
+    @Override
+    public Instant instant() {
+      return instant;
+    }
+  }
+
+  private HttpServer server;
+  private URI tokenEndpoint;
+  private final AtomicInteger tokenCount = new AtomicInteger();
+  private final Map<String, String> lastForm = new ConcurrentHashMap<>();
+
+  /**
+   * Starts the stub token endpoint, which issues tokens that expire after 60 seconds.
+   */
+  @BeforeEach
+  public void startServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+    server.createContext("/token", exchange -> {
+      var form = new String(exchange.getRequestBody().readAllBytes());
+      lastForm.put("form", form);
+      try {
+        // make concurrent requests overlap
+        Thread.sleep(100);
+      } catch (InterruptedException e) {
+        // ignore
+      }
+      var body = """
+          {"access_token": "token%d", "token_type": "Bearer", "expires_in": 60}
+          """.formatted(tokenCount.incrementAndGet()).getBytes();
+      exchange.getResponseHeaders().add("Content-Type", "application/json");
+      exchange.sendResponseHeaders(200, body.length);
+      exchange.getResponseBody().write(body);
+      exchange.close();
+    });
+    server.start();
+    tokenEndpoint = URI.create("http://localhost:" + server.getAddress().getPort() + "/token");
+  }
+
+  /**
+   * Stops the stub token endpoint.
+   */
+  @AfterEach
+  public void stopServer() {
+    server.stop(0);
+  }
+
+  @Test
+  public void testConcurrentCallersShareFetch() throws Exception {
+    var tokenStore = new TokenStore();
+    var config = new Oauth2Config(tokenEndpoint, "client", "secret", "api");
+    try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      List<Future<String>> tokens = new ArrayList<>();
+      for (int i = 0; i < 20; i++) {
+        tokens.add(executor.submit(() -> tokenStore.getAccessToken(config, false)));
+      }
+      for (var token : tokens) {
+        assertEquals("token1", token.get());
+      }
+    }
+    assertEquals(1, tokenCount.get());
+    assertEquals("grant_type=client_credentials&client_id=client&client_secret=secret&scope=api",
+        lastForm.get("form"));
+    assertEquals("token2", tokenStore.getAccessToken(config, true));
+    assertEquals("token2", tokenStore.getAccessToken(config, false));
+  }
+
+  @Test
+  public void testFetcherThrows() {
+    var fetchCount = new AtomicInteger();
+    var tokenStore = new TokenStore(config -> {
+      fetchCount.incrementAndGet();
+      throw new IllegalArgumentException("invalid URI scheme");
+    }, Duration.ofSeconds(10), Clock.systemUTC());
+    var config = new Oauth2Config(URI.create("ftp://localhost/token"), "client", "secret", null);
+    // each caller gets the failure, instead of waiting for a fetch that never completes
+    for (int i = 1; i <= 2; i++) {
+      var future = tokenStore.getToken(config, false);
+      var ex = assertThrows(CompletionException.class, () -> future.join());
+      assertInstanceOf(IllegalArgumentException.class, ex.getCause());
+      assertEquals(i, fetchCount.get());
+    }
+  }
+
+  @Test
+  public void testRefreshAheadOfExpiry() {
+    var clock = new TestClock();
+    var tokenStore = new TokenStore(null, Duration.ofSeconds(10), clock);
+    var config = new Oauth2Config(tokenEndpoint, "client", "secret", null);
+    assertEquals("token1", tokenStore.getAccessToken(config, false));
+    clock.instant = clock.instant.plusSeconds(55);
+    // still valid, but refreshed in the background
+    assertEquals("token1", tokenStore.getAccessToken(config, false));
+    clock.instant = clock.instant.plusSeconds(10);
+    // expired, so waits for the refresh in flight
+    assertEquals("token2", tokenStore.getAccessToken(config, false));
+    assertEquals(2, tokenCount.get());
+  }
+
+  @Test
+  public void testTokenMacro() {
+    var macroValueProvider = new MacroValueProvider(new InputStreamProvider.Default());
+    macroValueProvider.setTokenStore(new TokenStore());
+    macroValueProvider.setStringValueProvider(StringValueProvider.Properties.of(Map.of(
+        "auth.tokenEndpoint", tokenEndpoint.toString(),
+        "auth.clientId", "client",
+        "auth.username", "user",
+        "auth.password", "pass"
+    )));
+    assertEquals("token1", macroValueProvider.applyMacro(Macro.oauth2Token, "auth"));
+    assertEquals("token1", macroValueProvider.applyMacro(Macro.oauth2Token, "auth"));
+    assertEquals("token2", macroValueProvider.applyMacro(Macro.oauth2Token, "new", "auth"));
+    assertTrue(lastForm.get("form").startsWith("grant_type=password&client_id=client"));
+  }
+}
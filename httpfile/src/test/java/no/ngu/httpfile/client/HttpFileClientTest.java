@@ -1,12 +1,46 @@
 package no.ngu.httpfile.client;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 import jakarta.json.Json;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
 import no.ngu.httpfile.HttpFileParser;
 import no.ngu.httpfile.data.DataTraverser;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 /**
  * Test for {@link HttpFileClient}.
@@ -34,4 +68,737 @@ public class HttpFileClientTest {
       fail(ioe.getMessage());
     }
   }
+
+  private static String largeJson(int count) {
+    var json = new StringBuilder("{\"data\": \"hello\", \"items\": [");
+    for (int i = 0; i < count; i++) {
+      json.append(i > 0 ? ", " : "").append("{\"id\": %d, \"name\": \"item %d\"}".formatted(i, i));
+    }
+    return json.append("]}").toString();
+  }
+
+  private static void sendCompressed(HttpExchange exchange, byte[] content) throws IOException {
+    var acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+    var bytes = new ByteArrayOutputStream();
+    String encoding = null;
+    if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+      encoding = "gzip";
+    } else if (acceptEncoding != null && acceptEncoding.contains("deflate")) {
+      encoding = "deflate";
+    }
+    OutputStream output = switch (encoding != null ? encoding : "identity") {
+      case "gzip" -> new GZIPOutputStream(bytes);
+      case "deflate" -> new DeflaterOutputStream(bytes);
+      default -> bytes;
+    };
+    try (output) {
+      output.write(content);
+    }
+    exchange.getResponseHeaders().add("Content-Type", "application/json");
+    if (encoding != null) {
+      exchange.getResponseHeaders().add("Content-Encoding", encoding);
+    }
+    exchange.sendResponseHeaders(200, bytes.size());
+    exchange.getResponseBody().write(bytes.toByteArray());
+    exchange.close();
+  }
+
+  @Test
+  public void testCompressedResponses() throws Exception {
+    var json = largeJson(10000);
+    var server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/data", exchange -> sendCompressed(exchange, json.getBytes()));
+    server.createContext("/empty", exchange -> {
+      exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+      exchange.sendResponseHeaders(204, -1);
+      exchange.close();
+    });
+    server.start();
+    try (var testClient = new HttpFileClient()) {
+      testClient.setAcceptCompressed(true);
+      var model = new HttpFileParser().parse("""
+          # @name gzip
+          GET http://localhost:%1$d/data
+
+          ###
+          # @name deflate
+          GET http://localhost:%1$d/data
+          Accept-Encoding: deflate
+
+          ###
+          # @name identity
+          GET http://localhost:%1$d/data
+          Accept-Encoding: identity
+
+          ###
+          # @name empty
+          GET http://localhost:%1$d/empty
+          """.formatted(server.getAddress().getPort()));
+      var result = testClient.performRequests(model);
+      assertEquals("gzip",
+          testClient.traversePath(result, "gzip.response.headers.content-encoding"));
+      assertEquals(json, testClient.traversePath(result, "gzip.response.body"));
+      assertEquals(Json.createValue("hello"),
+          testClient.traversePath(result, "gzip.response.body.$.data"));
+      assertEquals("deflate",
+          testClient.traversePath(result, "deflate.response.headers.content-encoding"));
+      assertEquals(json, testClient.traversePath(result, "deflate.response.body"));
+      assertEquals(json, testClient.traversePath(result, "identity.response.body"));
+      assertEquals(204, testClient.traversePath(result, "empty.response.statusCode"));
+      assertEquals("", testClient.traversePath(result, "empty.response.body"));
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void testDecompressSplitBuffers() throws IOException {
+    var json = largeJson(100);
+    for (var encoding : List.of("gzip", "zlib", "raw")) {
+      var bytes = new ByteArrayOutputStream();
+      OutputStream output = switch (encoding) {
+        case "gzip" -> new GZIPOutputStream(bytes);
+        case "zlib" -> new DeflaterOutputStream(bytes);
+        default -> new DeflaterOutputStream(bytes,
+            new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+      };
+      try (output) {
+        output.write(json.getBytes());
+      }
+      var decompressor = new DecompressingBodyHandler.Decompressor(encoding.equals("gzip"));
+      assertTrue(decompressor.isEmpty());
+      List<ByteBuffer> buffers = new ArrayList<>();
+      // one byte at a time, so the header, body and trailer are all split
+      for (var b : bytes.toByteArray()) {
+        decompressor.decompress(ByteBuffer.wrap(new byte[] {b}), buffers);
+      }
+      assertTrue(decompressor.isDone(), encoding);
+      var decompressed = new StringBuilder();
+      buffers.forEach(buffer -> decompressed.append(StandardCharsets.UTF_8.decode(buffer)));
+      assertEquals(json, decompressed.toString(), encoding);
+    }
+  }
+
+  @Test
+  public void testCompressedRequests() throws Exception {
+    var json = largeJson(10000);
+    var server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    var requestCount = new AtomicInteger();
+    // echoes the decompressed request body
+    server.createContext("/echo", exchange -> {
+      requestCount.incrementAndGet();
+      var contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+      var input = switch (contentEncoding != null ? contentEncoding : "identity") {
+        case "gzip" -> new GZIPInputStream(exchange.getRequestBody());
+        case "deflate" -> new InflaterInputStream(exchange.getRequestBody());
+        default -> exchange.getRequestBody();
+      };
+      var body = input.readAllBytes();
+      exchange.getResponseHeaders().add("X-Content-Encoding", String.valueOf(contentEncoding));
+      exchange.sendResponseHeaders(200, body.length);
+      exchange.getResponseBody().write(body);
+      exchange.close();
+    });
+    server.start();
+    try (var testClient = new HttpFileClient()) {
+      var model = new HttpFileParser().parse("""
+          @prefix = {"prefix": true,
+          # @name gzip
+          # @compress gzip
+          POST http://localhost:%1$d/echo
+          Content-Type: application/json
+
+          {{prefix}} "items": %2$s}
+
+          ###
+          # @name deflate
+          # @compress deflate
+          POST http://localhost:%1$d/echo
+          Content-Type: application/json
+
+          {{prefix}} "items": %2$s}
+
+          ###
+          # @name mismatch
+          # @compress gzip
+          POST http://localhost:%1$d/echo
+          Content-Type: application/json
+          Content-Encoding: deflate
+
+          {{prefix}} "items": %2$s}
+          """.formatted(server.getAddress().getPort(), json));
+      var result = testClient.performRequests(model);
+      // a Content-Encoding header that doesn't match # @compress is rejected, and not sent
+      assertFalse(result.containsKey("mismatch"));
+      assertEquals(2, requestCount.get());
+      var expected = "{\"prefix\": true, \"items\": " + json + "}";
+      for (var encoding : List.of("gzip", "deflate")) {
+        assertEquals(encoding,
+            testClient.traversePath(result, encoding + ".response.headers.x-content-encoding"));
+        assertEquals(expected, testClient.traversePath(result, encoding + ".response.body"));
+      }
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void testHttpCache(@TempDir Path cacheDir) throws Exception {
+    var json = largeJson(1000);
+    var fullResponses = new AtomicInteger();
+    var server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/catalogue", exchange -> {
+      exchange.getResponseHeaders().add("ETag", "\"v1\"");
+      if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+        exchange.sendResponseHeaders(304, -1);
+        exchange.close();
+      } else {
+        fullResponses.incrementAndGet();
+        sendCompressed(exchange, json.getBytes());
+      }
+    });
+    server.start();
+    try {
+      var model = new HttpFileParser().parse("""
+          # @name catalogue
+          GET http://localhost:%d/catalogue
+          """.formatted(server.getAddress().getPort()));
+      // separate clients, like separate runs
+      for (int run = 0; run < 3; run++) {
+        try (var testClient = new HttpFileClient()) {
+          testClient.setAcceptCompressed(true);
+          testClient.setHttpCache(new HttpCache(cacheDir, 1024 * 1024));
+          var result = testClient.performRequests(model);
+          assertEquals(200, testClient.traversePath(result, "catalogue.response.statusCode"));
+          assertEquals(Json.createValue("hello"),
+              testClient.traversePath(result, "catalogue.response.body.$.data"));
+        }
+      }
+      assertEquals(1, fullResponses.get());
+      // a revalidated response is recorded with the cached status and body
+      var archiveDir = cacheDir.resolve("archive");
+      try (var testClient = new HttpFileClient();
+          var archive = ExchangeArchive.record(archiveDir)) {
+        testClient.setHttpCache(new HttpCache(cacheDir, 1024 * 1024));
+        testClient.setExchangeArchive(archive);
+        testClient.performRequests(model);
+      }
+      try (var testClient = new HttpFileClient();
+          var archive = ExchangeArchive.replay(archiveDir)) {
+        testClient.setExchangeArchive(archive);
+        var result = testClient.performRequests(model);
+        assertEquals(200, testClient.traversePath(result, "catalogue.response.statusCode"));
+        assertEquals(json, testClient.traversePath(result, "catalogue.response.body"));
+      }
+      assertEquals(1, fullResponses.get());
+      // too small for the entry, so it is evicted
+      try (var testClient = new HttpFileClient()) {
+        testClient.setHttpCache(new HttpCache(cacheDir.resolve("small"), 1024));
+        testClient.performRequests(model);
+        testClient.performRequests(model);
+      }
+      assertEquals(3, fullResponses.get());
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void testHttpCacheVaryAndAuthorization(@TempDir Path cacheDir) {
+    var cache = new HttpCache(cacheDir, 1024 * 1024);
+    var uri = URI.create("http://api.test/greeting");
+    var english = HttpRequest.newBuilder(uri).header("Accept-Language", "en").build();
+    var norwegian = HttpRequest.newBuilder(uri).header("Accept-Language", "no").build();
+    var headers = HttpHeaders.of(Map.of("ETag", List.of("\"v1\""),
+        "Vary", List.of("Accept-Language")), (name, value) -> true);
+    assertTrue(cache.put(new BasicHttpResponse<>(english, 200, headers, "hello")));
+    assertEquals("hello", cache.get(english).body());
+    // the response varies by a header the request has another value of
+    assertNull(cache.get(norwegian));
+
+    var authorized = HttpRequest.newBuilder(uri).header("Authorization", "Bearer token").build();
+    var etag = HttpHeaders.of(Map.of("ETag", List.of("\"v2\"")), (name, value) -> true);
+    assertFalse(cache.put(new BasicHttpResponse<>(authorized, 200, etag, "private")));
+    var publicEtag = HttpHeaders.of(Map.of("ETag", List.of("\"v2\""),
+        "Cache-Control", List.of("public, max-age=60")), (name, value) -> true);
+    assertTrue(cache.put(new BasicHttpResponse<>(authorized, 200, publicEtag, "public")));
+    assertEquals("public", cache.get(authorized).body());
+  }
+
+  @Test
+  public void testHttpCacheEviction(@TempDir Path cacheDir) throws IOException {
+    var headers = HttpHeaders.of(Map.of("ETag", List.of("\"v1\"")), (name, value) -> true);
+    var requests = new ArrayList<HttpRequest>();
+    for (var name : List.of("a", "b", "c")) {
+      requests.add(HttpRequest.newBuilder(URI.create("http://api.test/" + name)).build());
+    }
+    var sizing = new HttpCache(cacheDir.resolve("sizing"), 1024 * 1024);
+    sizing.put(new BasicHttpResponse<>(requests.get(0), 200, headers, "body"));
+    long entrySize;
+    try (var files = Files.list(cacheDir.resolve("sizing"))) {
+      entrySize = Files.size(files.findFirst().get());
+    }
+    // room for two entries
+    var cache = new HttpCache(cacheDir.resolve("lru"), entrySize * 5 / 2);
+    cache.put(new BasicHttpResponse<>(requests.get(0), 200, headers, "body"));
+    cache.put(new BasicHttpResponse<>(requests.get(1), 200, headers, "body"));
+    assertEquals("body", cache.get(requests.get(0)).body());
+    cache.put(new BasicHttpResponse<>(requests.get(2), 200, headers, "body"));
+    // the least recently used entry is evicted
+    assertNull(cache.get(requests.get(1)));
+    assertEquals("body", cache.get(requests.get(0)).body());
+    assertEquals("body", cache.get(requests.get(2)).body());
+  }
+
+  @Test
+  public void testRecordAndReplay(@TempDir Path archiveDir) throws Exception {
+    var requestCount = new AtomicInteger();
+    var server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/echo", exchange -> {
+      var body = ("%d: %s".formatted(requestCount.incrementAndGet(),
+          new String(exchange.getRequestBody().readAllBytes()))).getBytes();
+      exchange.getResponseHeaders().add("Content-Type", "text/plain");
+      exchange.sendResponseHeaders(201, body.length);
+      exchange.getResponseBody().write(body);
+      exchange.close();
+    });
+    server.start();
+    var content = """
+        # @name first
+        POST http://localhost:%1$d/echo?q={{query}}
+
+        first body
+
+        ###
+        # @name second
+        POST http://localhost:%1$d/echo?q={{query}}
+
+        second body
+        """.formatted(server.getAddress().getPort());
+    var model = new HttpFileParser().parse(content);
+    try (var testClient = new HttpFileClient();
+        var archive = ExchangeArchive.record(archiveDir)) {
+      testClient.setExchangeArchive(archive);
+      testClient.performRequests(model, Map.of("query", "one"), List.of(), null);
+    } finally {
+      server.stop(0);
+    }
+    assertEquals(2, requestCount.get());
+
+    // the server is stopped, so the responses must come from the archive
+    for (int run = 0; run < 2; run++) {
+      try (var testClient = new HttpFileClient();
+          var archive = ExchangeArchive.replay(archiveDir)) {
+        testClient.setExchangeArchive(archive);
+        var result = testClient.performRequests(model, Map.of("query", "one"), List.of(), null);
+        assertEquals(201, testClient.traversePath(result, "first.response.statusCode"));
+        assertEquals("1: first body", testClient.traversePath(result, "first.response.body"));
+        assertEquals("2: second body", testClient.traversePath(result, "second.response.body"));
+        assertEquals("text/plain",
+            testClient.traversePath(result, "second.response.headers.content-type"));
+        // a different request wasn't recorded, so it fails
+        result = testClient.performRequests(model, Map.of("query", "two"), List.of(), null);
+        assertTrue(result.isEmpty());
+      }
+      // without the index, it is rebuilt from the data file
+      Files.deleteIfExists(archiveDir.resolve("exchanges.idx"));
+    }
+  }
+
+  @Test
+  public void testReplayWithDynamicHeaders(@TempDir Path archiveDir) throws Exception {
+    var tokenCount = new AtomicInteger();
+    var server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/token", exchange -> {
+      var body = """
+          {"access_token": "token%d", "token_type": "Bearer", "expires_in": 60}
+          """.formatted(tokenCount.incrementAndGet()).getBytes();
+      exchange.getResponseHeaders().add("Content-Type", "application/json");
+      exchange.sendResponseHeaders(200, body.length);
+      exchange.getResponseBody().write(body);
+      exchange.close();
+    });
+    server.createContext("/echo", exchange -> {
+      var body = exchange.getRequestHeaders().getFirst("Authorization").getBytes();
+      exchange.sendResponseHeaders(200, body.length);
+      exchange.getResponseBody().write(body);
+      exchange.close();
+    });
+    server.start();
+    var model = new HttpFileParser().parse("""
+        # @name first
+        GET http://localhost:%d/echo
+        X-Request-Id: {{$guid}}
+        Authorization: Bearer {{$oauth2Token auth}}
+        """.formatted(server.getAddress().getPort()));
+    var variables = Map.of("auth.tokenEndpoint",
+        "http://localhost:%d/token".formatted(server.getAddress().getPort()),
+        "auth.clientId", "client");
+    try (var testClient = new HttpFileClient();
+        var archive = ExchangeArchive.record(archiveDir)) {
+      testClient.setExchangeArchive(archive);
+      archive.setIgnoredHeaders(List.of("X-Request-Id", "Authorization"));
+      var result = testClient.performRequests(model, variables, List.of(), null);
+      assertEquals("Bearer token1", testClient.traversePath(result, "first.response.body"));
+    } finally {
+      server.stop(0);
+    }
+    assertEquals(1, tokenCount.get());
+
+    // another token endpoint, so a token can't come from the default token store's cache
+    variables = Map.of("auth.tokenEndpoint",
+        "http://localhost:%d/replay-token".formatted(server.getAddress().getPort()),
+        "auth.clientId", "client");
+    // the request id differs, so by default the request cannot be replayed
+    try (var testClient = new HttpFileClient();
+        var archive = ExchangeArchive.replay(archiveDir)) {
+      testClient.setExchangeArchive(archive);
+      assertTrue(testClient.performRequests(model, variables, List.of(), null).isEmpty());
+    }
+    // unless it's ignored, and the token isn't fetched, but a placeholder is used
+    try (var testClient = new HttpFileClient();
+        var archive = ExchangeArchive.replay(archiveDir)) {
+      testClient.setExchangeArchive(archive);
+      archive.setIgnoredHeaders(List.of("X-Request-Id", "Authorization"));
+      var result = testClient.performRequests(model, variables, List.of(), null);
+      assertEquals("Bearer token1", testClient.traversePath(result, "first.response.body"));
+      assertEquals("Bearer replayed",
+          testClient.traversePath(result, "first.request.headers.authorization"));
+    }
+    assertEquals(1, tokenCount.get());
+  }
+
+  @Test
+  public void testInProcessTransport() throws Exception {
+    var transport = new HttpTransport.InProcess()
+        .register("api.test", (request, body) -> switch (request.uri().getPath()) {
+          // the body is received as published, i.e. compressed
+          case "/items" -> new HttpTransport.Response(201, "application/json",
+              "{\"created\": %s}".formatted(new String(
+                  new GZIPInputStream(new ByteArrayInputStream(body)).readAllBytes())));
+          default -> new HttpTransport.Response(404, "text/plain", "Not found");
+        });
+    try (var testClient = new HttpFileClient()) {
+      testClient.setTransport(transport);
+      var model = new HttpFileParser().parse("""
+          # @name create
+          # @compress gzip
+          POST http://api.test/items
+          Content-Type: application/json
+
+          {"name": "{{name}}"}
+
+          ###
+          # @name missing
+          GET http://api.test/missing
+
+          ###
+          # @name other
+          GET http://other.test/
+          """);
+      var result = testClient.performRequests(model, Map.of("name", "item"), List.of(), null);
+      assertEquals(201, testClient.traversePath(result, "create.response.statusCode"));
+      assertEquals(Json.createValue("item"),
+          testClient.traversePath(result, "create.response.body.$.created.name"));
+      assertEquals(404, testClient.traversePath(result, "missing.response.statusCode"));
+      // no handler for other.test, so it fails like a connection error
+      assertEquals(false, result.containsKey("other"));
+    }
+  }
+
+  @Test
+  public void testCoalesceRequests() throws Exception {
+    var requestCount = new AtomicInteger();
+    var transport = new HttpTransport.InProcess()
+        .register("api.test", (request, body) -> {
+          requestCount.incrementAndGet();
+          // make concurrent requests overlap
+          Thread.sleep(200);
+          return new HttpTransport.Response(200, "text/plain", "reference data");
+        });
+    var model = new HttpFileParser().parse("""
+        # @name coalesced
+        # @coalesce
+        GET http://api.test/reference
+
+        ###
+        # @name separate
+        # @coalesce false
+        GET http://api.test/reference
+        """);
+    // only requests that are sent take a permit
+    var permitCount = new AtomicInteger();
+    var rateLimiter = new RateLimiter(RateLimiter.Limits.UNLIMITED) {
+      @Override
+      public Permit acquire(String authority, Limits limits) throws InterruptedException {
+        permitCount.incrementAndGet();
+        return super.acquire(authority, limits);
+      }
+    };
+    try (var testClient = new HttpFileClient();
+        var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      testClient.setTransport(transport);
+      testClient.setCoalesceRequests(true);
+      testClient.setRateLimiter(rateLimiter);
+      for (var name : List.of("coalesced", "separate")) {
+        requestCount.set(0);
+        permitCount.set(0);
+        List<Future<Map<String, Object>>> results = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+          results.add(executor.submit(() -> testClient.performRequests(model, name)));
+        }
+        for (var result : results) {
+          assertEquals("reference data",
+              testClient.traversePath(result.get(), name + ".response.body"));
+        }
+        assertEquals(name.equals("coalesced") ? 1 : 10, requestCount.get());
+        assertEquals(requestCount.get(), permitCount.get());
+      }
+    }
+  }
+
+  @Test
+  public void testPaginate() throws Exception {
+    var secondPageRequested = new CountDownLatch(1);
+    var transport = new HttpTransport.InProcess()
+        .register("api.test", (request, body) -> {
+          var query = request.uri().getQuery();
+          int page = (query.equals("cursor=") ? 1
+              : Integer.parseInt(query.substring("cursor=page".length())));
+          if (page == 2) {
+            secondPageRequested.countDown();
+          }
+          return new HttpTransport.Response(200, "application/json", page < 5
+              ? "{\"page\": %d, \"nextCursor\": \"page%d\"}".formatted(page, page + 1)
+              : "{\"page\": %d}".formatted(page));
+        });
+    var model = new HttpFileParser().parse("""
+        # @name items
+        # @paginate next = response.body.$.nextCursor
+        GET http://api.test/items?cursor={{next}}
+        """);
+    try (var testClient = new HttpFileClient()) {
+      testClient.setTransport(transport);
+      List<Object> pages = new ArrayList<>();
+      List<Boolean> prefetched = new ArrayList<>();
+      var result = testClient.performRequests(model, Map.of(), List.of(), (request, page) -> {
+        pages.add(testClient.traversePath(page, "response.body.$.page"));
+        if (pages.size() == 1) {
+          // the next page is requested while this one is consumed
+          try {
+            prefetched.add(secondPageRequested.await(5, TimeUnit.SECONDS));
+          } catch (InterruptedException e) {
+            prefetched.add(false);
+          }
+        }
+      });
+      assertEquals(List.of(1, 2, 3, 4, 5).stream().map(Json::createValue).toList(), pages);
+      assertEquals(List.of(true), prefetched);
+      // only the last page is kept
+      assertEquals(Json.createValue(5),
+          testClient.traversePath(result, "items.response.body.$.page"));
+    }
+  }
+
+  @Test
+  public void testUntil(@TempDir Path archiveDir) throws Exception {
+    var pollCount = new AtomicInteger();
+    var transport = new HttpTransport.InProcess()
+        .register("api.test", (request, body) -> new HttpTransport.Response(200,
+            "application/json", "{\"status\": \"%s\"}".formatted(
+                request.uri().getPath().equals("/jobs/1") && pollCount.incrementAndGet() >= 4
+                    ? "DONE" : "RUNNING")));
+    var model = new HttpFileParser().parse("""
+        # @name job
+        # @until response.body.$.status == "DONE"
+        # @backoff 10ms 50ms jitter
+        GET http://api.test/jobs/{{job}}
+        """);
+    try (var testClient = new HttpFileClient();
+        var archive = ExchangeArchive.record(archiveDir)) {
+      testClient.setTransport(transport);
+      testClient.setExchangeArchive(archive);
+      var result = testClient.performRequests(model, Map.of("job", "1"), List.of(), null);
+      assertEquals(Json.createValue("DONE"),
+          testClient.traversePath(result, "job.response.body.$.status"));
+      assertEquals(4, pollCount.get());
+    }
+    // each poll is recorded, and the last recording wins
+    try (var testClient = new HttpFileClient();
+        var archive = ExchangeArchive.replay(archiveDir)) {
+      testClient.setExchangeArchive(archive);
+      var result = testClient.performRequests(model, Map.of("job", "1"), List.of(), null);
+      assertEquals(Json.createValue("DONE"),
+          testClient.traversePath(result, "job.response.body.$.status"));
+      assertEquals(4, pollCount.get());
+    }
+    try (var testClient = new HttpFileClient()) {
+      testClient.setTransport(transport);
+
+      // never done, so the deadline passes
+      model = new HttpFileParser().parse("""
+          # @name job
+          # @until response.body.$.status == "DONE"
+          # @backoff 10ms
+          # @deadline 200ms
+          GET http://api.test/jobs/{{job}}
+          """);
+      var result = testClient.performRequests(model, Map.of("job", "2"), List.of(), null);
+      assertTrue(result.isEmpty());
+    }
+  }
+
+  @Test
+  public void testRetryAfter() throws Exception {
+    var requestCount = new AtomicInteger();
+    var transport = new HttpTransport.InProcess()
+        .register("api.test", (request, body) -> requestCount.incrementAndGet() == 1
+            ? new HttpTransport.Response(429, Map.of("Retry-After", List.of("1")), new byte[0])
+            : new HttpTransport.Response(200, "text/plain", "ok"));
+    var model = new HttpFileParser().parse("""
+        # @name limited
+        # @rate 100
+        GET http://api.test/limited
+        """);
+    try (var testClient = new HttpFileClient()) {
+      testClient.setTransport(transport);
+      testClient.setRateLimiter(new RateLimiter(RateLimiter.Limits.UNLIMITED));
+      long start = System.nanoTime();
+      var result = testClient.performRequests(model);
+      assertEquals(200, testClient.traversePath(result, "limited.response.statusCode"));
+      assertEquals(2, requestCount.get());
+      assertTrue(System.nanoTime() - start >= TimeUnit.SECONDS.toNanos(1));
+    }
+  }
+
+  @Test
+  public void testMultipart(@TempDir Path dir) throws Exception {
+    var file = dir.resolve("data.bin");
+    var fileContent = new byte[1 << 20];
+    new Random(1).nextBytes(fileContent);
+    Files.write(file, fileContent);
+    var receivedBody = new ByteArrayOutputStream();
+    var contentLength = new AtomicInteger(-1);
+    var server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/upload", exchange -> {
+      var length = exchange.getRequestHeaders().getFirst("Content-Length");
+      contentLength.set(length != null ? Integer.parseInt(length) : -1);
+      receivedBody.writeBytes(exchange.getRequestBody().readAllBytes());
+      exchange.sendResponseHeaders(204, -1);
+      exchange.close();
+    });
+    server.start();
+    try (var testClient = new HttpFileClient()) {
+      var model = new HttpFileParser().parse("""
+          @name=test
+          # @name upload
+          POST http://localhost:%d/upload
+          Content-Type: multipart/form-data; boundary=xyz
+
+          --xyz
+          Content-Disposition: form-data; name="name"
+
+          {{name}}
+          --xyz
+          Content-Disposition: form-data; name="file"; filename="data.bin"
+          Content-Type: application/octet-stream
+
+          < %s
+          --xyz--
+          """.formatted(server.getAddress().getPort(), file.toUri()));
+      var result = testClient.performRequests(model);
+      assertEquals(204, testClient.traversePath(result, "upload.response.statusCode"));
+      var expected = new ByteArrayOutputStream();
+      expected.writeBytes(("--xyz\r\nContent-Disposition: form-data; name=\"name\"\r\n\r\n"
+          + "test\r\n--xyz\r\n"
+          + "Content-Disposition: form-data; name=\"file\"; filename=\"data.bin\"\r\n"
+          + "Content-Type: application/octet-stream\r\n\r\n")
+          .getBytes(StandardCharsets.UTF_8));
+      expected.writeBytes(fileContent);
+      expected.writeBytes("\r\n--xyz--\r\n".getBytes(StandardCharsets.UTF_8));
+      assertEquals(expected.size(), receivedBody.size());
+      assertTrue(Arrays.equals(expected.toByteArray(), receivedBody.toByteArray()));
+      // the length is known up front, so the body isn't chunked
+      assertEquals(expected.size(), contentLength.get());
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void testServerSentEvents() throws Exception {
+    // the rest of the stream is held back until the client has returned
+    var rest = new CountDownLatch(1);
+    var sent = new AtomicInteger();
+    var server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/events", exchange -> {
+      exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+      exchange.sendResponseHeaders(200, 0);
+      try (var output = exchange.getResponseBody()) {
+        output.write(": comment\n\n".getBytes(StandardCharsets.UTF_8));
+        for (int i = 1; i <= 10; i++) {
+          if (i == 4) {
+            rest.await(10, TimeUnit.SECONDS);
+          }
+          Thread.sleep(10);
+          var event = "event: progress\nid: %d\ndata: {\"step\": %d,\ndata: \"status\": \"%s\"}\n\n"
+              .formatted(i, i, i < 3 ? "running" : "done");
+          output.write(event.getBytes(StandardCharsets.UTF_8));
+          output.flush();
+          sent.incrementAndGet();
+        }
+      } catch (InterruptedException | IOException e) {
+        // the client cancelled the stream
+      }
+    });
+    server.start();
+    try (var testClient = new HttpFileClient()) {
+      var model = new HttpFileParser().parse("""
+          # @name events
+          # @stream
+          # @stream-until event.data.$.status == "done"
+          GET http://localhost:%d/events
+          """.formatted(server.getAddress().getPort()));
+      List<StreamEvent> events = new ArrayList<>();
+      var result = testClient.performRequests(model, Map.of(), List.of(), (request, event) -> {
+        var streamEvent = (StreamEvent) testClient.traversePath(event, "event");
+        // each event is consumed as it arrives, not when the response is complete
+        assertEquals(streamEvent.index() + 1, Integer.parseInt(streamEvent.id()));
+        assertEquals(1, rest.getCount());
+        events.add(streamEvent);
+      });
+      assertEquals(Json.createValue(3),
+          testClient.traversePath(result, "events.event.data.$.step"));
+      // cancelled after the third event, without waiting for the rest
+      assertTrue(sent.get() < 10);
+      assertEquals(3, events.size());
+      assertEquals("progress", events.getFirst().type());
+      assertEquals("{\"step\": 1,\n\"status\": \"running\"}", events.getFirst().data());
+      assertFalse(events.get(1).sincePrevious().isNegative());
+      assertTrue(events.get(2).elapsed().compareTo(events.get(1).elapsed()) > 0);
+    } finally {
+      rest.countDown();
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void testNdjsonStream() throws Exception {
+    var transport = new HttpTransport.InProcess()
+        .register("api.test", (request, body) -> new HttpTransport.Response(200,
+            "application/x-ndjson", "{\"n\": 1}\n{\"n\": 2}\n\n{\"n\": 3}\n"));
+    var model = new HttpFileParser().parse("""
+        # @name lines
+        # @stream ndjson
+        GET http://api.test/lines
+        """);
+    try (var testClient = new HttpFileClient()) {
+      testClient.setTransport(transport);
+      List<Object> values = new ArrayList<>();
+      var result = testClient.performRequests(model, Map.of(), List.of(), (request, event) ->
+          values.add(testClient.traversePath(event, "event.data.$.n")));
+      assertEquals(List.of(1, 2, 3).stream().map(Json::createValue).toList(), values);
+      assertEquals(2, testClient.traversePath(result, "lines.event.index"));
+    }
+  }
 }
@@ -0,0 +1,132 @@
+package no.ngu.httpfile.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import jakarta.json.Json;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import no.ngu.httpfile.HttpFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test for {@link HttpFileWatcher}.
+ */
+public class HttpFileWatcherTest {
+
+  private static final String SOURCE = """
+      @host = http://api.test
+      @auth = Bearer {{login.response.body.$.token}}
+      # @name login
+      POST {{host}}/login
+
+      ###
+      # @name items
+      GET {{host}}/items
+      Authorization: {{auth}}
+
+      ###
+      # @name status
+      GET {{host}}/status
+      """;
+
+  private final Map<String, AtomicInteger> counts = new ConcurrentHashMap<>();
+
+  private HttpTransport transport() {
+    return new HttpTransport.InProcess()
+        .register("api.test", (request, body) -> {
+          var path = request.uri().getPath();
+          int count = counts.computeIfAbsent(path, key -> new AtomicInteger()).incrementAndGet();
+          var responseBody = switch (path) {
+            case "/login" -> "{\"token\": \"token%d\"}".formatted(count);
+            case "/items" -> "{\"auth\": \"%s\"}".formatted(
+                request.headers().firstValue("Authorization").orElse(""));
+            default -> "{\"path\": \"%s\"}".formatted(path);
+          };
+          return new HttpTransport.Response(200, "application/json", responseBody);
+        });
+  }
+
+  private static List<String> names(List<HttpFile.Request> requests) {
+    return requests.stream()
+        .map(request -> request.getRequestPropertyValue("name").orElse(null)).toList();
+  }
+
+  @Test
+  public void testUpdate() throws Exception {
+    try (var testClient = new HttpFileClient()) {
+      testClient.setTransport(transport());
+      var watcher = new HttpFileWatcher(testClient);
+      assertEquals(List.of("login", "items", "status"), names(watcher.update(SOURCE)));
+
+      // only the edited request, the login result is kept
+      var source = SOURCE.replace("/items", "/items?page=1");
+      assertEquals(List.of("items"), names(watcher.update(source)));
+      assertEquals(1, counts.get("/login").get());
+      assertEquals(Json.createValue("Bearer token1"),
+          testClient.traversePath(watcher.getResults(), "items.response.body.$.auth"));
+
+      // the edited request and the one referring to its result through a file variable
+      source = source.replace("/login", "/login?again");
+      assertEquals(List.of("login", "items"), names(watcher.update(source)));
+      assertEquals(Json.createValue("Bearer token2"),
+          testClient.traversePath(watcher.getResults(), "items.response.body.$.auth"));
+
+      // the request referring to an edited file variable
+      source = source.replace("Bearer", "Token");
+      assertEquals(List.of("items"), names(watcher.update(source)));
+      assertEquals(Json.createValue("Token token2"),
+          testClient.traversePath(watcher.getResults(), "items.response.body.$.auth"));
+
+      // nothing changed, but the removed requests' results are dropped
+      source = source.substring(0, source.indexOf("###"));
+      assertEquals(List.of(), names(watcher.update(source)));
+      assertEquals(List.of("login"), List.copyOf(watcher.getResults().keySet()));
+    }
+  }
+
+  @Test
+  public void testWatch(@TempDir Path dir) throws Exception {
+    var file = dir.resolve("test.http");
+    Files.writeString(file, SOURCE);
+    try (var testClient = new HttpFileClient()) {
+      testClient.setTransport(transport());
+      var watcher = new HttpFileWatcher(testClient);
+      var thread = Thread.ofVirtual().start(() -> {
+        try {
+          watcher.watch(file);
+        } catch (InterruptedException e) {
+          // stopped
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      });
+      try {
+        awaitCount("/status", 1);
+        Files.writeString(file, SOURCE.replace("/status", "/status?verbose"));
+        awaitCount("/status", 2);
+        assertEquals(1, counts.get("/login").get());
+        assertEquals(1, counts.get("/items").get());
+      } finally {
+        thread.interrupt();
+        thread.join(TimeUnit.SECONDS.toMillis(5));
+      }
+    }
+  }
+
+  // waits for the path to be requested the given number of times
+  private void awaitCount(String path, int count) throws InterruptedException {
+    // polling watch services may take a few seconds to notice changes
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(20);
+    while (counts.getOrDefault(path, new AtomicInteger()).get() < count) {
+      assertTrue(System.nanoTime() < deadline, "Timed out waiting for " + path);
+      Thread.sleep(20);
+    }
+  }
+}
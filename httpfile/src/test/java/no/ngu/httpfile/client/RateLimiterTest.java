@@ -0,0 +1,134 @@
+package no.ngu.httpfile.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test for {@link RateLimiter}.
+ */
+public class RateLimiterTest {
+
+  @Test
+  public void testRateAndBurst() throws Exception {
+    var rateLimiter = new RateLimiter(new RateLimiter.Limits(20, 5, 0));
+    var limits = rateLimiter.getDefaultLimits();
+    long start = System.nanoTime();
+    // the burst doesn't wait, i.e. it is well within the 4 intervals it would otherwise take
+    for (int i = 0; i < 5; i++) {
+      rateLimiter.acquire("api.test", limits).close();
+    }
+    assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(150));
+    // then 50ms between each
+    for (int i = 0; i < 5; i++) {
+      rateLimiter.acquire("api.test", limits).close();
+    }
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(240));
+    // other hosts have their own bucket, so they needn't wait for the next 50ms slot
+    long otherStart = System.nanoTime();
+    for (int i = 0; i < 5; i++) {
+      rateLimiter.acquire("other.test", limits).close();
+    }
+    assertTrue(System.nanoTime() - otherStart < TimeUnit.MILLISECONDS.toNanos(150));
+  }
+
+  @Test
+  public void testOverridesDontBypassHostLimits() throws Exception {
+    var rateLimiter = new RateLimiter(new RateLimiter.Limits(10, 1, 0));
+    rateLimiter.acquire("api.test", rateLimiter.getDefaultLimits()).close();
+    // the host's bucket applies, too, so the next slot is still 100ms after the first
+    var limits = rateLimiter.getDefaultLimits().with(
+        name -> name.equals("rate") ? Optional.of("20") : Optional.empty());
+    long start = System.nanoTime();
+    rateLimiter.acquire("api.test", limits).close();
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+  }
+
+  @Test
+  public void testInterleavedOverrides() throws Exception {
+    var rateLimiter = new RateLimiter(RateLimiter.Limits.UNLIMITED);
+    var defaults = rateLimiter.getDefaultLimits();
+    var limited = defaults.with(
+        name -> name.equals("rate") ? Optional.of("10") : Optional.empty());
+    long start = System.nanoTime();
+    long defaultWaits = 0;
+    for (int i = 0; i < 4; i++) {
+      rateLimiter.acquire("api.test", limited).close();
+      long before = System.nanoTime();
+      rateLimiter.acquire("api.test", defaults).close();
+      defaultWaits += System.nanoTime() - before;
+    }
+    // the limited requests keep their rate, between requests without limits
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(290));
+    // while the others don't wait for them
+    assertTrue(defaultWaits < TimeUnit.MILLISECONDS.toNanos(200));
+  }
+
+  @Test
+  public void testInterleavedMaxConcurrent() throws Exception {
+    var rateLimiter = new RateLimiter(RateLimiter.Limits.UNLIMITED);
+    var defaults = rateLimiter.getDefaultLimits();
+    var single = defaults.with(
+        name -> name.equals("max-concurrent") ? Optional.of("1") : Optional.empty());
+    var first = rateLimiter.acquire("api.test", single);
+    // requests without limits aren't held back, and don't lift the limit of the others
+    var other = rateLimiter.acquire("api.test", defaults);
+    var second = CompletableFuture.supplyAsync(() -> {
+      try {
+        return rateLimiter.acquire("api.test", single);
+      } catch (InterruptedException e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    Thread.sleep(100);
+    assertFalse(second.isDone());
+    first.close();
+    second.get(5, TimeUnit.SECONDS).close();
+    other.close();
+  }
+
+  @Test
+  public void testMaxConcurrent() throws Exception {
+    var rateLimiter = new RateLimiter(RateLimiter.Limits.UNLIMITED);
+    // overridden by request properties
+    var limits = rateLimiter.getDefaultLimits().with(
+        name -> name.equals("max-concurrent") ? Optional.of(" 2") : Optional.empty());
+    var inFlight = new AtomicInteger();
+    var maxInFlight = new AtomicInteger();
+    try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < 10; i++) {
+        futures.add(executor.submit(() -> {
+          try (var permit = rateLimiter.acquire("api.test", limits)) {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            Thread.sleep(20);
+            inFlight.decrementAndGet();
+          }
+          return null;
+        }));
+      }
+      for (var future : futures) {
+        future.get();
+      }
+    }
+    assertEquals(2, maxInFlight.get());
+  }
+
+  @Test
+  public void testParseRetryAfter() {
+    assertEquals(Optional.of(Duration.ofSeconds(2)), RateLimiter.parse(" 2"));
+    assertEquals(Optional.of(Duration.ZERO), RateLimiter.parse("Wed, 21 Oct 2015 07:28:00 GMT"));
+    assertEquals(Optional.empty(), RateLimiter.parse("soon"));
+  }
+}
@@ -0,0 +1,119 @@
+package no.ngu.httpfile.daemon;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import no.ngu.httpfile.client.HttpFileClient;
+import no.ngu.httpfile.client.HttpTransport;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test for {@link HttpFileDaemon} and {@link HttpFileDaemonClient}.
+ */
+public class HttpFileDaemonTest {
+
+  private static String run(Path socketPath, HttpFileDaemonClient.Run run, int expectedStatus)
+      throws IOException {
+    var output = new ByteArrayOutputStream();
+    try (var channel = HttpFileDaemonClient.connect(socketPath, false);
+        var out = new PrintStream(output, true, StandardCharsets.UTF_8)) {
+      assertEquals(expectedStatus, HttpFileDaemonClient.run(channel, run, out));
+    }
+    return output.toString(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testRunAndStop(@TempDir Path dir) throws Exception {
+    var requestCount = new AtomicInteger();
+    var transport = new HttpTransport.InProcess()
+        .register("api.test", (request, body) -> {
+          requestCount.incrementAndGet();
+          return new HttpTransport.Response(200, "application/json",
+              "{\"path\": \"%s\"}".formatted(request.uri().getPath()));
+        });
+    var file = dir.resolve("test.http");
+    Files.writeString(file, """
+        # @name first
+        GET http://api.test/{{first}}
+
+        ###
+        # @name second
+        GET http://api.test/second
+        """);
+    var socketPath = dir.resolve("daemon.sock");
+    try (var client = new HttpFileClient();
+        var daemon = new HttpFileDaemon(client, socketPath)) {
+      client.setTransport(transport);
+      daemon.bind();
+      // serves until stopped at the end
+      final var serving = Thread.ofVirtual().start(() -> {
+        try {
+          daemon.serve();
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      });
+      var runAll = new HttpFileDaemonClient.Run(file, Map.of("first", "one"), List.of());
+      assertEquals("""
+          first 200
+          {"path": "/one"}
+          second 200
+          {"path": "/second"}
+          """, run(socketPath, runAll, 0));
+
+      // the parsed model is kept, and only the named request is performed
+      var runSecond = new HttpFileDaemonClient.Run(file, Map.of(), List.of("second"));
+      assertEquals("""
+          second 200
+          {"path": "/second"}
+          """, run(socketPath, runSecond, 0));
+      assertEquals(3, requestCount.get());
+
+      // the file is re-parsed when it changes
+      Files.writeString(file, """
+          # @name third
+          GET http://api.test/third
+          """);
+      assertEquals("""
+          third 200
+          {"path": "/third"}
+          """, run(socketPath, new HttpFileDaemonClient.Run(file, Map.of(), List.of()), 0));
+
+      // missing file
+      assertTrue(run(socketPath,
+          new HttpFileDaemonClient.Run(dir.resolve("missing.http"), Map.of(), List.of()), 1)
+          .startsWith("Failed parsing"));
+
+      try (var channel = HttpFileDaemonClient.connect(socketPath, false)) {
+        HttpFileDaemonClient.stop(channel);
+      }
+      serving.join(TimeUnit.SECONDS.toMillis(5));
+      assertFalse(serving.isAlive());
+      assertFalse(Files.exists(socketPath));
+    }
+  }
+
+  @Test
+  public void testSocketDirectory(@TempDir Path dir) throws IOException {
+    var socketPath = dir.resolve("httpfile-user").resolve("daemon.sock");
+    HttpFileDaemonClient.checkSocketPath(socketPath);
+    // only accessible by the user
+    assertEquals(PosixFilePermissions.fromString("rwx------"),
+        Files.getPosixFilePermissions(socketPath.getParent()));
+    // owned by the user, so it's accepted when it exists
+    HttpFileDaemonClient.checkSocketPath(socketPath);
+  }
+}
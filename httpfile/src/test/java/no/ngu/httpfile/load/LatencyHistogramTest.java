@@ -0,0 +1,61 @@
+package no.ngu.httpfile.load;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.Executors;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test for {@link LatencyHistogram} and {@link LatencyRecorder}.
+ */
+public class LatencyHistogramTest {
+
+  @Test
+  public void testBuckets() {
+    for (long value : new long[] {0, 1, 63, 64, 65, 127, 128, 1_000_000, Long.MAX_VALUE}) {
+      int index = LatencyHistogram.bucketIndex(value);
+      assertTrue(index < LatencyHistogram.BUCKET_COUNT);
+      assertTrue(LatencyHistogram.bucketValue(index) >= value);
+      // relative error of about 3%
+      assertTrue(LatencyHistogram.bucketValue(index) - value <= value / 32);
+      if (index > 0) {
+        assertTrue(LatencyHistogram.bucketValue(index - 1) < value);
+      }
+    }
+  }
+
+  @Test
+  public void testPercentiles() {
+    var histogram = new LatencyHistogram();
+    for (long i = 1; i <= 10_000; i++) {
+      histogram.record(i * 1000);
+    }
+    var summary = histogram.summary();
+    assertEquals(10_000, summary.count());
+    assertEquals(5_000_000, summary.p50(), 5_000_000 / 32.0);
+    assertEquals(9_900_000, summary.p99(), 9_900_000 / 32.0);
+    assertEquals(9_990_000, summary.p999(), 9_990_000 / 32.0);
+    assertEquals(10_000_000, summary.max());
+  }
+
+  @Test
+  public void testRecorder() {
+    var recorder = new LatencyRecorder();
+    try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (int i = 0; i < 1000; i++) {
+        long latency = i;
+        executor.submit(() -> {
+          recorder.record("even", latency * 2);
+          recorder.record("odd", latency * 2 + 1);
+        });
+      }
+    }
+    var report = recorder.report();
+    assertEquals(2, report.size());
+    assertEquals(1000, report.get("even").getCount());
+    assertEquals(1998, report.get("even").getMax());
+    assertEquals(1000, report.get("odd").getCount());
+    assertEquals(1999, report.get("odd").getMax());
+  }
+}
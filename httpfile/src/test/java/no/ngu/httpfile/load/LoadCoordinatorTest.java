@@ -0,0 +1,73 @@
+package no.ngu.httpfile.load;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.sun.net.httpserver.HttpServer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test for {@link LoadCoordinator}, with worker processes on this machine.
+ */
+public class LoadCoordinatorTest {
+
+  @Test
+  public void testDistributedRun() throws Exception {
+    var requestCount = new AtomicInteger();
+    Set<String> users = ConcurrentHashMap.newKeySet();
+    var server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/users", exchange -> {
+      requestCount.incrementAndGet();
+      users.add(exchange.getRequestURI().getQuery());
+      exchange.sendResponseHeaders(200, -1);
+      exchange.close();
+    });
+    server.start();
+    try {
+      var coordinator = new LoadCoordinator("""
+          # @name user
+          GET http://localhost:%d/users?{{user}}
+          """.formatted(server.getAddress().getPort()), 2);
+      coordinator.setRate(40);
+      coordinator.setDuration(Duration.ofSeconds(1));
+      coordinator.setDataset(List.of(Map.of("user", "alice"), Map.of("user", "bob"),
+          Map.of("user", "carol"), Map.of("user", "dave")));
+      var results = coordinator.run();
+      // each worker runs 20 iterations
+      assertEquals(40, results.iterations());
+      assertEquals(0, results.failures());
+      assertEquals(40, requestCount.get());
+      assertEquals(40, results.latencies().get("user").getCount());
+      // each worker got half of the dataset
+      assertEquals(Set.of("alice", "bob", "carol", "dave"), users);
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void testFailures() throws Exception {
+    int port;
+    try (var socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      port = socket.getLocalPort();
+    }
+    // nothing listens on the port, so each iteration fails
+    var coordinator = new LoadCoordinator("""
+        # @name refused
+        GET http://localhost:%d/
+        """.formatted(port), 2);
+    coordinator.setRate(20);
+    coordinator.setDuration(Duration.ofSeconds(1));
+    var results = coordinator.run();
+    assertEquals(20, results.iterations());
+    assertEquals(20, results.failures());
+  }
+}
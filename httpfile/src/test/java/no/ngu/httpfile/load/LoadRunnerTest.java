@@ -0,0 +1,160 @@
+package no.ngu.httpfile.load;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import no.ngu.httpfile.HttpFileParser;
+import no.ngu.httpfile.client.HttpFileClient;
+import no.ngu.httpfile.client.HttpTransport;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test for {@link LoadRunner}.
+ */
+public class LoadRunnerTest {
+
+  private static final int CAPACITY = 8;
+
+  // handler that slows down when more than CAPACITY requests are in flight
+  private static HttpTransport.Handler queueingHandler(AtomicInteger inFlight,
+      AtomicInteger maxInFlight) {
+    return (request, body) -> {
+      int concurrent = inFlight.incrementAndGet();
+      maxInFlight.accumulateAndGet(concurrent, Math::max);
+      try {
+        long overload = Math.max(1, concurrent - CAPACITY + 1);
+        Thread.sleep(2L * overload * overload);
+        return new HttpTransport.Response(200, "text/plain", "ok");
+      } finally {
+        inFlight.decrementAndGet();
+      }
+    };
+  }
+
+  @Test
+  public void testAdaptiveConcurrency() throws Exception {
+    var inFlight = new AtomicInteger();
+    var maxInFlight = new AtomicInteger();
+    var model = new HttpFileParser().parse("""
+        # @name first
+        GET http://load.test/first
+
+        ###
+        # @name second
+        GET http://load.test/second
+        """);
+    try (var client = new HttpFileClient()) {
+      client.setTransport(new HttpTransport.InProcess()
+          .register("load.test", queueingHandler(inFlight, maxInFlight)));
+      var limiter = LoadRunner.limitConcurrency(client);
+      var result = new LoadRunner(client).run(model, 500, 100);
+      assertEquals(0, limiter.getInFlight());
+      assertEquals(500, result.iterations());
+      assertEquals(0, result.failures());
+      assertEquals(2, model.requests().size());
+      assertTrue(result.throughput() > 0);
+      // the users are many more than the limit settles at
+      assertTrue(maxInFlight.get() < 100, "Max in flight was " + maxInFlight.get());
+      assertTrue(limiter.getLimit() < 50, "Limit was " + limiter.getLimit());
+      var samples = limiter.getSamples();
+      assertEquals(1000, samples.size());
+      assertFalse(samples.stream().anyMatch(AdaptiveConcurrencyLimiter.Sample::error));
+    }
+  }
+
+  @Test
+  public void testLatenciesAtFixedRate() throws Exception {
+    var requestCount = new AtomicInteger();
+    var lock = new Object();
+    var model = new HttpFileParser().parse("""
+        # @name stalling
+        GET http://load.test/stalling
+        """);
+    try (var client = new HttpFileClient()) {
+      // a single-threaded server, with one response stalling
+      client.setTransport(new HttpTransport.InProcess().register("load.test", (request, body) -> {
+        synchronized (lock) {
+          Thread.sleep(requestCount.incrementAndGet() == 10 ? 200 : 1);
+        }
+        return new HttpTransport.Response(200, "text/plain", "ok");
+      }));
+      var runner = new LoadRunner(client);
+      var recorder = new LatencyRecorder();
+      runner.setLatencyRecorder(recorder);
+      var result = runner.runAtRate(model, 100, Duration.ofSeconds(1));
+      assertEquals(100, result.iterations());
+      assertEquals(0, result.failures());
+      var summary = recorder.report().get("stalling").summary();
+      assertEquals(100, summary.count());
+      // requests queued behind the stalling one are slow, too
+      assertTrue(summary.max() >= TimeUnit.MILLISECONDS.toNanos(200), summary.toString());
+      assertTrue(summary.p99() >= TimeUnit.MILLISECONDS.toNanos(100), summary.toString());
+      assertTrue(summary.p50() < TimeUnit.MILLISECONDS.toNanos(100), summary.toString());
+    }
+  }
+
+  @Test
+  public void testLatenciesOfFailedRequests() throws Exception {
+    var model = new HttpFileParser().parse("""
+        GET http://load.test/ok
+
+        ###
+        GET http://load.test/failing
+
+        ###
+        GET http://load.test/ok
+        """);
+    try (var client = new HttpFileClient()) {
+      client.setTransport(new HttpTransport.InProcess().register("load.test", (request, body) -> {
+        if (request.uri().getPath().equals("/failing")) {
+          throw new IOException("Connection reset");
+        }
+        return new HttpTransport.Response(200, "text/plain", "ok");
+      }));
+      var runner = new LoadRunner(client);
+      var recorder = new LatencyRecorder();
+      runner.setLatencyRecorder(recorder);
+      var result = runner.run(model, 10, 2);
+      assertEquals(10, result.failures());
+      var report = recorder.report();
+      assertEquals(10, report.get("GET #1").summary().count());
+      // the failing request is recorded, and aborts the iteration
+      assertEquals(10, report.get("GET #2").summary().count());
+      assertFalse(report.containsKey("GET #3"));
+    }
+  }
+
+  @Test
+  public void testPaginatedRequest() throws Exception {
+    var model = new HttpFileParser().parse("""
+        # @name items
+        # @paginate next = response.body.$.nextCursor
+        GET http://load.test/items?cursor={{next}}
+
+        ###
+        # @name status
+        GET http://load.test/status
+        """);
+    try (var client = new HttpFileClient()) {
+      client.setTransport(new HttpTransport.InProcess().register("load.test", (request, body) -> {
+        var query = request.uri().getQuery();
+        return new HttpTransport.Response(200, "application/json",
+            query == null ? "{}" : query.equals("cursor=") ? "{\"nextCursor\": \"last\"}" : "{}");
+      }));
+      var runner = new LoadRunner(client);
+      var recorder = new LatencyRecorder();
+      runner.setLatencyRecorder(recorder);
+      var result = runner.run(model, 10, 2);
+      // each page is passed to the result consumer, but the request is performed once
+      assertEquals(0, result.failures());
+      var report = recorder.report();
+      assertEquals(10, report.get("items").summary().count());
+      assertEquals(10, report.get("status").summary().count());
+    }
+  }
+}
@@ -0,0 +1,86 @@
+package no.ngu.httpfile.load;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test for {@link RunComparison} and {@link RunResults}.
+ */
+public class RunComparisonTest {
+
+  // latencies around one millisecond, scaled by the factor
+  private static LatencyHistogram latencies(long seed, double factor) {
+    var random = new Random(seed);
+    var histogram = new LatencyHistogram();
+    for (int i = 0; i < 2000; i++) {
+      histogram.record((long) ((1_000_000 + random.nextGaussian() * 100_000) * factor));
+    }
+    return histogram;
+  }
+
+  private static RunResults results(long seed, double factor) {
+    return new RunResults(2000, 5, Duration.ofSeconds(10), Map.of(
+        "fast", latencies(seed, 1.0), "changing", latencies(seed + 1, factor)));
+  }
+
+  @Test
+  public void testWriteAndRead(@TempDir Path dir) throws Exception {
+    var results = results(1, 1.0);
+    var path = dir.resolve("run.results");
+    results.write(path);
+    var read = RunResults.read(path);
+    assertEquals(results.iterations(), read.iterations());
+    assertEquals(results.failures(), read.failures());
+    assertEquals(results.duration(), read.duration());
+    assertEquals(results.latencies().keySet(), read.latencies().keySet());
+    for (var name : results.latencies().keySet()) {
+      assertEquals(results.latencies().get(name).summary(), read.latencies().get(name).summary());
+    }
+    assertEquals(200, read.throughput("fast"), 0.001);
+  }
+
+  @Test
+  public void testCompare() {
+    var comparison = new RunComparison();
+    var baseline = results(1, 1.0);
+    // different samples of the same distribution
+    var same = comparison.compare(baseline, results(3, 1.0));
+    assertFalse(RunComparison.report(same, new PrintStream(new ByteArrayOutputStream())));
+    // 20% slower
+    var slower = comparison.compare(baseline, results(3, 1.2));
+    var output = new ByteArrayOutputStream();
+    assertTrue(RunComparison.report(slower, new PrintStream(output)));
+    var changing = slower.stream().filter(d -> d.name().equals("changing")).findFirst().get();
+    assertTrue(changing.regression());
+    assertTrue(changing.pvalue() < 0.001);
+    assertEquals(0.2, changing.p50Change(), 0.05);
+    assertTrue(output.toString().contains("changing: p50 +"));
+    assertFalse(slower.stream().filter(d -> d.name().equals("fast")).findFirst().get()
+        .regression());
+    // faster isn't a regression
+    assertFalse(RunComparison.report(comparison.compare(baseline, results(3, 0.8)),
+        new PrintStream(new ByteArrayOutputStream())));
+  }
+
+  @Test
+  public void testMissingRequest() {
+    var baseline = results(1, 1.0);
+    var current = new RunResults(2000, 5, Duration.ofSeconds(10),
+        Map.of("fast", latencies(1, 1.0)));
+    var differences = new RunComparison().compare(baseline, current);
+    var missing = differences.stream().filter(d -> d.name().equals("changing")).findFirst().get();
+    assertTrue(missing.regression());
+    assertNull(missing.current());
+  }
+}